@@ -0,0 +1,79 @@
+package citymesh.bench;
+
+import citymesh.CitymeshExporter;
+import citymesh.CitymeshFile;
+import citymesh.Exporter;
+import citymesh.Mesh;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing meshes to .citymesh files and reading them back, as views and as copies
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class CitymeshBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int vertices;
+
+    @Param({"false", "true"})
+    public boolean quantize;
+
+    private Mesh[] meshes;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        meshes = new Mesh[8];
+        for (int i = 0; i < meshes.length; i++) {
+            meshes[i] = Meshes.grid("grid " + i, vertices / meshes.length, 0);
+        }
+        dir = Files.createTempDirectory("citymeshbench");
+        write();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(dir.resolve("out.citymesh"));
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public boolean write() {
+        Exporter exporter = new CitymeshExporter(quantize);
+        exporter.init(dir.resolve("out").toString());
+        for (Mesh m : meshes) {
+            exporter.appendMesh(m);
+        }
+        return exporter.done();
+    }
+
+    @Benchmark
+    public int openViews() throws IOException {
+        CitymeshFile file = CitymeshFile.open(dir.resolve("out.citymesh"));
+        int faces = 0;
+        for (int i = 0; i < file.meshCount(); i++) {
+            faces += file.mesh(i).faceCount();
+        }
+        return faces;
+    }
+
+    @Benchmark
+    public Mesh[] openCopies() throws IOException {
+        CitymeshFile file = CitymeshFile.open(dir.resolve("out.citymesh"));
+        Mesh[] copies = new Mesh[file.meshCount()];
+        for (int i = 0; i < copies.length; i++) {
+            copies[i] = file.toMesh(i);
+        }
+        return copies;
+    }
+}
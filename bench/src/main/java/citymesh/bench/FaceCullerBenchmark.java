@@ -0,0 +1,73 @@
+package citymesh.bench;
+
+import citymesh.FaceCuller;
+import citymesh.Mesh;
+import citymesh.Vector2;
+import citymesh.Vector3;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Culling the shared walls of a block of row houses of varying height, about half of them hidden, on a fresh
+ * copy of the block each time
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class FaceCullerBenchmark {
+
+    private static final Vector2[] UVS = {
+            new Vector2(0, 0), new Vector2(1, 0), new Vector2(1, 1), new Vector2(0, 1)
+    };
+
+    // Corners of each side of a box, outward facing
+    private static final int[][] SIDES = {
+            {0, 2, 3, 1}, {4, 5, 7, 6}, {0, 1, 5, 4}, {2, 6, 7, 3}, {0, 4, 6, 2}, {1, 3, 7, 5}
+    };
+
+    @Param({"10", "100", "300"})
+    public int side;
+
+    private Mesh block, copy;
+    private final FaceCuller culler = new FaceCuller();
+    private final FaceCuller clipper = new FaceCuller(1e-3f, true);
+
+    @Setup(Level.Trial)
+    public void setup() {
+        block = new Mesh("Block");
+        for (int x = 0; x < side; x++) {
+            for (int y = 0; y < side; y++) {
+                box(block, x, y, 1 + (x * 7 + y * 3) % 3);
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void copy() {
+        copy = new Mesh("Copy", block);
+    }
+
+    private static void box(Mesh m, float x, float y, float height) {
+        Vector3[] p = new Vector3[8];
+        for (int i = 0; i < 8; i++) {
+            p[i] = new Vector3(x + (i & 1), y + ((i >> 1) & 1), (i & 4) == 0 ? 0 : height);
+        }
+        for (int[] s : SIDES) {
+            m.addFace(new Vector3[] {p[s[0]], p[s[1]], p[s[2]], p[s[3]]}, UVS, 0);
+        }
+    }
+
+    @Benchmark
+    public int cull() {
+        return culler.cull(copy);
+    }
+
+    @Benchmark
+    public int cullAndClip() {
+        return clipper.cull(copy);
+    }
+}
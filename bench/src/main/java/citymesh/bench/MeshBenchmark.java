@@ -0,0 +1,133 @@
+package citymesh.bench;
+
+import citymesh.Mesh;
+import citymesh.Transformation;
+import citymesh.Vector3;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building, copying, transforming and querying meshes of increasing size
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class MeshBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int vertices;
+
+    private Mesh mesh;
+    private Vector3[] lookups;
+    private Transformation transformation;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mesh = Meshes.grid("grid", vertices, 0);
+        transformation = Transformation.translation(1, 2, 3).mulRotationZ(0.3f);
+
+        // Existing vertices slightly off their stored positions, so exact lookups add and welded ones merge
+        int side = Meshes.gridSide(vertices);
+        lookups = new Vector3[Math.min(side * side, 100_000)];
+        for (int i = 0; i < lookups.length; i++) {
+            Vector3 p = Meshes.point(i % side, i / side);
+            lookups[i] = new Vector3(p.getX() + 0.001f, p.getY(), p.getZ());
+        }
+    }
+
+    @Benchmark
+    public Mesh addFace() {
+        return Meshes.grid("build", vertices, 0);
+    }
+
+    @Benchmark
+    public Mesh addFaceWelded() {
+        return Meshes.grid("build", vertices, 0.01f);
+    }
+
+    @Benchmark
+    public Mesh append() {
+        Mesh copy = new Mesh("copy");
+        copy.append(mesh, 0);
+        return copy;
+    }
+
+    @Benchmark
+    public Mesh appendWelded() {
+        Mesh copy = new Mesh("copy");
+        copy.append(mesh, 0.01f);
+        return copy;
+    }
+
+    /**
+     * A fresh copy of the mesh for each call of benchmarks which modify it
+     */
+    @State(Scope.Thread)
+    public static class Copy {
+        Mesh mesh;
+
+        @Setup(Level.Invocation)
+        public void copy(MeshBenchmark b) {
+            mesh = new Mesh("copy", b.mesh);
+        }
+    }
+
+    /**
+     * A fresh copy with its exact vertex index already built by a lookup which hits
+     */
+    @State(Scope.Thread)
+    public static class IndexedCopy {
+        Mesh mesh;
+
+        @Setup(Level.Invocation)
+        public void copy(MeshBenchmark b) {
+            mesh = new Mesh("copy", b.mesh);
+            mesh.getVertID(Meshes.point(0, 0));
+        }
+    }
+
+    /**
+     * A fresh copy with its spatial hash already built by a lookup which merges
+     */
+    @State(Scope.Thread)
+    public static class HashedCopy {
+        Mesh mesh;
+
+        @Setup(Level.Invocation)
+        public void copy(MeshBenchmark b) {
+            mesh = new Mesh("copy", b.mesh);
+            mesh.getVertID(Meshes.point(0, 0), 0.01f);
+        }
+    }
+
+    @Benchmark
+    public Mesh transform(Copy copy) {
+        copy.mesh.transform(transformation);
+        return copy.mesh;
+    }
+
+    /**
+     * Up to 100k exact lookups which miss and add a vertex, on a fresh copy of the mesh
+     */
+    @Benchmark
+    public void getVertID(IndexedCopy copy, Blackhole bh) {
+        for (Vector3 v : lookups) {
+            bh.consume(copy.mesh.getVertID(v));
+        }
+    }
+
+    /**
+     * Up to 100k lookups which merge with an existing vertex, on a fresh copy of the mesh
+     */
+    @Benchmark
+    public void getVertIDTolerance(HashedCopy copy, Blackhole bh) {
+        for (Vector3 v : lookups) {
+            bh.consume(copy.mesh.getVertID(v, 0.01f));
+        }
+    }
+}
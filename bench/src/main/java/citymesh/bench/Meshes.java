@@ -0,0 +1,48 @@
+package citymesh.bench;
+
+import citymesh.Mesh;
+import citymesh.Vector2;
+import citymesh.Vector3;
+
+/**
+ * Test geometry for benchmarks
+ */
+final class Meshes {
+
+    private static final Vector2[] UVS = {
+            new Vector2(0, 0),
+            new Vector2(1, 0),
+            new Vector2(1, 1),
+            new Vector2(0, 1)
+    };
+
+    private Meshes() {
+    }
+
+    /**
+     * Side length of a square grid of quads with about the given number of vertices
+     */
+    static int gridSide(int vertices) {
+        return Math.max(2, (int)Math.sqrt(vertices));
+    }
+
+    /**
+     * Build a wavy square grid of quads with about the given number of vertices, using four materials
+     */
+    static Mesh grid(String name, int vertices, float tolerance) {
+        Mesh m = new Mesh(name);
+        int side = gridSide(vertices);
+        for (int y = 0; y < side - 1; y++) {
+            for (int x = 0; x < side - 1; x++) {
+                m.addFace(
+                        new Vector3[] {point(x, y), point(x + 1, y), point(x + 1, y + 1), point(x, y + 1)},
+                        UVS, (x + y) & 3, tolerance);
+            }
+        }
+        return m;
+    }
+
+    static Vector3 point(int x, int y) {
+        return new Vector3(x * 0.5f, y * 0.5f, (float)Math.sin(x * 0.1) + (float)Math.cos(y * 0.1));
+    }
+}
@@ -0,0 +1,43 @@
+package citymesh.bench;
+
+import citymesh.Mesh;
+import citymesh.NormalBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computing flat and smooth normals with tangents for a wavy grid
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class NormalBuilderBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int vertices;
+
+    private Mesh mesh;
+    private final NormalBuilder flat = new NormalBuilder(NormalBuilder.Mode.FLAT);
+    private final NormalBuilder smooth = new NormalBuilder(NormalBuilder.Mode.SMOOTH, 30.0f);
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mesh = Meshes.grid("Grid", vertices, 0.0f);
+    }
+
+    @Benchmark
+    public int flat() {
+        flat.build(mesh);
+        return mesh.normalCount();
+    }
+
+    @Benchmark
+    public int smooth() {
+        smooth.build(mesh);
+        return mesh.normalCount();
+    }
+}
@@ -0,0 +1,60 @@
+package citymesh.bench;
+
+import citymesh.Exporter;
+import citymesh.Mesh;
+import citymesh.ObjExporter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing meshes to .obj files
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class ObjExporterBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int vertices;
+
+    // Encoding threads, 0 encodes on the calling thread
+    @Param({"0", "4"})
+    public int threads;
+
+    private Mesh[] meshes;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // Split into several objects so parallel encoding has work to share
+        meshes = new Mesh[8];
+        for (int i = 0; i < meshes.length; i++) {
+            meshes[i] = Meshes.grid("grid " + i, vertices / meshes.length, 0);
+        }
+        dir = Files.createTempDirectory("objbench");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(dir.resolve("out.obj"));
+        Files.deleteIfExists(dir.resolve("out.mtl"));
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public boolean writeMesh() {
+        Exporter exporter = new ObjExporter(6, threads, threads * 4);
+        exporter.init(dir.resolve("out").toString());
+        for (Mesh m : meshes) {
+            exporter.appendMesh(m);
+        }
+        return exporter.done();
+    }
+}
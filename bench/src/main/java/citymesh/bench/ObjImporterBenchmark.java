@@ -0,0 +1,57 @@
+package citymesh.bench;
+
+import citymesh.Exporter;
+import citymesh.Mesh;
+import citymesh.ObjExporter;
+import citymesh.ObjImporter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading .obj files written by ObjExporter
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class ObjImporterBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int vertices;
+
+    // Parsing threads, 1 parses on the calling thread
+    @Param({"1", "4"})
+    public int threads;
+
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("objimportbench");
+        Exporter exporter = new ObjExporter();
+        exporter.init(dir.resolve("in").toString());
+        for (int i = 0; i < 8; i++) {
+            exporter.appendMesh(Meshes.grid("grid " + i, vertices / 8, 0));
+        }
+        exporter.done();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(dir.resolve("in.obj"));
+        Files.deleteIfExists(dir.resolve("in.mtl"));
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public List<Mesh> read() throws IOException {
+        return new ObjImporter(threads).read(dir.resolve("in.obj"));
+    }
+}
@@ -0,0 +1,65 @@
+package citymesh.bench;
+
+import citymesh.Transformation;
+import citymesh.Vector3;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transforming points one object at a time versus in packed arrays
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class TransformationBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int vertices;
+
+    private Vector3[] points;
+    private float[] packed;
+    private Transformation transformation;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        points = new Vector3[vertices];
+        packed = new float[vertices * 3];
+        for (int i = 0; i < vertices; i++) {
+            points[i] = new Vector3(random.nextFloat(), random.nextFloat(), random.nextFloat());
+            packed[i * 3] = points[i].getX();
+            packed[i * 3 + 1] = points[i].getY();
+            packed[i * 3 + 2] = points[i].getZ();
+        }
+        transformation = Transformation.translation(1, 2, 3).mulRotationZ(0.3f);
+    }
+
+    @Benchmark
+    public void transformVector3(Blackhole bh) {
+        for (Vector3 p : points) {
+            bh.consume(transformation.transform(p));
+        }
+    }
+
+    @Benchmark
+    public float[] transformPoints() {
+        transformation.transformPoints(packed, 0, vertices);
+        return packed;
+    }
+
+    @Benchmark
+    public Transformation compose() {
+        return Transformation.translation(1, 2, 3).transform(Transformation.rotateZ(0.3f));
+    }
+
+    @Benchmark
+    public Transformation composeInPlace() {
+        return transformation.setIdentity().mulTranslation(1, 2, 3).mulRotationZ(0.3f);
+    }
+}
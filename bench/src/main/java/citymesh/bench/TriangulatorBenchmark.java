@@ -0,0 +1,59 @@
+package citymesh.bench;
+
+import citymesh.Extruder;
+import citymesh.Mesh;
+import citymesh.Triangulator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Triangulating and extruding footprints of increasing detail, with a courtyard
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class TriangulatorBenchmark {
+
+    @Param({"8", "100", "10000"})
+    public int points;
+
+    private float[] xy;
+    private final int[] holeStarts = new int[1];
+    private final Triangulator triangulator = new Triangulator();
+    private final Extruder extruder = new Extruder();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // Jagged outline around a square courtyard
+        Random random = new Random(42);
+        xy = new float[(points + 4) * 2];
+        for (int i = 0; i < points; i++) {
+            double angle = 2 * Math.PI * i / points, radius = 20 + 5 * random.nextDouble();
+            xy[i * 2] = (float)(radius * Math.cos(angle));
+            xy[i * 2 + 1] = (float)(radius * Math.sin(angle));
+        }
+        float[] courtyard = {-5, -5, -5, 5, 5, 5, 5, -5};
+        System.arraycopy(courtyard, 0, xy, points * 2, courtyard.length);
+        holeStarts[0] = points;
+    }
+
+    @Benchmark
+    public int triangulate() {
+        return triangulator.triangulate(xy, points + 4, holeStarts, 1);
+    }
+
+    @Benchmark
+    public Mesh extrudeTenFloors() {
+        Mesh m = new Mesh("Footprint");
+        for (int floor = 0; floor < 10; floor++) {
+            extruder.walls(m, xy, points + 4, holeStarts, 1, floor * 3.0f, floor * 3.0f + 3.0f, 0);
+        }
+        extruder.cap(m, xy, points + 4, holeStarts, 1, 30.0f, true, 1);
+        return m;
+    }
+}
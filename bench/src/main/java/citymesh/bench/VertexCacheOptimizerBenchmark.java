@@ -0,0 +1,41 @@
+package citymesh.bench;
+
+import citymesh.Mesh;
+import citymesh.VertexCacheOptimizer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Triangulating and reordering a wavy grid of quads for the vertex cache, on a fresh copy each time
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class VertexCacheOptimizerBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int vertices;
+
+    private Mesh grid, copy;
+    private final VertexCacheOptimizer optimizer = new VertexCacheOptimizer();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        grid = Meshes.grid("Grid", vertices, 0.0f);
+    }
+
+    @Setup(Level.Invocation)
+    public void copy() {
+        copy = new Mesh("Copy", grid);
+    }
+
+    @Benchmark
+    public int optimize() {
+        optimizer.optimize(copy);
+        return copy.faceCount();
+    }
+}
@@ -0,0 +1,123 @@
+package citymesh;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MeshCodecTest {
+
+    // A box on a plinth, with a pentagon roof face, over two materials
+    private static Mesh sample() {
+        Mesh m = new Mesh("sample é");
+        Vector2[] quadUVs = {new Vector2(0, 0), new Vector2(1, 0), new Vector2(1, 1), new Vector2(0, 1)};
+        float[][] sides = {{0, 0, 4, 0}, {4, 0, 4, 3}, {4, 3, 0, 3}, {0, 3, 0, 0}};
+        for (float[] s : sides) {
+            m.addFace(new Vector3[] {
+                    new Vector3(s[0], 0, s[1]), new Vector3(s[2], 0, s[3]),
+                    new Vector3(s[2], 5, s[3]), new Vector3(s[0], 5, s[1])}, quadUVs, 0);
+        }
+        m.addFace(new Vector3[] {
+                new Vector3(0, 5, 0), new Vector3(0, 5, 3), new Vector3(2, 6.5f, 3),
+                new Vector3(4, 5, 3), new Vector3(4, 5, 0)},
+                new Vector2[] {new Vector2(0, 0), new Vector2(0, 0.6f), new Vector2(0.5f, 0.9f),
+                        new Vector2(1, 0.6f), new Vector2(1, 0)}, 7);
+        return m;
+    }
+
+    private static Mesh roundTrip(Mesh m, boolean quantize) {
+        long size = MeshCodec.encodedSize(m, quantize);
+        ByteBuffer buf = ByteBuffer.allocate((int)size + 3).order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(3);
+        MeshCodec.encode(m, buf, quantize);
+        assertEquals(size + 3, buf.position(), "encodedSize");
+        buf.flip().position(3);
+        Mesh decoded = MeshCodec.decode(buf, quantize);
+        assertFalse(buf.hasRemaining());
+        return decoded;
+    }
+
+    private static void assertSameFaces(Mesh expected, Mesh actual) {
+        assertEquals(expected.faceCount(), actual.faceCount());
+        assertEquals(expected.faces.keySet(), actual.faces.keySet());
+        for (FaceList e : expected.faces.values()) {
+            FaceList a = actual.faces.get(e.material);
+            assertEquals(e.count, a.count);
+            assertArrayEquals(Arrays.copyOf(e.offsets, e.count + 1), Arrays.copyOf(a.offsets, a.count + 1));
+            assertArrayEquals(Arrays.copyOf(e.vertIDs, e.corners), Arrays.copyOf(a.vertIDs, a.corners));
+            assertArrayEquals(Arrays.copyOf(e.uvIDs, e.corners), Arrays.copyOf(a.uvIDs, a.corners));
+            if (expected.hasNormals()) {
+                assertArrayEquals(Arrays.copyOf(e.normIDs, e.corners), Arrays.copyOf(a.normIDs, a.corners));
+            }
+        }
+    }
+
+    private static void assertClose(float[] expected, float[] actual, int count, float tolerance) {
+        for (int i = 0; i < count; i++) {
+            assertEquals(expected[i], actual[i], tolerance, "component " + i);
+        }
+    }
+
+    @Test
+    void roundTrip() {
+        Mesh m = sample();
+        Mesh decoded = roundTrip(m, false);
+        assertEquals(m.getName(), decoded.getName());
+        assertEquals(m.vertexCount(), decoded.vertexCount());
+        assertEquals(m.uvCount(), decoded.uvCount());
+        assertFalse(decoded.hasNormals());
+        assertArrayEquals(Arrays.copyOf(m.verts.data, m.vertexCount() * 3),
+                Arrays.copyOf(decoded.verts.data, decoded.vertexCount() * 3));
+        assertArrayEquals(Arrays.copyOf(m.uvs.data, m.uvCount() * 2),
+                Arrays.copyOf(decoded.uvs.data, decoded.uvCount() * 2));
+        assertSameFaces(m, decoded);
+    }
+
+    @Test
+    void roundTripWithNormals() {
+        Mesh m = sample();
+        new NormalBuilder(NormalBuilder.Mode.FLAT).build(m);
+        Mesh decoded = roundTrip(m, false);
+        assertEquals(m.normalCount(), decoded.normalCount());
+        assertArrayEquals(Arrays.copyOf(m.normals, m.normalCount() * 3),
+                Arrays.copyOf(decoded.normals, decoded.normalCount() * 3));
+        assertArrayEquals(Arrays.copyOf(m.tangents, m.normalCount() * 4),
+                Arrays.copyOf(decoded.tangents, decoded.normalCount() * 4));
+        assertSameFaces(m, decoded);
+    }
+
+    @Test
+    void quantizedRoundTrip() {
+        Mesh m = sample();
+        new NormalBuilder(NormalBuilder.Mode.FLAT).build(m);
+        Mesh decoded = roundTrip(m, true);
+        assertEquals(m.getName(), decoded.getName());
+        assertEquals(m.vertexCount(), decoded.vertexCount());
+        assertEquals(m.uvCount(), decoded.uvCount());
+        assertEquals(m.normalCount(), decoded.normalCount());
+        // Largest extent is 6.5 on y, uvs span 1
+        assertClose(m.verts.data, decoded.verts.data, m.vertexCount() * 3, 6.5f / 65535 + 1e-5f);
+        assertClose(m.uvs.data, decoded.uvs.data, m.uvCount() * 2, 1.0f / 65535 + 1e-6f);
+        assertClose(m.normals, decoded.normals, m.normalCount() * 3, 1.0f / 32767 + 1e-6f);
+        assertClose(m.tangents, decoded.tangents, m.normalCount() * 4, 1.0f / 32767 + 1e-6f);
+        assertSameFaces(m, decoded);
+    }
+
+    @Test
+    void quantizedIsSmaller() {
+        Mesh m = sample();
+        assertTrue(MeshCodec.encodedSize(m, true) < MeshCodec.encodedSize(m, false));
+    }
+
+    @Test
+    void truncatedInputIsRejected() {
+        Mesh m = sample();
+        ByteBuffer buf = ByteBuffer.allocate((int)MeshCodec.encodedSize(m)).order(ByteOrder.LITTLE_ENDIAN);
+        MeshCodec.encode(m, buf);
+        buf.flip().limit(buf.limit() - 8);
+        assertThrows(IllegalArgumentException.class, () -> MeshCodec.decode(buf));
+    }
+}
@@ -0,0 +1,111 @@
+package citymesh;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ObjImporterTest {
+
+    @TempDir
+    Path dir;
+
+    private static Mesh quadStrip(String name, int quads, int material) {
+        Mesh m = new Mesh(name);
+        for (int i = 0; i < quads; i++) {
+            m.addFace(new Vector3[] {
+                    new Vector3(i, 0, 0), new Vector3(i + 1, 0, 0),
+                    new Vector3(i + 1, 2.5f, 0), new Vector3(i, 2.5f, 0)},
+                    new Vector2[] {new Vector2(0, 0), new Vector2(1, 0), new Vector2(1, 1), new Vector2(0, 1)},
+                    material);
+        }
+        return m;
+    }
+
+    // Compare meshes corner by corner, as vertex IDs may be renumbered
+    private static void assertSameGeometry(Mesh expected, Mesh actual, float tolerance) {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.faceCount(), actual.faceCount());
+        assertEquals(expected.faces.keySet(), actual.faces.keySet());
+        for (FaceList e : expected.faces.values()) {
+            FaceList a = actual.faces.get(e.material);
+            assertEquals(e.count, a.count);
+            for (int f = 0; f < e.count; f++) {
+                assertEquals(e.size(f), a.size(f));
+                for (int i = 0; i < e.size(f); i++) {
+                    Vector3 ev = expected.getVert(e.vertIDs[e.offsets[f] + i]);
+                    Vector3 av = actual.getVert(a.vertIDs[a.offsets[f] + i]);
+                    assertTrue(ev.distance(av) <= tolerance, ev + " != " + av);
+                    Vector2 et = expected.getUV(e.uvIDs[e.offsets[f] + i]);
+                    Vector2 at = actual.getUV(a.uvIDs[a.offsets[f] + i]);
+                    assertTrue(et.distance(at) <= tolerance, et + " != " + at);
+                }
+            }
+        }
+    }
+
+    private Path write(String name, String obj) throws IOException {
+        Path path = dir.resolve(name);
+        Files.write(path, obj.getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        Mesh wall = quadStrip("wall", 3, 0);
+        Mesh trim = quadStrip("trim", 2, 3);
+        trim.append(quadStrip("trim", 1, 0), 0.0f);
+        ObjExporter exporter = new ObjExporter(6);
+        assertTrue(exporter.init(dir.resolve("out").toString()));
+        assertTrue(exporter.appendMesh(wall));
+        assertTrue(exporter.appendMesh(trim));
+        assertTrue(exporter.done());
+
+        List<Mesh> meshes = new ObjImporter(2).read(dir.resolve("out.obj"));
+        assertEquals(2, meshes.size());
+        assertSameGeometry(wall, meshes.get(0), 1e-6f);
+        assertSameGeometry(trim, meshes.get(1), 1e-6f);
+    }
+
+    @Test
+    void relativeIndicesAndDefaultName() throws IOException {
+        Path path = write("rel.obj", String.join("\n",
+                "v 0 0 0", "v 1 0 0", "v 1 1 0", "v 0 1 0",
+                "vt 0 0", "vt 1 0", "vt 1 1", "vt 0 1",
+                "f -4/-4 -3/-3 -2/-2 -1/-1", ""));
+        List<Mesh> meshes = new ObjImporter().read(path);
+        assertEquals(1, meshes.size());
+        Mesh m = meshes.get(0);
+        assertEquals("rel", m.getName());
+        assertEquals(1, m.faceCount());
+        FaceList faces = m.faces.values().iterator().next();
+        assertEquals(new Vector3(1, 1, 0), m.getVert(faces.vertIDs[2]));
+        assertEquals(new Vector2(0, 1), m.getUV(faces.uvIDs[3]));
+    }
+
+    @Test
+    void materialIDs() throws IOException {
+        // mat0 comes after brick has taken ID 0, so it gets the next free ID; mat5 is free and keeps 5
+        Path path = write("mats.obj", String.join("\n",
+                "v 0 0 0", "v 1 0 0", "v 1 1 0",
+                "o a", "usemtl brick", "f 1 2 3",
+                "usemtl mat0", "f 1 2 3",
+                "usemtl mat5", "f 1 2 3",
+                "usemtl glass", "f 1 2 3", ""));
+        ObjImporter importer = new ObjImporter();
+        Mesh m = importer.read(path).get(0);
+        Map<String, Integer> materials = importer.getMaterials();
+        assertEquals(0, materials.get("brick"));
+        assertEquals(1, materials.get("mat0"));
+        assertEquals(5, materials.get("mat5"));
+        assertEquals(6, materials.get("glass"));
+        assertEquals(4, m.faces.size());
+    }
+}
@@ -0,0 +1,99 @@
+package citymesh;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TriangulatorTest {
+
+    // Signed area of triangle t, positive when counter-clockwise
+    private static double area(float[] xy, int[] triangles, int t) {
+        int a = triangles[t * 3] * 2, b = triangles[t * 3 + 1] * 2, c = triangles[t * 3 + 2] * 2;
+        return ((xy[b] - xy[a]) * (xy[c + 1] - xy[a + 1]) - (xy[b + 1] - xy[a + 1]) * (xy[c] - xy[a])) * 0.5;
+    }
+
+    // Check that every triangle is counter-clockwise, and return their total area
+    private static double totalArea(float[] xy, Triangulator triangulator, int count) {
+        double total = 0;
+        for (int t = 0; t < count; t++) {
+            double a = area(xy, triangulator.triangles(), t);
+            assertTrue(a > 0, "triangle " + t + " is not counter-clockwise");
+            total += a;
+        }
+        return total;
+    }
+
+    @Test
+    void signedArea() {
+        float[] ccw = {0, 0, 2, 0, 2, 3, 0, 3};
+        float[] cw = {0, 0, 0, 3, 2, 3, 2, 0};
+        assertEquals(6.0, Triangulator.signedArea(ccw, 0, 4), 1e-9);
+        assertEquals(-6.0, Triangulator.signedArea(cw, 0, 4), 1e-9);
+    }
+
+    @Test
+    void concavePolygon() {
+        // L shape, clockwise; a fan from the first point would cover the notch
+        float[] xy = {0, 0, 0, 2, 1, 2, 1, 1, 2, 1, 2, 0};
+        Triangulator triangulator = new Triangulator();
+        int count = triangulator.triangulate(xy, 6, null, 0);
+        assertEquals(4, count);
+        assertEquals(3.0, totalArea(xy, triangulator, count), 1e-6);
+    }
+
+    @Test
+    void polygonWithHoles() {
+        // 10 x 10 square with a 2 x 2 hole in each winding and a triangular hole
+        float[] xy = {
+                0, 0, 10, 0, 10, 10, 0, 10,
+                2, 2, 2, 4, 4, 4, 4, 2,
+                6, 6, 8, 6, 8, 8, 6, 8,
+                6.5f, 1, 8.5f, 1.5f, 7, 3.5f};
+        int[] holeStarts = {4, 8, 12};
+        Triangulator triangulator = new Triangulator();
+        int count = triangulator.triangulate(xy, 15, holeStarts, 3);
+        // n + 2h - 2 triangles for n points and h holes, as long as no bridge makes points collinear
+        assertEquals(15 + 2 * 3 - 2, count);
+        double holes = 4 + 4 + Math.abs(Triangulator.signedArea(xy, 12, 15));
+        assertEquals(100.0 - holes, totalArea(xy, triangulator, count), 1e-4);
+
+        // No triangle lies within a hole
+        int[] triangles = triangulator.triangles();
+        for (int t = 0; t < count; t++) {
+            float cx = 0, cy = 0;
+            for (int k = 0; k < 3; k++) {
+                cx += xy[triangles[t * 3 + k] * 2] / 3;
+                cy += xy[triangles[t * 3 + k] * 2 + 1] / 3;
+            }
+            assertFalse(cx > 2 && cx < 4 && cy > 2 && cy < 4, "triangle " + t + " in the first hole");
+            assertFalse(cx > 6 && cx < 8 && cy > 6 && cy < 8, "triangle " + t + " in the second hole");
+        }
+    }
+
+    @Test
+    void largePolygonUsesTheIndex() {
+        // Star with more points than the z-order index threshold
+        int n = 400;
+        float[] xy = new float[n * 2];
+        for (int i = 0; i < n; i++) {
+            double angle = 2 * Math.PI * i / n, r = i % 2 == 0 ? 10 : 6;
+            xy[i * 2] = (float)(r * Math.cos(angle));
+            xy[i * 2 + 1] = (float)(r * Math.sin(angle));
+        }
+        Triangulator triangulator = new Triangulator();
+        int count = triangulator.triangulate(xy, n, null, 0);
+        assertEquals(n - 2, count);
+        assertEquals(Triangulator.signedArea(xy, 0, n), totalArea(xy, triangulator, count), 1e-2);
+    }
+
+    @Test
+    void reusedBetweenCalls() {
+        Triangulator triangulator = new Triangulator();
+        float[] square = {0, 0, 1, 0, 1, 1, 0, 1};
+        assertEquals(2, triangulator.triangulate(square, 4, null, 0));
+        float[] l = {0, 0, 0, 2, 1, 2, 1, 1, 2, 1, 2, 0};
+        int count = triangulator.triangulate(l, 6, null, 0);
+        assertEquals(4, count);
+        assertEquals(3.0, totalArea(l, triangulator, count), 1e-6);
+    }
+}
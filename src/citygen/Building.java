@@ -1,11 +1,224 @@
 package citygen;
 
+import citymesh.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public class Building {
 
+    // Material IDs
+    static final int WALL_MATERIAL = 0;
+    static final int ROOF_MATERIAL = 1;
+    static final int GLASS_MATERIAL = 2;
+
+    /**
+     * Facade modules placed around the footprint for one floor.
+     * All floors of a building are alike, so a floor is laid out and meshed once and then stacked.
+     */
     class Floor {
 
+        // Shared modules and where each copy goes, relative to the bottom of the floor
+        private final List<Mesh> modules = new ArrayList<>();
+        private final List<Transformation> placements = new ArrayList<>();
+
+        /**
+         * Tile every wall with as many whole bays as fit, stretched to the wall's length.
+         * Walls shorter than a bay get the filler stretched across instead.
+         *
+         * @param bay module of bayWidth along x, or null to use the filler everywhere
+         * @param bayWidth width of the bay module
+         * @param filler module of unit width along x
+         * @return this
+         */
+        Floor tile(Mesh bay, float bayWidth, Mesh filler) {
+            for (int ring = 0; ring <= holeStarts.length; ring++) {
+                int start = ring == 0 ? 0 : holeStarts[ring - 1];
+                int end = ring < holeStarts.length ? holeStarts[ring] : pointCount;
+                int n = end - start;
+                if (n < 3) continue;
+                // Same winding as the extruded walls, solid part on the left and -y of modules facing out
+                boolean reverse = (Triangulator.signedArea(xy, start, end) > 0) != (ring == 0);
+                for (int i = 0; i < n; i++) {
+                    int a = start + (reverse ? n - 1 - i : i);
+                    int b = start + (reverse ? (2 * n - 2 - i) % n : (i + 1) % n);
+                    float ax = xy[a * 2], ay = xy[a * 2 + 1], dx = xy[b * 2] - ax, dy = xy[b * 2 + 1] - ay;
+                    float length = (float)Math.sqrt(dx * dx + dy * dy);
+                    if (length < 1e-4f) continue;
+                    float angle = (float)Math.atan2(dy, dx);
+                    int bays = bay == null ? 0 : (int)(length / bayWidth);
+                    if (bays == 0) {
+                        place(filler, Transformation.translation(ax, ay, 0).mulRotationZ(angle).mulScale(length, 1, 1));
+                        continue;
+                    }
+                    float stretch = length / (bays * bayWidth);
+                    for (int j = 0; j < bays; j++) {
+                        place(bay, Transformation.translation(ax, ay, 0).mulRotationZ(angle)
+                                .mulScale(stretch, 1, 1).mulTranslation(j * bayWidth, 0, 0));
+                    }
+                }
+            }
+            return this;
+        }
+
+        private void place(Mesh module, Transformation t) {
+            modules.add(module);
+            placements.add(t);
+        }
+
+        /**
+         * Merge the placed modules into one mesh, copying each module's buffers in bulk
+         * @param name name of the mesh
+         * @return new mesh
+         */
+        Mesh toMesh(String name) {
+            Mesh m = new Mesh(name);
+            for (int i = 0; i < modules.size(); i++) {
+                m.append(modules.get(i), placements.get(i));
+            }
+            return m;
+        }
+    }
+
+    // Footprint meshing scratch, one per generating thread
+    private static final ThreadLocal<Extruder> EXTRUDER = ThreadLocal.withInitial(Extruder::new);
+
+    /**
+     * Vertices which define the building outline at ground level, counter-clockwise from above
+     */
+    private final List<Vector3> footprint;
+
+    /**
+     * Outlines of open courtyards inside the footprint, may be empty
+     */
+    private final List<List<Vector3>> courtyards;
+
+    private final int floors;
+    private final float floorHeight;
+
+    /**
+     * Window style of the facade, or null for plain walls
+     */
+    private final Window window;
+
+    // Outline and courtyards packed into one x, y coordinate array, with the first point of each courtyard
+    private final float[] xy;
+    private final int[] holeStarts;
+    private final int pointCount;
+
+    public Building(List<Vector3> footprint, int floors, float floorHeight) {
+        this(footprint, Collections.emptyList(), floors, floorHeight, null);
+    }
+
+    public Building(List<Vector3> footprint, List<List<Vector3>> courtyards, int floors, float floorHeight) {
+        this(footprint, courtyards, floors, floorHeight, null);
     }
 
+    public Building(List<Vector3> footprint, List<List<Vector3>> courtyards, int floors, float floorHeight,
+                    Window window) {
+        this.footprint = footprint;
+        this.courtyards = courtyards;
+        this.floors = floors;
+        this.floorHeight = floorHeight;
+        this.window = window;
 
+        int points = footprint.size();
+        for (List<Vector3> courtyard : courtyards) {
+            points += courtyard.size();
+        }
+        pointCount = points;
+        xy = new float[points * 2];
+        holeStarts = new int[courtyards.size()];
+        int p = pack(footprint, xy, 0);
+        for (int i = 0; i < holeStarts.length; i++) {
+            holeStarts[i] = p;
+            p = pack(courtyards.get(i), xy, p);
+        }
+    }
+
+    public int getFloors() { return floors; }
+
+    public boolean hasFacade() { return window != null && footprint.size() >= 3; }
+
+    /**
+     * Build a mesh of this building: a quad per wall segment per floor, around the outline and every courtyard,
+     * and a flat triangulated roof
+     * @param name name of the mesh
+     * @return new mesh
+     */
+    public Mesh toMesh(String name) {
+        return toMesh(name, true);
+    }
+
+    /**
+     * Build a mesh of this building
+     * @param name name of the mesh
+     * @param walls true to include plain walls, false for the roof alone, as under a facade
+     * @return new mesh
+     */
+    public Mesh toMesh(String name, boolean walls) {
+        Mesh m = new Mesh(name);
+        if (footprint.size() < 3) {
+            return m;
+        }
+
+        Extruder extruder = EXTRUDER.get();
+        for (int floor = 0; walls && floor < floors; floor++) {
+            float z0 = floor * floorHeight;
+            extruder.walls(m, xy, pointCount, holeStarts, holeStarts.length, z0, z0 + floorHeight, WALL_MATERIAL);
+        }
+        extruder.cap(m, xy, pointCount, holeStarts, holeStarts.length, floors * floorHeight, true, ROOF_MATERIAL);
+        return m;
+    }
+
+    /**
+     * Build the facade of this building out of shared modules: window bays around every floor and a
+     * cornice along the top. One floor is meshed and placed once per storey, and the cornice is placed
+     * on top, so the result is a handful of instances whatever the height of the building.
+     *
+     * @param name name of the building, instances are named after it
+     * @return facade instances, empty if the building has no facade
+     */
+    public MeshInstance[] facade(String name) {
+        return facade(name, null, null);
+    }
+
+    /**
+     * Build the facade of this building out of shared modules, with normals and vertex cache order. Only the
+     * modules are processed, placing them carries the normals and face order along.
+     *
+     * @param name name of the building, instances are named after it
+     * @param normals builder for the normals of the modules, or null for none
+     * @param optimizer optimizer for the vertex cache order of the modules, or null for none
+     * @return facade instances, empty if the building has no facade
+     */
+    public MeshInstance[] facade(String name, NormalBuilder normals, VertexCacheOptimizer optimizer) {
+        if (!hasFacade()) {
+            return new MeshInstance[0];
+        }
+        Mesh floor = new Floor()
+                .tile(FacadeLibrary.bay(window, floorHeight, normals, optimizer), FacadeLibrary.BAY_WIDTH,
+                        FacadeLibrary.pier(floorHeight, normals, optimizer))
+                .toMesh(name + "_Floor");
+        Mesh cornice = new Floor().tile(null, 0, FacadeLibrary.cornice(normals, optimizer)).toMesh(name + "_Cornice");
+
+        MeshInstance[] instances = new MeshInstance[floors + 1];
+        for (int k = 0; k < floors; k++) {
+            instances[k] = new MeshInstance(name + "_Floor" + k, floor, Transformation.translation(0, 0, k * floorHeight));
+        }
+        instances[floors] = new MeshInstance(name + "_Cornice", cornice,
+                Transformation.translation(0, 0, floors * floorHeight));
+        return instances;
+    }
+
+    private static int pack(List<Vector3> ring, float[] xy, int offset) {
+        for (Vector3 v : ring) {
+            xy[offset * 2] = v.getX();
+            xy[offset * 2 + 1] = v.getY();
+            offset++;
+        }
+        return offset;
+    }
 
 }
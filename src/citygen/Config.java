@@ -1,5 +1,70 @@
 package citygen;
 
+import citymesh.NormalBuilder;
+
+import java.nio.file.Path;
+
+/**
+ * Settings for city generation
+ */
 class Config {
 
-}
\ No newline at end of file
+    // Bump whenever generation changes, so cached buildings from older versions aren't reused
+    static final int GENERATOR_VERSION = 2;
+
+    // Global seed, every lot derives its own random stream from this and its shape
+    long seed = 0x5EEDC17FL;
+
+    // Building shape
+    int minFloors = 2;
+    int maxFloors = 12;
+    float floorHeight = 3.0f;
+
+    // Build walls from shared window bay modules instead of plain quads
+    boolean facades = false;
+
+    // Vertex normals and tangents: null for none, or flat or smooth with edges sharper than creaseAngle
+    // degrees kept hard
+    NormalBuilder.Mode normals = null;
+    float creaseAngle = 30.0f;
+
+    // Triangulate every level of detail and reorder it for the GPU's vertex cache
+    boolean optimizeVertexCache = false;
+
+    // Face count of each level of detail built below full detail, as a fraction of it; none if empty
+    float[] lodRatios = {};
+
+    // Number of threads generating buildings
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    // Maximum number of buildings generated but not yet exported, bounds memory use
+    int maxInFlight = threads * 4;
+
+    // Directory for caching finished buildings between runs, or null for no cache
+    Path cacheDir = null;
+
+    // Size the cache is kept under by evicting least recently used buildings
+    long cacheBytes = 256L << 20;
+
+    /**
+     * Hash of every setting that affects generated geometry, for cache keys.
+     * Threading and cache settings don't change the output and are left out.
+     */
+    long fingerprint() {
+        long h = Lot.mix(GENERATOR_VERSION);
+        h = Lot.mix(h ^ seed);
+        h = Lot.mix(h ^ minFloors);
+        h = Lot.mix(h ^ maxFloors);
+        h = Lot.mix(h ^ Float.floatToIntBits(floorHeight));
+        h = Lot.mix(h ^ (facades ? 1 : 0));
+        h = Lot.mix(h ^ (normals == null ? -1 : normals.ordinal()));
+        h = Lot.mix(h ^ Float.floatToIntBits(creaseAngle));
+        h = Lot.mix(h ^ (optimizeVertexCache ? 1 : 0));
+        h = Lot.mix(h ^ lodRatios.length);
+        for (float r : lodRatios) {
+            h = Lot.mix(h ^ Float.floatToIntBits(r));
+        }
+        return h;
+    }
+
+}
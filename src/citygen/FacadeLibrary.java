@@ -0,0 +1,87 @@
+package citygen;
+
+import citymesh.*;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pre-meshed facade modules shared by every building.
+ *
+ * Each distinct module is meshed once and then only placed by transformation, so the cost of meshing
+ * facades depends on the number of distinct modules rather than the number of bays in the city.
+ * Modules are built in a local frame with x along the wall, z up and the wall plane at y = 0, facing -y.
+ * Modules can carry normals, which are then only transformed along with them when placed, and can be ordered
+ * for the vertex cache, which placed copies keep since merging copies faces in bulk.
+ * Returned meshes are shared and must not be modified.
+ */
+final class FacadeLibrary {
+
+    // Width of one window bay before stretching to fit a wall
+    static final float BAY_WIDTH = 3.0f;
+
+    // Cornice running along the top of the walls
+    static final float CORNICE_HEIGHT = 0.6f;
+    static final float CORNICE_DEPTH = 0.3f;
+
+    private static final Map<Object, Mesh> modules = new ConcurrentHashMap<>();
+
+    private FacadeLibrary() {}
+
+    /**
+     * Window bay: one window in a BAY_WIDTH wide, one floor high piece of wall
+     * @param normals builder for the module's normals, or null for none
+     * @param optimizer optimizer for the module's vertex cache order, or null for none
+     */
+    static Mesh bay(Window window, float floorHeight, NormalBuilder normals, VertexCacheOptimizer optimizer) {
+        return modules.computeIfAbsent(
+                Arrays.asList("bay", window, floorHeight, normalsKey(normals), optimizer != null),
+                k -> finish(window.toMesh("Bay", BAY_WIDTH, floorHeight), normals, optimizer));
+    }
+
+    /**
+     * Pier: plain wall one unit wide and one floor high, for walls too narrow for a bay
+     * @param normals builder for the module's normals, or null for none
+     * @param optimizer optimizer for the module's vertex cache order, or null for none
+     */
+    static Mesh pier(float floorHeight, NormalBuilder normals, VertexCacheOptimizer optimizer) {
+        Object key = Arrays.asList("pier", floorHeight, normalsKey(normals), optimizer != null);
+        return modules.computeIfAbsent(key, k -> {
+            Mesh m = new Mesh("Pier");
+            Window.quad(m, Building.WALL_MATERIAL, 0, 0, 0, 1, 0, 0, 1, 0, floorHeight, 0, 0, floorHeight);
+            return finish(m, normals, optimizer);
+        });
+    }
+
+    /**
+     * Cornice: one unit long, projecting from the wall with a front, underside and top
+     * @param normals builder for the module's normals, or null for none
+     * @param optimizer optimizer for the module's vertex cache order, or null for none
+     */
+    static Mesh cornice(NormalBuilder normals, VertexCacheOptimizer optimizer) {
+        return modules.computeIfAbsent(Arrays.asList("cornice", normalsKey(normals), optimizer != null), k -> {
+            Mesh m = new Mesh("Cornice");
+            float h = CORNICE_HEIGHT, d = -CORNICE_DEPTH;
+            Window.quad(m, Building.WALL_MATERIAL, 0, d, 0, 1, d, 0, 1, d, h, 0, d, h);
+            Window.quad(m, Building.WALL_MATERIAL, 0, 0, 0, 1, 0, 0, 1, d, 0, 0, d, 0);
+            Window.quad(m, Building.ROOF_MATERIAL, 0, d, h, 1, d, h, 1, 0, h, 0, 0, h);
+            return finish(m, normals, optimizer);
+        });
+    }
+
+    private static Mesh finish(Mesh m, NormalBuilder normals, VertexCacheOptimizer optimizer) {
+        if (normals != null) {
+            normals.build(m);
+        }
+        if (optimizer != null) {
+            optimizer.optimize(m);
+        }
+        return m;
+    }
+
+    // Builders with the same settings give the same normals, so modules are shared between them
+    private static Object normalsKey(NormalBuilder normals) {
+        return normals == null ? "" : normals.getMode() + "/" + normals.getCreaseAngle();
+    }
+}
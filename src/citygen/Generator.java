@@ -2,8 +2,14 @@ package citygen;
 
 import citymesh.*;
 
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
 public class Generator {
     public static void main(String[] args) {
+        Metrics.setEnabled(true);
+
         Mesh m = new Mesh("Cube");
         Vector2[] uvs = new Vector2[]{
             new Vector2(0, 0),
@@ -22,7 +28,7 @@ public class Generator {
         );
         m.addFace(
                 new Vector3[] {
-                        new Vector3(-1, 1, 1)
+                        new Vector3(-1, 1, 1),
                         new Vector3(-1, -1, 1),
                         new Vector3(1, -1, 1),
                         new Vector3(1, 1, 1),
@@ -47,18 +53,71 @@ public class Generator {
                 },
                 uvs, 0
         );
+        new NormalBuilder(NormalBuilder.Mode.FLAT).build(m);
 
-        Exporter exp = new ObjExporter();
+        // Split the city into tiles of 4 x 4 lots, each written to its own file,
+        // and merge the objects in each tile into batches of up to 65536 vertices,
+        // dropping faces hidden between neighbours.
+        // The same objects also go to a single glb file and a single citymesh file,
+        // each written alongside on its own thread
+        Exporter exp = new TeeExporter(
+                new TiledExporter(() -> new BatchingExporter(new ObjExporter(), 1 << 16, new FaceCuller()), 112.0f, 112.0f),
+                new GlbExporter(),
+                new CitymeshExporter());
         if (!exp.init("export\\out"))  System.exit(1);
 
+        // Every cube shares the same mesh, only the placement differs
         for (int i = 0; i < 10; i++) {
-            Mesh dup = new Mesh("Cube " + i, m);
-            //dup.transform();
-            dup.transform(Transformation.translation(i* 3, 0, i).transform(Transformation.rotateZ(i / 3.0f)));
-            exp.appendMesh(dup);
+            Transformation t = Transformation.translation(i * 3, 0, i).mulRotationZ(i / 3.0f);
+            exp.appendInstance(new MeshInstance("Cube " + i, m, t));
         }
 
+        // Stream a block of buildings through generation and export, with window facades,
+        // two reduced levels of detail each, smooth normals keeping edges sharper than 30 degrees
+        // and triangles ordered for the vertex cache
+        Config config = new Config();
+        config.lodRatios = new float[] {0.5f, 0.25f};
+        config.facades = true;
+        config.normals = NormalBuilder.Mode.SMOOTH;
+        config.creaseAngle = 30.0f;
+        config.optimizeVertexCache = true;
+        config.cacheDir = Paths.get("export", "cache");
+        Pipeline pipeline = new Pipeline(config, exp);
+        if (!pipeline.run(lotGrid(20, 20, 20.0f, 8.0f))) System.exit(1);
+
         if (!exp.done()) System.exit(1);
+        System.out.print(Metrics.summary());
         System.exit(0);
     }
+
+    /**
+     * Lazily lay out a grid of square lots separated by streets
+     * @param columns lots along x
+     * @param rows lots along y
+     * @param size width of each lot
+     * @param street gap between lots
+     * @return iterator creating each lot on demand
+     */
+    static Iterator<Lot> lotGrid(int columns, int rows, float size, float street) {
+        return new Iterator<>() {
+            int next = 0;
+
+            public boolean hasNext() {
+                return next < columns * rows;
+            }
+
+            public Lot next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                float x = (next % columns) * (size + street);
+                float y = (next / columns) * (size + street) + 40.0f;
+                next++;
+                Lot lot = new Lot();
+                lot.addPoint(new Vector3(x, y));
+                lot.addPoint(new Vector3(x + size, y));
+                lot.addPoint(new Vector3(x + size, y + size));
+                lot.addPoint(new Vector3(x, y + size));
+                return lot;
+            }
+        };
+    }
 }
@@ -3,7 +3,9 @@ package citygen;
 import citymesh.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.SplittableRandom;
 
 public class Lot {
 
@@ -21,7 +23,62 @@ public class Lot {
     }
 
     public Building generateBuildings() {
+        Config config = new Config();
+        return generateBuildings(config, random(config.seed));
+    }
+
+    /**
+     * Generate the building on this lot
+     * @param config generation settings
+     * @param random random source belonging to this lot
+     * @return building filling the lot
+     */
+    Building generateBuildings(Config config, SplittableRandom random) {
+        int floors = random.nextInt(config.minFloors, config.maxFloors + 1);
+        // Drawn after the floor count, so buildings keep their height with facades on or off
+        Window window = Window.STYLES[random.nextInt(Window.STYLES.length)];
+        return new Building(vertices, Collections.emptyList(), floors, config.floorHeight,
+                config.facades ? window : null);
+    }
+
+    /**
+     * Identity of this lot, derived from its shape alone.
+     * Lots with the same vertices in the same order have the same identity.
+     */
+    public long identity() {
+        long h = vertices.size();
+        for (Vector3 v : vertices) {
+            h = mix(h ^ Float.floatToIntBits(v.getX() + 0.0f));
+            h = mix(h ^ Float.floatToIntBits(v.getY() + 0.0f));
+            h = mix(h ^ Float.floatToIntBits(v.getZ() + 0.0f));
+        }
+        return h;
+    }
+
+    /**
+     * Random source for this lot. It depends only on the seed and the lot's identity,
+     * so a lot generates the same building no matter which thread or in what order it runs.
+     * @param seed global seed
+     */
+    SplittableRandom random(long seed) {
+        return new SplittableRandom(mix(seed ^ mix(identity())));
+    }
+
+    /**
+     * Key for caching the building generated on this lot, covering its shape and all generation settings
+     */
+    long cacheKey(Config config) {
+        return mix(config.fingerprint() ^ mix(identity()));
+    }
 
+    // Murmur3 64-bit finalizer
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
     }
 
 }
@@ -0,0 +1,183 @@
+package citygen;
+
+import citymesh.*;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.*;
+
+/**
+ * Streams lots through building generation, meshing and export.
+ *
+ * Lots are pulled from an iterator only as room frees up, generated and meshed on a fork/join pool,
+ * and appended to the exporter in lot order. At most config.maxInFlight buildings exist at once and
+ * the pipeline keeps nothing after it is exported, so its own memory use doesn't depend on the number of
+ * lots. What exporters keep is up to them: glb and citymesh export keep a table entry per object until done,
+ * and tiled export keeps files, buffers and partial batches for each open tile, up to its limit of open
+ * tiles.
+ * Levels of detail, normals and vertex cache ordering, if configured, are done in the same task as the
+ * building they belong to.
+ * With facades on, the full-detail level is the building's roof with its facade placed around it as
+ * instances of shared modules, while lower levels are simplified from plain walls.
+ * With a cache directory configured, finished buildings are cached on disk by lot shape and settings,
+ * and lots found in the cache skip generation.
+ *
+ * Each lot draws from its own random stream derived from the seed and the lot's identity, and output
+ * is written in lot order, so the result is identical for any number of threads.
+ */
+public class Pipeline {
+
+    private final Config config;
+    private final Exporter exporter;
+    private final MeshCache cache;
+
+    Pipeline(Config config, Exporter exporter) {
+        this.config = config;
+        this.exporter = exporter;
+        this.cache = openCache(config);
+    }
+
+    private static MeshCache openCache(Config config) {
+        if (config.cacheDir == null) {
+            return null;
+        }
+        try {
+            return new MeshCache(config.cacheDir, config.cacheBytes);
+        } catch (IOException e) {
+            System.err.println("Failed to open building cache, generating everything: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Generate and export buildings for every lot
+     *
+     * @param lots lots to build on, consumed lazily
+     * @return true on success, false on failure
+     */
+    public boolean run(Iterator<Lot> lots) {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(config.threads, 1));
+        LodBuilder lods = new LodBuilder(config.lodRatios);
+        NormalBuilder normals = config.normals == null ? null : new NormalBuilder(config.normals, config.creaseAngle);
+        VertexCacheOptimizer optimizer = config.optimizeVertexCache ? new VertexCacheOptimizer() : null;
+        ArrayDeque<Future<Built>> pending = new ArrayDeque<>();
+        int index = 0;
+        try {
+            while (lots.hasNext()) {
+                if (pending.size() >= config.maxInFlight && !export(pending.poll())) {
+                    return false;
+                }
+                Lot lot = lots.next();
+                String name = "Building_" + index++;
+                pending.add(pool.submit(() -> build(lot, name, lods, normals, optimizer)));
+                Metrics.queueDepth(Metrics.Queue.PIPELINE, pending.size());
+            }
+            while (!pending.isEmpty()) {
+                if (!export(pending.poll())) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            for (Future<Built> f : pending) {
+                f.cancel(true);
+            }
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * A meshed building: its levels of detail and facade instances belonging to the full-detail level
+     */
+    private static final class Built {
+        final Mesh[] lods;
+        final MeshInstance[] facade;
+
+        Built(Mesh[] lods, MeshInstance[] facade) {
+            this.lods = lods;
+            this.facade = facade;
+        }
+    }
+
+    /**
+     * Generate and mesh the building on a lot, with its levels of detail, or read it from the cache.
+     * Facades aren't cached, since they are only placements of shared modules.
+     * Runs on the pool.
+     *
+     * @param normals builder for normals of every level, or null for none
+     * @param optimizer optimizer for the vertex cache order of every level and facade module, or null for none
+     */
+    private Built build(Lot lot, String name, LodBuilder lods, NormalBuilder normals, VertexCacheOptimizer optimizer) {
+        long key = 0;
+        if (cache != null) {
+            key = lot.cacheKey(config);
+            Mesh[] cached = cache.get(key);
+            if (cached != null) {
+                Metrics.add(Metrics.Counter.CACHE_HITS, 1);
+                // Entries are shared by lots of the same shape, so names come from this lot's position
+                cached[0].setName(name);
+                for (int level = 1; level < cached.length; level++) {
+                    cached[level].setName(LodBuilder.levelName(name, level));
+                }
+                MeshInstance[] facade = config.facades
+                        ? lot.generateBuildings(config, lot.random(config.seed)).facade(name, normals, optimizer)
+                        : new MeshInstance[0];
+                return new Built(cached, facade);
+            }
+            Metrics.add(Metrics.Counter.CACHE_MISSES, 1);
+        }
+
+        long start = Metrics.start();
+        Building building = lot.generateBuildings(config, lot.random(config.seed));
+        Mesh mesh = building.toMesh(name);
+        MeshInstance[] facade = building.facade(name, normals, optimizer);
+        Metrics.end(Metrics.Stage.GENERATE, start);
+        Metrics.add(Metrics.Counter.VERTICES, mesh.vertexCount());
+        Metrics.add(Metrics.Counter.FACES, mesh.faceCount());
+
+        start = Metrics.start();
+        Mesh[] chain = lods.build(mesh);
+        Metrics.end(Metrics.Stage.LOD, start);
+        if (facade.length > 0) {
+            // The facade stands in for the plain walls at full detail
+            chain[0] = building.toMesh(name, false);
+        }
+        if (normals != null) {
+            for (Mesh level : chain) {
+                normals.build(level);
+            }
+        }
+        if (optimizer != null) {
+            for (Mesh level : chain) {
+                optimizer.optimize(level);
+            }
+        }
+        if (cache != null) {
+            cache.put(key, chain);
+        }
+        return new Built(chain, facade);
+    }
+
+    /**
+     * Wait for a building to be meshed and pass it to the exporter
+     * @return true on success, false on failure
+     */
+    private boolean export(Future<Built> building) {
+        try {
+            Built built = building.get();
+            Mesh[] lods = built.lods;
+            long start = Metrics.start();
+            boolean ok = built.facade.length > 0 ? exporter.appendLods(lods, built.facade)
+                    : lods.length == 1 ? exporter.appendMesh(lods[0]) : exporter.appendLods(lods);
+            Metrics.end(Metrics.Stage.EXPORT, start);
+            return ok;
+        } catch (ExecutionException e) {
+            System.err.println("Failed to generate building!");
+            e.getCause().printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+}
@@ -1,5 +1,90 @@
 package citygen;
 
+import citymesh.*;
+
+/**
+ * Window style: a recessed opening centered in a bay of wall one floor high
+ */
 public class Window {
 
+    // Styles buildings pick from
+    static final Window[] STYLES = {
+        new Window(1.2f, 1.5f, 0.9f, 0.15f),
+        new Window(2.0f, 1.8f, 0.7f, 0.2f),
+        new Window(0.9f, 2.1f, 0.4f, 0.1f)
+    };
+
+    private final float width, height, sill, depth;
+
+    /**
+     * @param width width of the opening
+     * @param height height of the opening
+     * @param sill height of the bottom of the opening above the floor
+     * @param depth how far the glass is recessed behind the wall
+     */
+    public Window(float width, float height, float sill, float depth) {
+        this.width = width;
+        this.height = height;
+        this.sill = sill;
+        this.depth = depth;
+    }
+
+    /**
+     * Build a bay module with this window.
+     * The wall lies on the xz plane from x = 0 to bayWidth and z = 0 to floorHeight and faces -y;
+     * the window's reveals and glass go into +y.
+     *
+     * @param name name of the mesh
+     * @param bayWidth width of the bay
+     * @param floorHeight height of the bay
+     * @return new mesh
+     */
+    public Mesh toMesh(String name, float bayWidth, float floorHeight) {
+        Mesh m = new Mesh(name);
+        float x0 = (bayWidth - Math.min(width, bayWidth * 0.8f)) * 0.5f, x1 = bayWidth - x0;
+        float z0 = Math.min(sill, floorHeight * 0.5f), z1 = Math.min(z0 + height, floorHeight * 0.9f);
+        float d = depth;
+
+        // Wall around the opening
+        wall(m, 0, x0, 0, floorHeight);
+        wall(m, x1, bayWidth, 0, floorHeight);
+        wall(m, x0, x1, 0, z0);
+        wall(m, x0, x1, z1, floorHeight);
+
+        // Reveals: sill facing up, head facing down, jambs facing the opening
+        quad(m, Building.WALL_MATERIAL, x0, 0, z0, x1, 0, z0, x1, d, z0, x0, d, z0);
+        quad(m, Building.WALL_MATERIAL, x0, d, z1, x1, d, z1, x1, 0, z1, x0, 0, z1);
+        quad(m, Building.WALL_MATERIAL, x0, 0, z0, x0, d, z0, x0, d, z1, x0, 0, z1);
+        quad(m, Building.WALL_MATERIAL, x1, d, z0, x1, 0, z0, x1, 0, z1, x1, d, z1);
+
+        // Glass
+        m.addFace(
+            new Vector3[] {
+                new Vector3(x0, d, z0), new Vector3(x1, d, z0), new Vector3(x1, d, z1), new Vector3(x0, d, z1)
+            },
+            new Vector2[] {new Vector2(0, 0), new Vector2(1, 0), new Vector2(1, 1), new Vector2(0, 1)},
+            Building.GLASS_MATERIAL
+        );
+        return m;
+    }
+
+    // Wall rectangle on the facade plane, uv matching the plain walls
+    private static void wall(Mesh m, float x0, float x1, float z0, float z1) {
+        quad(m, Building.WALL_MATERIAL, x0, 0, z0, x1, 0, z0, x1, 0, z1, x0, 0, z1);
+    }
+
+    // Quad with uvs from its x or y extent and height
+    static void quad(Mesh m, int material, float ax, float ay, float az, float bx, float by, float bz,
+                     float cx, float cy, float cz, float dx, float dy, float dz) {
+        // Along whichever horizontal axis the quad spans
+        boolean alongX = ax != bx || ax != dx;
+        m.addFace(
+            new Vector3[] {new Vector3(ax, ay, az), new Vector3(bx, by, bz), new Vector3(cx, cy, cz), new Vector3(dx, dy, dz)},
+            new Vector2[] {
+                new Vector2(alongX ? ax : ay, az), new Vector2(alongX ? bx : by, bz),
+                new Vector2(alongX ? cx : cy, cz), new Vector2(alongX ? dx : dy, dz)
+            },
+            material
+        );
+    }
 }
@@ -0,0 +1,149 @@
+package citymesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Growable byte buffer for writing text formats without going through PrintStream or Formatter.
+ * Numbers are formatted straight into the buffer; the contents are written out to a channel in large blocks.
+ */
+class AsciiBuffer {
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+
+    // Powers of ten up to the largest precision formatted without falling back to Formatter
+    private static final int MAX_FAST_PRECISION = 9;
+    private static final long[] POW10 = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+
+    private byte[] bytes;
+    private int size;
+
+    AsciiBuffer(int capacity) {
+        bytes = new byte[Math.max(capacity, 64)];
+    }
+
+    int size() { return size; }
+
+    void clear() { size = 0; }
+
+    AsciiBuffer append(char c) {
+        ensureCapacity(size + 1);
+        bytes[size++] = (byte)c;
+        return this;
+    }
+
+    /**
+     * Append a string. Plain ASCII is copied directly, anything else is encoded with the default charset.
+     */
+    AsciiBuffer append(String s) {
+        int len = s.length();
+        ensureCapacity(size + len);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                return appendBytes(s.getBytes());
+            }
+            bytes[size + i] = (byte)c;
+        }
+        size += len;
+        return this;
+    }
+
+    AsciiBuffer appendBytes(byte[] b) {
+        ensureCapacity(size + b.length);
+        System.arraycopy(b, 0, bytes, size, b.length);
+        size += b.length;
+        return this;
+    }
+
+    AsciiBuffer append(AsciiBuffer other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.bytes, 0, bytes, size, other.size);
+        size += other.size;
+        return this;
+    }
+
+    AsciiBuffer newline() {
+        return appendBytes(NEWLINE);
+    }
+
+    AsciiBuffer append(int i) {
+        return append((long)i);
+    }
+
+    AsciiBuffer append(long l) {
+        ensureCapacity(size + 20);
+        if (l < 0) {
+            if (l == Long.MIN_VALUE) return append(Long.toString(l));
+            bytes[size++] = '-';
+            l = -l;
+        }
+        appendDigits(l, 1);
+        return this;
+    }
+
+    /**
+     * Append a float with a fixed number of decimals, giving the same text as
+     * String.format(Locale.ROOT, "%.{precision}f", f)
+     */
+    AsciiBuffer appendFixed(float f, int precision) {
+        double a = Math.abs((double)f);
+        if (precision > MAX_FAST_PRECISION || !(a < 1e9)) {
+            return append(String.format(Locale.ROOT, "%." + precision + "f", f));
+        }
+        // A float times 10^precision needs at most 24 + 21 significant bits, so this product is exact
+        // and rounding half up here matches Formatter, which rounds half up on the decimal expansion
+        double scaled = a * POW10[precision];
+        double whole = Math.floor(scaled);
+        long r = (long)whole + (scaled - whole >= 0.5 ? 1 : 0);
+
+        ensureCapacity(size + 12 + precision);
+        // Formatter keeps the sign of negative zero and of negative values that round to zero
+        if (Float.floatToRawIntBits(f) < 0) {
+            bytes[size++] = '-';
+        }
+        long pow = POW10[precision];
+        appendDigits(r / pow, 1);
+        if (precision > 0) {
+            bytes[size++] = '.';
+            appendDigits(r % pow, precision);
+        }
+        return this;
+    }
+
+    /**
+     * Write the buffer contents to a channel and clear the buffer
+     */
+    void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes, 0, size);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        size = 0;
+    }
+
+    // Writes a non-negative number zero-padded to at least the given width. Capacity must already be ensured.
+    private void appendDigits(long l, int width) {
+        int digits = 1;
+        for (long t = l / 10; t != 0; t /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, width);
+        for (int i = size + digits - 1; i >= size; i--) {
+            bytes[i] = (byte)('0' + l % 10);
+            l /= 10;
+        }
+        size += digits;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package citymesh;
+
+import java.util.Arrays;
+
+/**
+ * Growable array of packed float tuples (positions, uvs), indexed by ID.
+ * Keeps a primitive open-addressing hash index so exact duplicates can be found without boxing.
+ */
+class AttributeArray {
+
+    // Number of floats per tuple, 2 or 3
+    final int stride;
+
+    // Packed tuples, tuple i starts at i * stride
+    float[] data;
+    int size;
+
+    // Open-addressing table holding ID + 1 for each slot, 0 means empty.
+    // Invalidated when data is modified in place and rebuilt on the next lookup.
+    private int[] table;
+    private boolean indexed;
+
+    // Grid for tolerance lookups, built on first use for a given tolerance
+    private SpatialHash grid;
+
+    AttributeArray(int stride) {
+        this(stride, 16);
+    }
+
+    AttributeArray(int stride, int capacity) {
+        this.stride = stride;
+        data = new float[Math.max(capacity, 1) * stride];
+        table = new int[tableSizeFor(capacity)];
+        indexed = true;
+    }
+
+    int size() { return size; }
+
+    float get(int id, int component) {
+        return data[id * stride + component];
+    }
+
+    /**
+     * Append a tuple without checking for duplicates
+     * @return ID of the new tuple
+     */
+    int add(float x, float y, float z) {
+        ensureCapacity(size + 1);
+        int base = size * stride;
+        data[base] = x;
+        data[base + 1] = y;
+        if (stride > 2) data[base + 2] = z;
+        int id = size++;
+        if (indexed) {
+            if (size * 2 > table.length) {
+                rehash();
+            } else {
+                insert(id);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Find the ID of an exactly matching tuple
+     * @return ID, or -1 if not present
+     */
+    int find(float x, float y, float z) {
+        if (!indexed) rehash();
+        int mask = table.length - 1;
+        int collisions = 0;
+        for (int slot = hash(x, y, z) & mask; ; slot = (slot + 1) & mask, collisions++) {
+            int entry = table[slot];
+            if (entry == 0 || matches(entry - 1, x, y, z)) {
+                if (collisions > 0) Metrics.add(Metrics.Counter.HASH_COLLISIONS, collisions);
+                return entry - 1;
+            }
+        }
+    }
+
+    /**
+     * Find the ID of the nearest tuple closer than the tolerance
+     * @return ID, or -1 if there is none
+     */
+    int findNear(float x, float y, float z, float tolerance) {
+        if (grid == null || grid.cellSize != tolerance) {
+            grid = new SpatialHash(this, tolerance);
+        }
+        return grid.findNearest(x, y, z);
+    }
+
+    /**
+     * Get ID of a tuple, adding it if it doesn't exist
+     */
+    int getOrAdd(float x, float y, float z) {
+        int id = find(x, y, z);
+        countLookup(id >= 0);
+        return id >= 0 ? id : add(x, y, z);
+    }
+
+    /**
+     * Get ID of the nearest tuple closer than the tolerance, adding the tuple if there is none
+     */
+    int getOrAddNear(float x, float y, float z, float tolerance) {
+        int id = findNear(x, y, z, tolerance);
+        countLookup(id >= 0);
+        return id >= 0 ? id : add(x, y, z);
+    }
+
+    private void countLookup(boolean hit) {
+        if (Metrics.isEnabled()) {
+            Metrics.add(stride == 3 ? Metrics.Counter.VERTEX_LOOKUPS : Metrics.Counter.UV_LOOKUPS, 1);
+            if (hit) Metrics.add(stride == 3 ? Metrics.Counter.VERTEX_HITS : Metrics.Counter.UV_HITS, 1);
+        }
+    }
+
+    /**
+     * Append all tuples of another array without checking for duplicates
+     * @return ID of the first appended tuple
+     */
+    int addAll(AttributeArray other) {
+        int offset = size;
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.data, 0, data, size * stride, other.size * stride);
+        size += other.size;
+        // Rebuilt on the next exact lookup; the grid picks up new tuples by itself
+        indexed = false;
+        return offset;
+    }
+
+    /**
+     * Append all xyz tuples of another array, transforming them as they are copied. Stride must be 3.
+     * @return ID of the first appended tuple
+     */
+    int addAll(AttributeArray other, Transformation t) {
+        int offset = size;
+        ensureCapacity(size + other.size);
+        t.transformPoints(other.data, 0, data, size * stride, other.size);
+        size += other.size;
+        indexed = false;
+        return offset;
+    }
+
+    /**
+     * Make sure there is room for the given number of tuples
+     */
+    void ensureCapacity(int tuples) {
+        if (tuples * stride > data.length) {
+            data = Arrays.copyOf(data, Math.max(tuples, size * 2) * stride);
+        }
+    }
+
+    /**
+     * Call after modifying data in place so the index gets rebuilt when next needed
+     */
+    void invalidate() {
+        indexed = false;
+        grid = null;
+    }
+
+    /**
+     * Rebuild the hash index from data. When tuples have become equal the lowest ID wins.
+     */
+    private void rehash() {
+        int len = tableSizeFor(size);
+        if (table.length != len) {
+            table = new int[len];
+        } else {
+            Arrays.fill(table, 0);
+        }
+        indexed = true;
+        for (int id = 0; id < size; id++) {
+            insert(id);
+        }
+    }
+
+    private void insert(int id) {
+        int base = id * stride;
+        float x = data[base], y = data[base + 1], z = stride > 2 ? data[base + 2] : 0;
+        int mask = table.length - 1;
+        for (int slot = hash(x, y, z) & mask; ; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0) {
+                table[slot] = id + 1;
+                return;
+            }
+            if (matches(entry - 1, x, y, z)) return;
+        }
+    }
+
+    private boolean matches(int id, float x, float y, float z) {
+        int base = id * stride;
+        return data[base] == x && data[base + 1] == y && (stride < 3 || data[base + 2] == z);
+    }
+
+    private static int hash(float x, float y, float z) {
+        // Adding 0 turns -0 into +0 so the hash agrees with == comparison
+        int h = Float.floatToIntBits(x + 0.0f);
+        h = h * 31 + Float.floatToIntBits(y + 0.0f);
+        h = h * 31 + Float.floatToIntBits(z + 0.0f);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    // Table size keeping the load factor at or below one half
+    private static int tableSizeFor(int tuples) {
+        return Math.max(16, Integer.highestOneBit(Math.max(tuples, 1) * 2 - 1) << 1);
+    }
+}
@@ -0,0 +1,146 @@
+package citymesh;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Exporter which merges appended objects into large batches before passing them on to another exporter.
+ *
+ * Objects are copied into the current batch with their transformation applied, in bulk buffer copies with
+ * index offsetting. Faces in a mesh are kept per material, so each batch holds one combined face list per
+ * material. A batch is passed on once adding the next object would take it over the vertex limit, so
+ * the output has few large objects rather than one per building or instance.
+ * LOD chains are batched level by level and passed on as one chain per batch; their detail instances
+ * are baked into the full-detail level. With a culler, faces hidden between neighbouring objects of a batch,
+ * such as the shared walls of row houses, are removed from each level before it is passed on.
+ */
+public class BatchingExporter implements Exporter {
+
+    private static final MeshInstance[] NO_DETAILS = new MeshInstance[0];
+
+    private final Exporter target;
+    private final int maxVertices;
+    private final FaceCuller culler;
+
+    // Batch being filled, one mesh per level of detail
+    private Mesh[] batch;
+    private int batchCount;
+
+    /**
+     * @param target exporter to pass finished batches to
+     * @param maxVertices vertex limit of a batch; single objects above it are passed on in a batch of their own
+     */
+    public BatchingExporter(Exporter target, int maxVertices) {
+        this(target, maxVertices, null);
+    }
+
+    /**
+     * @param target exporter to pass finished batches to
+     * @param maxVertices vertex limit of a batch; single objects above it are passed on in a batch of their own
+     * @param culler culler for hidden faces in each batch, or null to keep every face
+     */
+    public BatchingExporter(Exporter target, int maxVertices, FaceCuller culler) {
+        this.target = target;
+        this.maxVertices = maxVertices;
+        this.culler = culler;
+    }
+
+    @Override
+    public boolean init(String filename) {
+        return target.init(filename);
+    }
+
+    /**
+     * Pass on the last batch and finish the target exporter
+     *
+     * @return true on success, false on failures
+     */
+    @Override
+    public synchronized boolean done() {
+        boolean ok = flush();
+        return target.done() && ok;
+    }
+
+    @Override
+    public List<Path> files() {
+        return target.files();
+    }
+
+    @Override
+    public synchronized boolean appendMesh(Mesh m) {
+        return add(new Mesh[] {m}, null, NO_DETAILS);
+    }
+
+    @Override
+    public synchronized boolean appendInstance(MeshInstance instance) {
+        return add(new Mesh[] {instance.getMesh()}, instance.getTransformation(), NO_DETAILS);
+    }
+
+    @Override
+    public synchronized boolean appendLods(Mesh[] lods) {
+        return add(lods, null, NO_DETAILS);
+    }
+
+    @Override
+    public synchronized boolean appendLods(Mesh[] lods, MeshInstance[] details) {
+        return add(lods, null, details);
+    }
+
+    /**
+     * Copy an object into the current batch, passing the batch on first if the object doesn't fit
+     * @return true on success, false on failure
+     */
+    private boolean add(Mesh[] lods, Transformation t, MeshInstance[] details) {
+        long start = Metrics.start();
+        boolean ok = true;
+        int vertices = lods[0].vertexCount();
+        for (MeshInstance instance : details) {
+            vertices += instance.getMesh().vertexCount();
+        }
+        if (batch != null && (batch.length != lods.length
+                || batch[0].vertexCount() + vertices > maxVertices)) {
+            ok = flush();
+        }
+        if (batch == null) {
+            String name = "Batch_" + batchCount++;
+            batch = new Mesh[lods.length];
+            batch[0] = new Mesh(name);
+            for (int level = 1; level < lods.length; level++) {
+                batch[level] = new Mesh(LodBuilder.levelName(name, level));
+            }
+        }
+        for (int level = 0; level < lods.length; level++) {
+            if (t != null) {
+                batch[level].append(lods[level], t);
+            } else {
+                batch[level].append(lods[level], 0);
+            }
+        }
+        // Detail instances are baked into the full-detail level only
+        for (MeshInstance instance : details) {
+            batch[0].append(instance.getMesh(), instance.getTransformation());
+        }
+        Metrics.end(Metrics.Stage.BATCH, start);
+        return ok;
+    }
+
+    /**
+     * Pass the current batch on to the target exporter
+     * @return true on success, false on failure
+     */
+    private boolean flush() {
+        if (batch == null) {
+            return true;
+        }
+        Mesh[] finished = batch;
+        batch = null;
+        if (culler != null) {
+            for (Mesh level : finished) {
+                if (culler.cull(level) > 0) {
+                    level.compact();
+                }
+            }
+        }
+        return finished.length == 1 ? target.appendMesh(finished[0]) : target.appendLods(finished);
+    }
+}
@@ -0,0 +1,285 @@
+package citymesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exporter which writes the native binary citymesh format, read back with CitymeshFile.
+ *
+ * Meshes are encoded with MeshCodec and streamed to the file as they are appended, so only the object table
+ * is kept in memory. Meshes shared by several instances are written once. done() writes the object table,
+ * with each object's name, mesh, transformation and place in its level of detail chain, and fills in
+ * the header:
+ * <pre>
+ *     int magic "CMSH", int version, int flags (1 = quantized), int reserved, long indexOffset
+ *     meshes, one after another
+ *     at indexOffset: int meshCount, int objectCount, long[meshCount] mesh offsets,
+ *                     per object: int mesh, int parent, int level, int hasMatrix, float[16] row-major
+ *                     matrix if it has one, int nameLength, UTF-8 name padded to 4 bytes
+ * </pre>
+ * Objects of a LOD chain have the full-detail object as parent and their level; detail instances
+ * belonging to the full-detail level have it as parent and level 0.
+ */
+public class CitymeshExporter implements Exporter {
+
+    static final int MAGIC = 0x48534D43;   // "CMSH"
+    static final int VERSION = 2;
+    static final int QUANTIZED = 1;
+    static final int HEADER_SIZE = 24;
+
+    private final boolean quantize;
+
+    private Path path;
+    private FileChannel file;
+    private long position;
+    private ByteBuffer scratch = ByteBuffer.allocate(1 << 16);
+
+    // Offset of each written mesh, and the index of meshes shared by instances
+    private long[] meshOffsets = new long[64];
+    private int meshCount;
+    private final Map<Mesh, Integer> shared = new IdentityHashMap<>();
+
+    private final List<Node> nodes = new ArrayList<>();
+
+    public CitymeshExporter() {
+        this(false);
+    }
+
+    /**
+     * @param quantize true to store positions and uvs as 16 bits per component relative to each mesh's bounds,
+     *                 halving their size at some loss of precision
+     */
+    public CitymeshExporter(boolean quantize) {
+        this.quantize = quantize;
+    }
+
+    /**
+     * Get ready to export. Call only once!
+     *
+     * @param filename file name to export to excluding extension
+     */
+    @Override
+    public boolean init(String filename) {
+        try {
+            path = Paths.get(filename + ".citymesh");
+            file = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            // Header is filled in by done()
+            position = HEADER_SIZE;
+            file.position(position);
+        } catch (IOException e) {
+            System.out.println("Failed to initialize output stream!");
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write the object table and header, and close the file
+     *
+     * @return true on success, false on failures
+     */
+    @Override
+    public synchronized boolean done() {
+        if (file == null) {
+            return false;
+        }
+        boolean ok = true;
+        try {
+            long indexOffset = position;
+            ByteBuffer buf = buffer(8 + meshCount * 8L);
+            buf.putInt(meshCount).putInt(nodes.size());
+            for (int i = 0; i < meshCount; i++) {
+                buf.putLong(meshOffsets[i]);
+            }
+            write(buf);
+            for (Node node : nodes) {
+                byte[] name = node.name.getBytes(StandardCharsets.UTF_8);
+                buf = buffer(24 + 64 + pad(name.length));
+                buf.putInt(node.mesh).putInt(node.parent).putInt(node.level).putInt(node.matrix != null ? 1 : 0);
+                if (node.matrix != null) {
+                    for (float f : node.matrix) {
+                        buf.putFloat(f);
+                    }
+                }
+                buf.putInt(name.length).put(name);
+                buf.position(pad(buf.position()));
+                write(buf);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(quantize ? QUANTIZED : 0).putInt(0).putLong(indexOffset);
+            header.flip();
+            file.write(header, 0);
+            Metrics.add(Metrics.Counter.CITYMESH_BYTES, HEADER_SIZE);
+        } catch (IOException e) {
+            System.out.println("Failed to write object table!");
+            System.err.println("IO exception: " + e.getMessage());
+            ok = false;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close output stream!");
+            System.err.println("IO exception: " + e.getMessage());
+            ok = false;
+        }
+        file = null;
+        return ok;
+    }
+
+    @Override
+    public List<Path> files() {
+        return path == null ? Collections.emptyList() : List.of(path);
+    }
+
+    @Override
+    public synchronized boolean appendMesh(Mesh m) {
+        int mesh = writeMesh(m);
+        if (mesh < 0) {
+            return false;
+        }
+        nodes.add(new Node(m.getName(), mesh, -1, 0, null));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean appendInstance(MeshInstance instance) {
+        return addInstance(instance, -1);
+    }
+
+    @Override
+    public boolean appendLods(Mesh[] lods) {
+        return appendLods(lods, new MeshInstance[0]);
+    }
+
+    /**
+     * Export a LOD chain with the full-detail object as parent of the other levels and of the details
+     *
+     * @param lods full-detail mesh followed by decreasing levels of detail
+     * @param details instances which are part of the full-detail level only
+     * @return true on success, false on failure
+     */
+    @Override
+    public synchronized boolean appendLods(Mesh[] lods, MeshInstance[] details) {
+        int parent = nodes.size();
+        if (!appendMesh(lods[0])) {
+            return false;
+        }
+        for (int level = 1; level < lods.length; level++) {
+            int mesh = writeMesh(lods[level]);
+            if (mesh < 0) {
+                return false;
+            }
+            nodes.add(new Node(lods[level].getName(), mesh, parent, level, null));
+        }
+        for (MeshInstance instance : details) {
+            if (!addInstance(instance, parent)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean addInstance(MeshInstance instance, int parent) {
+        Integer mesh = shared.get(instance.getMesh());
+        if (mesh == null) {
+            mesh = writeMesh(instance.getMesh());
+            if (mesh < 0) {
+                return false;
+            }
+            shared.put(instance.getMesh(), mesh);
+        }
+        float[] matrix = instance.getTransformation().elements.clone();
+        nodes.add(new Node(instance.getName(), mesh, parent, 0, matrix));
+        return true;
+    }
+
+    /**
+     * Encode a mesh and append it to the file
+     * @return index of the mesh, or -1 on failure
+     */
+    private int writeMesh(Mesh m) {
+        if (file == null) {
+            System.err.println("Failed to export mesh" + m + "!");
+            return -1;
+        }
+        long start = Metrics.start();
+        ByteBuffer buf;
+        try {
+            buf = buffer(MeshCodec.encodedSize(m, quantize));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Failed to export mesh " + m.getName() + ": " + e.getMessage());
+            return -1;
+        }
+        MeshCodec.encode(m, buf, quantize);
+        Metrics.end(Metrics.Stage.ENCODE, start);
+        if (meshCount == meshOffsets.length) {
+            meshOffsets = Arrays.copyOf(meshOffsets, meshCount * 2);
+        }
+        meshOffsets[meshCount] = position;
+        try {
+            write(buf);
+        } catch (IOException e) {
+            System.err.println("IO exception: " + e.getMessage());
+            return -1;
+        }
+        return meshCount++;
+    }
+
+    // Cleared scratch buffer with room for the given number of bytes
+    private ByteBuffer buffer(long size) {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Mesh too large to encode: " + size + " bytes");
+        }
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate((int)Math.max(size, Math.min(scratch.capacity() * 2L, Integer.MAX_VALUE - 8)));
+        }
+        scratch.clear();
+        return scratch.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+        long start = Metrics.start();
+        buf.flip();
+        Metrics.add(Metrics.Counter.CITYMESH_BYTES, buf.remaining());
+        while (buf.hasRemaining()) {
+            position += file.write(buf);
+        }
+        Metrics.end(Metrics.Stage.WRITE, start);
+    }
+
+    private static int pad(int length) {
+        return (length + 3) & ~3;
+    }
+
+    /**
+     * Entry of the object table
+     */
+    private static class Node {
+        final String name;
+        final int mesh, parent, level;
+        final float[] matrix;
+
+        Node(String name, int mesh, int parent, int level, float[] matrix) {
+            this.name = name;
+            this.mesh = mesh;
+            this.parent = parent;
+            this.level = level;
+            this.matrix = matrix;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package citymesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reader for files written by CitymeshExporter.
+ *
+ * Only the header and object table are read when a file is opened. Meshes are memory-mapped and exposed as
+ * MeshViews over the mapped bytes, so nothing is copied until a mesh is converted with toMesh(), and the
+ * operating system pages in only what is actually read. As a single mapping is limited to 2 GB, larger files
+ * are mapped in several segments, each holding whole meshes. Safe to use from several threads.
+ */
+public final class CitymeshFile {
+
+    // Largest region mapped at once
+    private static final long MAX_SEGMENT = Integer.MAX_VALUE;
+
+    private final boolean quantized;
+    private final Node[] nodes;
+
+    // Mapped segments, and the segment and position within it of each mesh
+    private final ByteBuffer[] segments;
+    private final int[] meshSegment, meshPosition;
+
+    private CitymeshFile(boolean quantized, Node[] nodes, ByteBuffer[] segments, int[] meshSegment,
+                         int[] meshPosition) {
+        this.quantized = quantized;
+        this.nodes = nodes;
+        this.segments = segments;
+        this.meshSegment = meshSegment;
+        this.meshPosition = meshPosition;
+    }
+
+    /**
+     * Map a file and read its object table
+     * @param path file to open
+     * @return the opened file
+     * @throws IOException if the file can't be read or isn't a valid citymesh file
+     */
+    public static CitymeshFile open(Path path) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            ByteBuffer header = read(file, 0, (int)Math.min(size, CitymeshExporter.HEADER_SIZE));
+            if (header.remaining() < CitymeshExporter.HEADER_SIZE || header.getInt(0) != CitymeshExporter.MAGIC) {
+                throw new IllegalArgumentException("Not a citymesh file");
+            }
+            if (header.getInt(4) != CitymeshExporter.VERSION) {
+                throw new IllegalArgumentException("Unsupported version " + header.getInt(4));
+            }
+            boolean quantized = (header.getInt(8) & CitymeshExporter.QUANTIZED) != 0;
+            long indexOffset = header.getLong(16);
+            if (indexOffset < CitymeshExporter.HEADER_SIZE || indexOffset > size - 8) {
+                throw new IllegalArgumentException("Object table out of range");
+            }
+            if (size - indexOffset > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Object table too large");
+            }
+
+            ByteBuffer index = read(file, indexOffset, (int)(size - indexOffset));
+            int meshCount = count(index, index.getInt(), 8);
+            int nodeCount = count(index, index.getInt(), 24);
+            long[] meshOffsets = new long[meshCount];
+            for (int i = 0; i < meshCount; i++) {
+                meshOffsets[i] = index.getLong();
+                if (meshOffsets[i] < CitymeshExporter.HEADER_SIZE || meshOffsets[i] >= indexOffset) {
+                    throw new IllegalArgumentException("Mesh offset out of range");
+                }
+            }
+            Node[] nodes = new Node[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                int mesh = index.getInt(), parent = index.getInt(), level = index.getInt();
+                float[] matrix = null;
+                if (index.getInt() != 0) {
+                    matrix = new float[16];
+                    index.asFloatBuffer().get(matrix);
+                    index.position(index.position() + 64);
+                }
+                byte[] name = new byte[count(index, index.getInt(), 1)];
+                index.get(name);
+                index.position((index.position() + 3) & ~3);
+                if (mesh < 0 || mesh >= meshCount || parent < -1 || parent >= i || level < 0) {
+                    throw new IllegalArgumentException("Object " + i + " out of range");
+                }
+                nodes[i] = new Node(new String(name, StandardCharsets.UTF_8), mesh, parent, level, matrix);
+            }
+
+            // Each mesh runs up to the next one, the last up to the object table. Segments are started
+            // whenever the next mesh would take the current one over the mapping limit.
+            long[] starts = meshOffsets.clone();
+            Arrays.sort(starts);
+            long[] segmentStarts = new long[meshCount];
+            long[] segmentEnds = new long[meshCount];
+            int segmentCount = 0;
+            for (int i = 0; i < meshCount; i++) {
+                long end = i + 1 < meshCount ? starts[i + 1] : indexOffset;
+                if (end - starts[i] > MAX_SEGMENT) {
+                    throw new IllegalArgumentException("Mesh too large to map");
+                }
+                if (segmentCount == 0 || end - segmentStarts[segmentCount - 1] > MAX_SEGMENT) {
+                    segmentStarts[segmentCount++] = starts[i];
+                }
+                segmentEnds[segmentCount - 1] = end;
+            }
+            ByteBuffer[] segments = new ByteBuffer[segmentCount];
+            for (int s = 0; s < segmentCount; s++) {
+                segments[s] = file.map(FileChannel.MapMode.READ_ONLY, segmentStarts[s],
+                        segmentEnds[s] - segmentStarts[s]).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            int[] meshSegment = new int[meshCount], meshPosition = new int[meshCount];
+            for (int i = 0; i < meshCount; i++) {
+                int s = Arrays.binarySearch(segmentStarts, 0, segmentCount, meshOffsets[i]);
+                s = s >= 0 ? s : -s - 2;
+                meshSegment[i] = s;
+                meshPosition[i] = (int)(meshOffsets[i] - segmentStarts[s]);
+            }
+            return new CitymeshFile(quantized, nodes, segments, meshSegment, meshPosition);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed citymesh file " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    public boolean isQuantized() { return quantized; }
+    public int meshCount() { return meshSegment.length; }
+    public int nodeCount() { return nodes.length; }
+    public Node getNode(int i) { return nodes[i]; }
+
+    /**
+     * View a mesh in place
+     * @param i index of the mesh
+     * @return a view over the mapped file
+     * @throws IllegalArgumentException if the mesh data is malformed
+     */
+    public MeshView mesh(int i) {
+        ByteBuffer buf = segments[meshSegment[i]].duplicate();
+        buf.position(meshPosition[i]);
+        return MeshCodec.view(buf, quantized);
+    }
+
+    /**
+     * Copy a mesh out of the file
+     * @param i index of the mesh
+     * @return new mesh
+     * @throws IllegalArgumentException if the mesh data is malformed
+     */
+    public Mesh toMesh(int i) {
+        return mesh(i).toMesh();
+    }
+
+    // Read part of a file into the heap
+    private static ByteBuffer read(FileChannel file, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (file.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        return buf.flip();
+    }
+
+    // Guards against allocating huge arrays for corrupt counts
+    private static int count(ByteBuffer buf, int count, int bytesEach) {
+        if (count < 0 || count > buf.remaining() / bytesEach) {
+            throw new IllegalArgumentException("Count out of range: " + count);
+        }
+        return count;
+    }
+
+    /**
+     * An object in the file: a placed mesh, a level of detail of another object, or a detail of one
+     */
+    public static final class Node {
+        private final String name;
+        private final int mesh, parent, level;
+        private final float[] matrix;
+
+        Node(String name, int mesh, int parent, int level, float[] matrix) {
+            this.name = name;
+            this.mesh = mesh;
+            this.parent = parent;
+            this.level = level;
+            this.matrix = matrix;
+        }
+
+        public String getName() { return name; }
+
+        /** @return index of the object's mesh */
+        public int getMesh() { return mesh; }
+
+        /** @return index of the full-detail object this is a level or detail of, or -1 */
+        public int getParent() { return parent; }
+
+        /** @return level of detail, 0 for full detail and details */
+        public int getLevel() { return level; }
+
+        /** @return placement of the mesh, or null if its vertices are already in place */
+        public Transformation getTransformation() {
+            return matrix == null ? null : new Transformation(matrix.clone());
+        }
+
+        public String toString() {
+            return String.format("Node(\"%s\", mesh %d, parent %d, level %d)", name, mesh, parent, level);
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package citymesh;
 
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Interface for 3D file format exporters
  */
@@ -19,6 +23,16 @@ public interface Exporter {
      */
     boolean done();
 
+    /**
+     * Files this exporter writes, known once init() has succeeded.
+     * Exporters which pass objects on to others list their targets' files.
+     *
+     * @return paths of the files written, empty by default
+     */
+    default List<Path> files() {
+        return Collections.emptyList();
+    }
+
     /**
      * Export a mesh
      *
@@ -27,4 +41,54 @@ public interface Exporter {
      */
     boolean appendMesh(Mesh m);
 
+    /**
+     * Export a placed instance of a shared mesh.
+     * By default the instance is expanded into a transformed copy at write time;
+     * formats which support instancing or can transform while writing should override this.
+     *
+     * @param instance instance to export
+     * @return true on success, false on failure
+     */
+    default boolean appendInstance(MeshInstance instance) {
+        return appendMesh(instance.toMesh());
+    }
+
+    /**
+     * Export a chain of levels of detail of one object.
+     * By default each level is exported as a separate mesh under its own name;
+     * formats with a notion of LOD groups should override this.
+     *
+     * @param lods full-detail mesh followed by decreasing levels of detail, as built by LodBuilder
+     * @return true on success, false on failure
+     */
+    default boolean appendLods(Mesh[] lods) {
+        for (Mesh m : lods) {
+            if (!appendMesh(m)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Export a chain of levels of detail whose full-detail level also includes placed instances,
+     * such as a building body and its facade modules.
+     * By default the chain is exported as by appendLods(lods) followed by each instance.
+     *
+     * @param lods full-detail mesh followed by decreasing levels of detail
+     * @param details instances which are part of the full-detail level only
+     * @return true on success, false on failure
+     */
+    default boolean appendLods(Mesh[] lods, MeshInstance[] details) {
+        if (!appendLods(lods)) {
+            return false;
+        }
+        for (MeshInstance instance : details) {
+            if (!appendInstance(instance)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
 }
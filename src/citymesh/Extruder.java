@@ -0,0 +1,109 @@
+package citymesh;
+
+import java.util.Arrays;
+
+/**
+ * Turns 2D footprints into meshes: walls around every ring between two heights, and flat triangulated caps
+ * such as roofs and floor slabs.
+ *
+ * Footprints are packed x, y coordinates with the outer ring first followed by any holes (courtyards),
+ * in either winding. Walls face away from the solid part, so outwards on the outer ring and into courtyards.
+ * Walls get u along the ring's perimeter and v up the wall, caps get their x, y position as uv.
+ * Vertices are welded exactly, so walls of stacked floors and the caps share vertices along their edges.
+ *
+ * Scratch buffers are reused between calls, so extruding doesn't allocate once they have grown to the
+ * largest footprint seen. Not thread-safe; use one per thread.
+ */
+public class Extruder {
+
+    private final Triangulator triangulator = new Triangulator();
+
+    // Corners of the face being added
+    private final int[] faceVerts = new int[4], faceUVs = new int[4];
+
+    // Vertex and uv IDs of each footprint point on the cap being added
+    private int[] pointVerts = new int[64], pointUVs = new int[64];
+
+    /**
+     * Add walls around every ring of a footprint
+     *
+     * @param m mesh to add to
+     * @param xy packed x, y coordinates of the outer ring followed by each hole
+     * @param pointCount number of points in xy
+     * @param holeStarts index of the first point of each hole, may be null without holes
+     * @param holeCount number of holes
+     * @param z0 height of the bottom of the walls
+     * @param z1 height of the top of the walls
+     * @param material material ID of the walls
+     */
+    public void walls(Mesh m, float[] xy, int pointCount, int[] holeStarts, int holeCount,
+                      float z0, float z1, int material) {
+        for (int ring = 0; ring <= holeCount; ring++) {
+            int start = ring == 0 ? 0 : holeStarts[ring - 1];
+            int end = ring < holeCount ? holeStarts[ring] : pointCount;
+            int n = end - start;
+            if (n < 3) continue;
+            // Outer ring counter-clockwise, holes clockwise, so the solid part is always on the left
+            boolean reverse = (Triangulator.signedArea(xy, start, end) > 0) != (ring == 0);
+            float u = 0;
+            for (int i = 0; i < n; i++) {
+                int a = start + (reverse ? n - 1 - i : i);
+                int b = start + (reverse ? (2 * n - 2 - i) % n : (i + 1) % n);
+                float ax = xy[a * 2], ay = xy[a * 2 + 1], bx = xy[b * 2], by = xy[b * 2 + 1];
+                float length = (float)Math.sqrt((bx - ax) * (bx - ax) + (by - ay) * (by - ay));
+                faceVerts[0] = m.getVertID(ax, ay, z0);
+                faceVerts[1] = m.getVertID(bx, by, z0);
+                faceVerts[2] = m.getVertID(bx, by, z1);
+                faceVerts[3] = m.getVertID(ax, ay, z1);
+                faceUVs[0] = m.getUVID(u, z0);
+                faceUVs[1] = m.getUVID(u + length, z0);
+                faceUVs[2] = m.getUVID(u + length, z1);
+                faceUVs[3] = m.getUVID(u, z1);
+                m.addFace(material, faceVerts, faceUVs, 4);
+                u += length;
+            }
+        }
+    }
+
+    /**
+     * Add a flat triangulated cap over a footprint
+     *
+     * @param m mesh to add to
+     * @param xy packed x, y coordinates of the outer ring followed by each hole
+     * @param pointCount number of points in xy
+     * @param holeStarts index of the first point of each hole, may be null without holes
+     * @param holeCount number of holes
+     * @param z height of the cap
+     * @param up true to face up, as a roof, false to face down, as the underside of a slab
+     * @param material material ID of the cap
+     * @return number of triangles added
+     */
+    public int cap(Mesh m, float[] xy, int pointCount, int[] holeStarts, int holeCount,
+                   float z, boolean up, int material) {
+        int triangles = triangulator.triangulate(xy, pointCount, holeStarts, holeCount);
+        if (triangles == 0) {
+            return 0;
+        }
+        if (pointVerts.length < pointCount) {
+            pointVerts = new int[pointCount];
+            pointUVs = new int[pointCount];
+        }
+        // Only points used by triangles get vertices, so degenerate points don't leave strays
+        Arrays.fill(pointVerts, 0, pointCount, -1);
+        int[] indices = triangulator.triangles();
+        for (int t = 0; t < triangles; t++) {
+            for (int c = 0; c < 3; c++) {
+                // Triangles come out counter-clockwise, which faces up
+                int p = indices[t * 3 + (up ? c : 2 - c)];
+                if (pointVerts[p] < 0) {
+                    pointVerts[p] = m.getVertID(xy[p * 2], xy[p * 2 + 1], z);
+                    pointUVs[p] = m.getUVID(xy[p * 2], xy[p * 2 + 1]);
+                }
+                faceVerts[c] = pointVerts[p];
+                faceUVs[c] = pointUVs[p];
+            }
+            m.addFace(material, faceVerts, faceUVs, 3);
+        }
+        return triangles;
+    }
+}
@@ -0,0 +1,665 @@
+package citymesh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Removes faces hidden by coincident faces facing the other way, such as the shared wall of two row houses
+ * or the floor of a box stacked on another.
+ *
+ * Faces are bucketed by plane in near-linear time: by direction through a hash of their quantized normal,
+ * then by sorting each direction's faces on their distance from the origin. Within a plane, faces are indexed
+ * by a 2D grid hash over their bounding boxes, so each face is only tested against the opposite-facing faces
+ * sharing a cell with it. A face is hidden where the union of the faces opposite it covers it, up to the
+ * tolerance. Faces hidden entirely are removed, and with clipping on, partly hidden faces are cut down to the
+ * convex pieces left visible. Only convex faces are culled or cull others. Faces whose normals fall on either
+ * side of a quantization step are not matched, so near misses only ever keep a face.
+ */
+public class FaceCuller {
+
+    // Quantization step of unit normal components when bucketing faces by direction
+    private static final float DIRECTION_STEP = 1e-3f;
+
+    // Faces covering more grid cells than this are tested against every face of their plane instead
+    private static final int MAX_CELLS = 64;
+
+    // Pieces a partly hidden face may be cut into before it is kept whole
+    private static final int MAX_PIECES = 32;
+
+    private final float tolerance;
+    private final float minArea;
+    private final boolean clip;
+
+    public FaceCuller() {
+        this(1e-3f, false);
+    }
+
+    /**
+     * @param tolerance distance within which faces count as coplanar and as covering each other
+     * @param clip true to cut partly hidden faces down to their visible pieces, false to only remove
+     *             faces hidden entirely
+     */
+    public FaceCuller(float tolerance, boolean clip) {
+        this.tolerance = tolerance;
+        this.minArea = tolerance * tolerance;
+        this.clip = clip;
+    }
+
+    /**
+     * Cull faces of a mesh hidden by other faces of the same mesh
+     * @return number of faces removed
+     */
+    public int cull(Mesh m) {
+        return cull(new Mesh[] {m});
+    }
+
+    /**
+     * Cull faces hidden by other faces of the same or any other of the meshes, as for neighbouring
+     * buildings kept in separate meshes. Removing faces keeps normals; cutting faces drops the normals of
+     * the mesh they belong to. Vertices used only by removed faces stay; Mesh.compact() drops them.
+     *
+     * @return number of faces removed
+     */
+    public int cull(Mesh... meshes) {
+        long start = Metrics.start();
+        Faces faces = new Faces(meshes);
+        int n = faces.count;
+        if (n == 0) {
+            Metrics.end(Metrics.Stage.CULL, start);
+            return 0;
+        }
+
+        // Bucket faces by direction, then sort each direction by distance so planes are runs of faces
+        LongIntMap directions = new LongIntMap(1024);
+        int[] direction = new int[n], directionStart = new int[n + 1];
+        int active = 0;
+        for (int f = 0; f < n; f++) {
+            if (faces.side[f] == 0) {
+                direction[f] = -1;
+                continue;
+            }
+            direction[f] = directions.putIfAbsent(faces.directionKey[f], directions.size());
+            directionStart[direction[f] + 1]++;
+            active++;
+        }
+        int directionCount = directions.size();
+        for (int d = 0; d < directionCount; d++) {
+            directionStart[d + 1] += directionStart[d];
+        }
+        long[] sorted = new long[active];
+        int[] fill = Arrays.copyOf(directionStart, directionCount);
+        for (int f = 0; f < n; f++) {
+            if (direction[f] >= 0) {
+                sorted[fill[direction[f]]++] = ((long)sortable(faces.distance[f]) << 32) | f;
+            }
+        }
+        for (int d = 0; d < directionCount; d++) {
+            Arrays.sort(sorted, directionStart[d], directionStart[d + 1]);
+        }
+
+        // Planes: runs of faces of a direction closer than the tolerance, kept if they face both ways
+        int[] plane = new int[n];
+        Arrays.fill(plane, -1);
+        List<int[]> planes = new ArrayList<>();  // first and end index into sorted
+        for (int d = 0; d < directionCount; d++) {
+            int runStart = directionStart[d];
+            for (int i = runStart + 1; i <= directionStart[d + 1]; i++) {
+                if (i < directionStart[d + 1]
+                        && faces.distance[face(sorted, i)] - faces.distance[face(sorted, i - 1)] <= tolerance) {
+                    continue;
+                }
+                boolean front = false, back = false;
+                for (int j = runStart; j < i; j++) {
+                    front |= faces.side[face(sorted, j)] > 0;
+                    back |= faces.side[face(sorted, j)] < 0;
+                }
+                if (front && back) {
+                    for (int j = runStart; j < i; j++) {
+                        plane[face(sorted, j)] = planes.size();
+                    }
+                    planes.add(new int[] {runStart, i});
+                }
+                runStart = i;
+            }
+        }
+
+        Grid grid = new Grid(faces, sorted, planes, plane);
+        boolean[] removed = new boolean[n];
+        Map<Integer, List<float[]>> pieces = new HashMap<>();
+        int[] stamp = new int[n];
+        int culled = 0, cut = 0;
+        for (int[] range : planes) {
+            for (int i = range[0]; i < range[1]; i++) {
+                int a = face(sorted, i);
+                int count = grid.candidates(a, stamp);
+                List<float[]> visible = visible(faces, a, grid.found, count);
+                if (visible == null) {
+                    continue;
+                }
+                if (visible.isEmpty()) {
+                    removed[a] = true;
+                    culled++;
+                } else if (clip) {
+                    pieces.put(a, visible);
+                    cut++;
+                }
+            }
+        }
+        if (culled > 0 || cut > 0) {
+            faces.rebuild(removed, pieces);
+        }
+        Metrics.add(Metrics.Counter.CULLED_FACES, culled);
+        Metrics.add(Metrics.Counter.CLIPPED_FACES, cut);
+        Metrics.end(Metrics.Stage.CULL, start);
+        return culled;
+    }
+
+    /**
+     * Subtract the opposite-facing candidates from a face
+     * @return convex pieces of the face left visible, empty if it is hidden, or null if nothing covers it
+     *         or it would be cut into too many pieces
+     */
+    private List<float[]> visible(Faces faces, int a, int[] candidates, int count) {
+        List<float[]> pieces = new ArrayList<>();
+        pieces.add(faces.polygon(a));
+        boolean covered = false;
+        for (int k = 0; k < count && !pieces.isEmpty(); k++) {
+            int b = candidates[k];
+            if (faces.side[b] == faces.side[a] || !faces.convex[b]
+                    || Math.abs(faces.distance[b] - faces.distance[a]) > tolerance
+                    || !faces.boundsOverlap(a, b, tolerance)) {
+                continue;
+            }
+            float[] occluder = faces.polygon(b);
+            List<float[]> next = new ArrayList<>(pieces.size() + 4);
+            for (float[] piece : pieces) {
+                covered |= subtract(piece, occluder, next);
+            }
+            if (next.size() > MAX_PIECES) {
+                return null;
+            }
+            pieces = next;
+        }
+        return covered ? pieces : null;
+    }
+
+    /**
+     * Subtract a convex polygon, grown by the tolerance, from a convex polygon. Both are counter-clockwise.
+     * The part of the piece outside each edge of the occluder in turn is split off, and what is left inside
+     * all edges is the covered part.
+     * @param out receives the pieces left, or the piece itself if the overlap is too small to count
+     * @return true if part of the piece was covered
+     */
+    private boolean subtract(float[] piece, float[] occluder, List<float[]> out) {
+        int start = out.size();
+        float[] rest = piece;
+        int n = occluder.length / 2;
+        for (int i = 0; i < n && rest != null; i++) {
+            float bx = occluder[i * 2], by = occluder[i * 2 + 1];
+            float ex = occluder[((i + 1) % n) * 2] - bx, ey = occluder[((i + 1) % n) * 2 + 1] - by;
+            float length = (float)Math.sqrt(ex * ex + ey * ey);
+            if (length == 0.0f) continue;
+            // Unit normal pointing into the occluder, and the line offset outwards by the tolerance
+            float nx = -ey / length, ny = ex / length, c = tolerance - (nx * bx + ny * by);
+            float[] outside = halfPlane(rest, -nx, -ny, -c);
+            if (outside != null && area(outside) > minArea) {
+                out.add(outside);
+            }
+            rest = halfPlane(rest, nx, ny, c);
+        }
+        if (rest == null || area(rest) <= minArea) {
+            // Not overlapping, or only touching
+            out.subList(start, out.size()).clear();
+            out.add(piece);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Clip a polygon to the half-plane nx * x + ny * y + c >= 0
+     * @return the clipped polygon, or null if nothing is left
+     */
+    private static float[] halfPlane(float[] poly, float nx, float ny, float c) {
+        int n = poly.length / 2;
+        float[] out = new float[(n + 1) * 2];
+        int count = 0;
+        float px = poly[(n - 1) * 2], py = poly[(n - 1) * 2 + 1];
+        float pd = nx * px + ny * py + c;
+        for (int i = 0; i < n; i++) {
+            float x = poly[i * 2], y = poly[i * 2 + 1];
+            float d = nx * x + ny * y + c;
+            if ((d >= 0) != (pd >= 0)) {
+                float t = pd / (pd - d);
+                if (count * 2 + 2 > out.length) out = Arrays.copyOf(out, out.length * 2);
+                out[count * 2] = px + (x - px) * t;
+                out[count * 2 + 1] = py + (y - py) * t;
+                count++;
+            }
+            if (d >= 0) {
+                if (count * 2 + 2 > out.length) out = Arrays.copyOf(out, out.length * 2);
+                out[count * 2] = x;
+                out[count * 2 + 1] = y;
+                count++;
+            }
+            px = x;
+            py = y;
+            pd = d;
+        }
+        return count < 3 ? null : Arrays.copyOf(out, count * 2);
+    }
+
+    private static float area(float[] poly) {
+        return (float)Triangulator.signedArea(poly, 0, poly.length / 2);
+    }
+
+    private static int face(long[] sorted, int i) {
+        return (int)sorted[i];
+    }
+
+    // Float bits as an int that sorts in the same order as the float
+    private static int sortable(float f) {
+        int bits = Float.floatToIntBits(f);
+        return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+    }
+
+    /**
+     * Faces of all meshes flattened into arrays, with their planes and corners projected onto the
+     * plane's dominant axis, counter-clockwise
+     */
+    private final class Faces {
+
+        final Mesh[] meshes;
+        final FaceList[] lists;
+        final int[] listMesh, faceBase, cornerBase;
+        final int count;
+
+        // Per face: unit normal, side of the plane it faces (0 if it takes no part), distance along the
+        // direction shared by both sides, dominant axis, whether its projection was reversed, and bounds
+        final float[] normals, distance, bounds;
+        final long[] directionKey;
+        final byte[] side, axis;
+        final boolean[] convex, reversed;
+
+        // Per corner: projected position, counter-clockwise within each face
+        final float[] projected;
+
+        Faces(Mesh[] meshes) {
+            this.meshes = meshes;
+            int listCount = 0;
+            for (Mesh m : meshes) {
+                listCount += m.faces.size();
+            }
+            lists = new FaceList[listCount];
+            listMesh = new int[listCount];
+            faceBase = new int[listCount + 1];
+            cornerBase = new int[listCount + 1];
+            int l = 0;
+            for (int i = 0; i < meshes.length; i++) {
+                for (FaceList list : meshes[i].faces.values()) {
+                    lists[l] = list;
+                    listMesh[l] = i;
+                    faceBase[l + 1] = faceBase[l] + list.count;
+                    cornerBase[l + 1] = cornerBase[l] + list.corners;
+                    l++;
+                }
+            }
+            count = faceBase[listCount];
+            normals = new float[count * 3];
+            distance = new float[count];
+            bounds = new float[count * 4];
+            directionKey = new long[count];
+            side = new byte[count];
+            axis = new byte[count];
+            convex = new boolean[count];
+            reversed = new boolean[count];
+            projected = new float[cornerBase[listCount] * 2];
+            for (l = 0; l < listCount; l++) {
+                float[] v = meshes[listMesh[l]].verts.data;
+                for (int f = 0; f < lists[l].count; f++) {
+                    measure(v, lists[l], f, faceBase[l] + f, cornerBase[l]);
+                }
+            }
+        }
+
+        private void measure(float[] v, FaceList list, int f, int face, int cornerOffset) {
+            int first = list.offsets[f], n = list.offsets[f + 1] - first;
+            if (n < 3) return;
+            float nx = 0, ny = 0, nz = 0, cx = 0, cy = 0, cz = 0;
+            for (int i = 0; i < n; i++) {
+                int a = list.vertIDs[first + i] * 3, b = list.vertIDs[first + (i + 1) % n] * 3;
+                nx += (v[a + 1] - v[b + 1]) * (v[a + 2] + v[b + 2]);
+                ny += (v[a + 2] - v[b + 2]) * (v[a] + v[b]);
+                nz += (v[a] - v[b]) * (v[a + 1] + v[b + 1]);
+                cx += v[a];
+                cy += v[a + 1];
+                cz += v[a + 2];
+            }
+            float len = (float)Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (len == 0.0f) return;
+            nx /= len;
+            ny /= len;
+            nz /= len;
+            normals[face * 3] = nx;
+            normals[face * 3 + 1] = ny;
+            normals[face * 3 + 2] = nz;
+
+            // Both sides of a plane share the direction whose dominant component is positive
+            int a = Math.abs(nx) >= Math.abs(ny) && Math.abs(nx) >= Math.abs(nz) ? 0 : Math.abs(ny) >= Math.abs(nz) ? 1 : 2;
+            float dominant = a == 0 ? nx : a == 1 ? ny : nz;
+            int s = dominant > 0 ? 1 : -1;
+            distance[face] = s * (nx * cx + ny * cy + nz * cz) / n;
+            long key = a;
+            key = key * 31 + Math.round(s * nx / DIRECTION_STEP);
+            key = key * 4001 + Math.round(s * ny / DIRECTION_STEP);
+            key = key * 4001 + Math.round(s * nz / DIRECTION_STEP);
+            directionKey[face] = key;
+            axis[face] = (byte)a;
+
+            // Project onto the other two axes, counter-clockwise
+            int u = (a + 1) % 3, w = (a + 2) % 3, base = (cornerOffset + first) * 2;
+            for (int i = 0; i < n; i++) {
+                int p = list.vertIDs[first + i] * 3;
+                projected[base + i * 2] = v[p + u];
+                projected[base + i * 2 + 1] = v[p + w];
+            }
+            float area = (float)Triangulator.signedArea(projected, cornerOffset + first, cornerOffset + first + n);
+            if (area < 0) {
+                reversed[face] = true;
+                for (int i = 0, j = n - 1; i < j; i++, j--) {
+                    for (int k = 0; k < 2; k++) {
+                        float t = projected[base + i * 2 + k];
+                        projected[base + i * 2 + k] = projected[base + j * 2 + k];
+                        projected[base + j * 2 + k] = t;
+                    }
+                }
+            }
+            if (Math.abs(area) <= minArea) return;
+
+            convex[face] = true;
+            float minU = Float.MAX_VALUE, minV = Float.MAX_VALUE, maxU = -Float.MAX_VALUE, maxV = -Float.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                float x0 = projected[base + i * 2], y0 = projected[base + i * 2 + 1];
+                float x1 = projected[base + ((i + 1) % n) * 2], y1 = projected[base + ((i + 1) % n) * 2 + 1];
+                float x2 = projected[base + ((i + 2) % n) * 2], y2 = projected[base + ((i + 2) % n) * 2 + 1];
+                if ((x1 - x0) * (y2 - y1) - (y1 - y0) * (x2 - x1) < -minArea) {
+                    convex[face] = false;
+                }
+                minU = Math.min(minU, x0);
+                minV = Math.min(minV, y0);
+                maxU = Math.max(maxU, x0);
+                maxV = Math.max(maxV, y0);
+            }
+            bounds[face * 4] = minU;
+            bounds[face * 4 + 1] = minV;
+            bounds[face * 4 + 2] = maxU;
+            bounds[face * 4 + 3] = maxV;
+            // Only convex faces take part
+            side[face] = (byte)(convex[face] ? s : 0);
+        }
+
+        int list(int face) {
+            int l = Arrays.binarySearch(faceBase, face);
+            if (l < 0) return -l - 2;
+            // Skip empty lists sharing the same base
+            while (faceBase[l + 1] == face) l++;
+            return l;
+        }
+
+        float[] polygon(int face) {
+            int l = list(face), f = face - faceBase[l];
+            int first = lists[l].offsets[f], n = lists[l].offsets[f + 1] - first;
+            int base = (cornerBase[l] + first) * 2;
+            return Arrays.copyOfRange(projected, base, base + n * 2);
+        }
+
+        boolean boundsOverlap(int a, int b, float margin) {
+            return bounds[a * 4] <= bounds[b * 4 + 2] + margin && bounds[b * 4] <= bounds[a * 4 + 2] + margin
+                    && bounds[a * 4 + 1] <= bounds[b * 4 + 3] + margin && bounds[b * 4 + 1] <= bounds[a * 4 + 3] + margin;
+        }
+
+        /**
+         * Rebuild the face lists of changed meshes without removed faces and with cut faces replaced by
+         * their pieces
+         */
+        void rebuild(boolean[] removed, Map<Integer, List<float[]>> pieces) {
+            boolean[] changed = new boolean[meshes.length], cutMesh = new boolean[meshes.length];
+            for (int l = 0; l < lists.length; l++) {
+                for (int face = faceBase[l]; face < faceBase[l + 1]; face++) {
+                    if (removed[face]) changed[listMesh[l]] = true;
+                    if (pieces.containsKey(face)) changed[listMesh[l]] = cutMesh[listMesh[l]] = true;
+                }
+            }
+            List<List<FaceList>> rebuilt = new ArrayList<>();
+            for (int i = 0; i < meshes.length; i++) {
+                rebuilt.add(new ArrayList<>());
+            }
+            for (int l = 0; l < lists.length; l++) {
+                int mesh = listMesh[l];
+                if (!changed[mesh]) continue;
+                Mesh m = meshes[mesh];
+                FaceList list = lists[l], out = new FaceList(list.material, list.count);
+                boolean normals = list.normIDs != null && !cutMesh[mesh];
+                if (normals) {
+                    out.normIDs = new int[out.vertIDs.length];
+                }
+                for (int f = 0; f < list.count; f++) {
+                    int face = faceBase[l] + f;
+                    if (removed[face]) continue;
+                    List<float[]> cut = pieces.get(face);
+                    if (cut == null) {
+                        out.copyFace(list, f, normals);
+                        continue;
+                    }
+                    for (float[] piece : cut) {
+                        addPiece(m, list, f, face, piece, out);
+                    }
+                }
+                rebuilt.get(mesh).add(out);
+            }
+            for (int i = 0; i < meshes.length; i++) {
+                if (!changed[i]) continue;
+                if (cutMesh[i]) {
+                    meshes[i].clearNormals();
+                }
+                meshes[i].setFaces(rebuilt.get(i));
+            }
+        }
+
+        /**
+         * Add a piece of a cut face, lifted back onto the face's plane with uvs interpolated across it.
+         * Corners of the original face are reused as they are.
+         */
+        private void addPiece(Mesh m, FaceList list, int f, int face, float[] piece, FaceList out) {
+            float[] v = m.verts.data, uv = m.uvs.data;
+            int first = list.offsets[f], n = list.offsets[f + 1] - first;
+            int a = axis[face], u = (a + 1) % 3, w = (a + 2) % 3;
+            float nx = normals[face * 3], ny = normals[face * 3 + 1], nz = normals[face * 3 + 2];
+            float na = a == 0 ? nx : a == 1 ? ny : nz, nu = u == 0 ? nx : u == 1 ? ny : nz, nw = w == 0 ? nx : w == 1 ? ny : nz;
+            int p0 = list.vertIDs[first] * 3, t0 = list.uvIDs[first] * 2;
+            float d = nx * v[p0] + ny * v[p0 + 1] + nz * v[p0 + 2];
+
+            // Affine map from the plane to uvs, from the fan triangle of the face with the largest area
+            int best = 1;
+            float bestArea = 0;
+            for (int i = 1; i + 1 < n; i++) {
+                int p1 = list.vertIDs[first + i] * 3, p2 = list.vertIDs[first + i + 1] * 3;
+                float cross = (v[p1 + u] - v[p0 + u]) * (v[p2 + w] - v[p0 + w])
+                        - (v[p1 + w] - v[p0 + w]) * (v[p2 + u] - v[p0 + u]);
+                if (Math.abs(cross) > Math.abs(bestArea)) {
+                    bestArea = cross;
+                    best = i;
+                }
+            }
+            int p1 = list.vertIDs[first + best] * 3, p2 = list.vertIDs[first + best + 1] * 3;
+            int t1 = list.uvIDs[first + best] * 2, t2 = list.uvIDs[first + best + 1] * 2;
+            float e1u = v[p1 + u] - v[p0 + u], e1w = v[p1 + w] - v[p0 + w];
+            float e2u = v[p2 + u] - v[p0 + u], e2w = v[p2 + w] - v[p0 + w];
+
+            int corners = piece.length / 2;
+            for (int k = 0; k < corners; k++) {
+                // Pieces are counter-clockwise in the projection, restore the face's own winding
+                int i = reversed[face] ? corners - 1 - k : k;
+                float x = piece[i * 2], y = piece[i * 2 + 1];
+                int vertID = -1, uvID = -1;
+                for (int c = first; c < first + n && vertID < 0; c++) {
+                    int p = list.vertIDs[c] * 3;
+                    if (v[p + u] == x && v[p + w] == y) {
+                        vertID = list.vertIDs[c];
+                        uvID = list.uvIDs[c];
+                    }
+                }
+                if (vertID < 0) {
+                    float[] point = new float[3];
+                    point[u] = x;
+                    point[w] = y;
+                    point[a] = (d - nu * x - nw * y) / na;
+                    float s = ((x - v[p0 + u]) * e2w - (y - v[p0 + w]) * e2u) / bestArea;
+                    float t = ((y - v[p0 + w]) * e1u - (x - v[p0 + u]) * e1w) / bestArea;
+                    vertID = m.getVertID(point[0], point[1], point[2]);
+                    uvID = m.getUVID(uv[t0] + s * (uv[t1] - uv[t0]) + t * (uv[t2] - uv[t0]),
+                            uv[t0 + 1] + s * (uv[t1 + 1] - uv[t0 + 1]) + t * (uv[t2 + 1] - uv[t0 + 1]));
+                    // Adding may have grown the arrays
+                    v = m.verts.data;
+                    uv = m.uvs.data;
+                }
+                out.addCorner(vertID, uvID);
+            }
+            out.endFace();
+        }
+    }
+
+    /**
+     * Grid hash over the projected bounds of faces in planes facing both ways. Cells of different planes
+     * share one table, keyed by a hash of plane and cell; collisions only add candidates that fail the
+     * exact tests.
+     */
+    private static final class Grid {
+
+        private final Faces faces;
+        private final long[] sorted;
+        private final List<int[]> planes;
+        private final int[] plane;
+        private final float[] cellSize;
+
+        // First entry of each cell, then per entry its face and the next entry in the cell
+        private final LongIntMap cells = new LongIntMap(1024);
+        private int[] entryFace = new int[1024], entryNext = new int[1024];
+        private int entries;
+
+        // Faces of each plane covering too many cells, linked through largeNext
+        private final int[] largeHead;
+        private final int[] largeNext;
+
+        // Candidates found by the last query
+        int[] found = new int[16];
+
+        Grid(Faces faces, long[] sorted, List<int[]> planes, int[] plane) {
+            this.faces = faces;
+            this.sorted = sorted;
+            this.planes = planes;
+            this.plane = plane;
+            cellSize = new float[planes.size()];
+            largeHead = new int[planes.size()];
+            largeNext = new int[faces.count];
+            Arrays.fill(largeHead, -1);
+            for (int p = 0; p < planes.size(); p++) {
+                int[] range = planes.get(p);
+                // Cells about the size of an average face
+                double extent = 0;
+                for (int i = range[0]; i < range[1]; i++) {
+                    int f = (int)sorted[i];
+                    extent += Math.max(faces.bounds[f * 4 + 2] - faces.bounds[f * 4],
+                            faces.bounds[f * 4 + 3] - faces.bounds[f * 4 + 1]);
+                }
+                cellSize[p] = (float)Math.max(extent / (range[1] - range[0]), 1e-3);
+                for (int i = range[0]; i < range[1]; i++) {
+                    insert((int)sorted[i], p);
+                }
+            }
+        }
+
+        private void insert(int f, int p) {
+            float cell = cellSize[p];
+            long u0 = cell(faces.bounds[f * 4], cell), v0 = cell(faces.bounds[f * 4 + 1], cell);
+            long u1 = cell(faces.bounds[f * 4 + 2], cell), v1 = cell(faces.bounds[f * 4 + 3], cell);
+            if ((u1 - u0 + 1) * (v1 - v0 + 1) > MAX_CELLS) {
+                largeNext[f] = largeHead[p];
+                largeHead[p] = f;
+                return;
+            }
+            for (long u = u0; u <= u1; u++) {
+                for (long v = v0; v <= v1; v++) {
+                    if (entries == entryFace.length) {
+                        entryFace = Arrays.copyOf(entryFace, entries * 2);
+                        entryNext = Arrays.copyOf(entryNext, entries * 2);
+                    }
+                    entryFace[entries] = f;
+                    entryNext[entries] = -1;
+                    int head = cells.putIfAbsent(key(p, u, v), entries);
+                    if (head != entries) {
+                        entryNext[entries] = entryNext[head];
+                        entryNext[head] = entries;
+                    }
+                    entries++;
+                }
+            }
+        }
+
+        /**
+         * Collect opposite-facing faces of the same plane that may overlap a face, each once, into found
+         * @param stamp per face, the last face + 1 it was collected for
+         * @return number of candidates
+         */
+        int candidates(int a, int[] stamp) {
+            int p = plane[a], count = 0;
+            float cell = cellSize[p];
+            long u0 = cell(faces.bounds[a * 4], cell), v0 = cell(faces.bounds[a * 4 + 1], cell);
+            long u1 = cell(faces.bounds[a * 4 + 2], cell), v1 = cell(faces.bounds[a * 4 + 3], cell);
+            stamp[a] = a + 1;
+            if ((u1 - u0 + 1) * (v1 - v0 + 1) > MAX_CELLS) {
+                int[] range = planes.get(p);
+                for (int i = range[0]; i < range[1]; i++) {
+                    count = collect((int)sorted[i], a, stamp, count);
+                }
+                return count;
+            }
+            for (long u = u0; u <= u1; u++) {
+                for (long v = v0; v <= v1; v++) {
+                    for (int e = cells.get(key(p, u, v)); e >= 0; e = entryNext[e]) {
+                        count = collect(entryFace[e], a, stamp, count);
+                    }
+                }
+            }
+            for (int f = largeHead[p]; f >= 0; f = largeNext[f]) {
+                count = collect(f, a, stamp, count);
+            }
+            return count;
+        }
+
+        private int collect(int f, int a, int[] stamp, int count) {
+            if (stamp[f] == a + 1 || faces.side[f] == faces.side[a]) {
+                return count;
+            }
+            stamp[f] = a + 1;
+            if (count == found.length) {
+                found = Arrays.copyOf(found, count * 2);
+            }
+            found[count] = f;
+            return count + 1;
+        }
+
+        private static long cell(float x, float size) {
+            return (long)Math.floor(x / size);
+        }
+
+        private static long key(int plane, long u, long v) {
+            long h = plane * 0x9E3779B97F4A7C15L + u;
+            h = (h ^ (h >>> 29)) * 0xBF58476D1CE4E5B9L + v;
+            return h ^ (h >>> 32);
+        }
+    }
+}
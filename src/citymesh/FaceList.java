@@ -0,0 +1,164 @@
+package citymesh;
+
+import java.util.Arrays;
+
+/**
+ * Faces of one material, stored in flat growable index arrays.
+ * Corner i of face f is at index offsets[f] + i of vertIDs and uvIDs; offsets[count] is the corner count.
+ */
+class FaceList {
+
+    final int material;
+
+    // Vertex and uv ID of each corner
+    int[] vertIDs, uvIDs;
+    int corners;
+
+    // Normal ID of each corner, or null if the mesh has no normals
+    int[] normIDs;
+
+    // Index of each face's first corner, plus one past the last
+    int[] offsets;
+    int count;
+
+    FaceList(int material) {
+        this(material, 16);
+    }
+
+    FaceList(int material, int faces) {
+        this.material = material;
+        vertIDs = new int[Math.max(faces, 1) * 4];
+        uvIDs = new int[vertIDs.length];
+        offsets = new int[Math.max(faces, 1) + 1];
+    }
+
+    /**
+     * Wrap existing index arrays
+     * @param offsets index of each face's first corner followed by the corner count, count + 1 entries used
+     */
+    FaceList(int material, int[] vertIDs, int[] uvIDs, int[] offsets, int count) {
+        this(material, vertIDs, uvIDs, null, offsets, count);
+    }
+
+    /**
+     * Wrap existing index arrays, with normal IDs
+     * @param normIDs normal ID of each corner, or null
+     */
+    FaceList(int material, int[] vertIDs, int[] uvIDs, int[] normIDs, int[] offsets, int count) {
+        this.material = material;
+        this.vertIDs = vertIDs;
+        this.uvIDs = uvIDs;
+        this.normIDs = normIDs;
+        this.offsets = offsets;
+        this.count = count;
+        this.corners = offsets[count];
+    }
+
+    int size(int face) {
+        return offsets[face + 1] - offsets[face];
+    }
+
+    /**
+     * Add a corner to the face being built. The list must not have normals.
+     */
+    void addCorner(int vertID, int uvID) {
+        if (corners == vertIDs.length) {
+            growCorners(corners + 1);
+        }
+        vertIDs[corners] = vertID;
+        uvIDs[corners] = uvID;
+        corners++;
+    }
+
+    /**
+     * Finish the face being built from the corners added since the last one
+     * @return index of the face in this list
+     */
+    int endFace() {
+        if (count + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, Math.max(count + 2, offsets.length * 2));
+        }
+        offsets[++count] = corners;
+        return count - 1;
+    }
+
+    /**
+     * Append all faces of another list, adding offsets to their IDs.
+     * Normal IDs are kept if both lists have them, or this one is still empty; otherwise they are dropped.
+     * @param normOffset offset to add to normal IDs, or -1 to drop normals
+     */
+    void addAll(FaceList other, int vertOffset, int uvOffset, int normOffset) {
+        int base = corners;
+        boolean normals = normOffset >= 0 && (other.normIDs != null || other.corners == 0)
+                && (normIDs != null || corners == 0);
+        if (normals && normIDs == null) {
+            normIDs = new int[vertIDs.length];
+        } else if (!normals) {
+            normIDs = null;
+        }
+        growCorners(corners + other.corners);
+        for (int i = 0; i < other.corners; i++) {
+            vertIDs[base + i] = other.vertIDs[i] + vertOffset;
+            uvIDs[base + i] = other.uvIDs[i] + uvOffset;
+        }
+        if (normals && other.corners > 0) {
+            for (int i = 0; i < other.corners; i++) {
+                normIDs[base + i] = other.normIDs[i] + normOffset;
+            }
+        }
+        corners += other.corners;
+        appendOffsets(other, base);
+    }
+
+    /**
+     * Append all faces of another list, translating their IDs through lookup tables. Drops normals.
+     */
+    void addAll(FaceList other, int[] vertMap, int[] uvMap) {
+        int base = corners;
+        normIDs = null;
+        growCorners(corners + other.corners);
+        for (int i = 0; i < other.corners; i++) {
+            vertIDs[base + i] = vertMap[other.vertIDs[i]];
+            uvIDs[base + i] = uvMap[other.uvIDs[i]];
+        }
+        corners += other.corners;
+        appendOffsets(other, base);
+    }
+
+    /**
+     * Append one face of another list as it is
+     * @param normals true to copy normal IDs too, which both lists must have
+     */
+    void copyFace(FaceList other, int face, boolean normals) {
+        int first = other.offsets[face], n = other.offsets[face + 1] - first;
+        growCorners(corners + n);
+        System.arraycopy(other.vertIDs, first, vertIDs, corners, n);
+        System.arraycopy(other.uvIDs, first, uvIDs, corners, n);
+        if (normals) {
+            System.arraycopy(other.normIDs, first, normIDs, corners, n);
+        }
+        corners += n;
+        endFace();
+    }
+
+    private void appendOffsets(FaceList other, int base) {
+        if (count + other.count + 1 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, Math.max(count + other.count + 1, offsets.length * 2));
+        }
+        for (int f = 1; f <= other.count; f++) {
+            offsets[count + f] = other.offsets[f] + base;
+        }
+        count += other.count;
+    }
+
+    private void growCorners(int capacity) {
+        if (capacity > vertIDs.length) {
+            int len = Math.max(capacity, vertIDs.length * 2);
+            vertIDs = Arrays.copyOf(vertIDs, len);
+            uvIDs = Arrays.copyOf(uvIDs, len);
+            if (normIDs != null) {
+                normIDs = Arrays.copyOf(normIDs, len);
+            }
+        }
+    }
+}
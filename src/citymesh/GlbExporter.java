@@ -0,0 +1,573 @@
+package citymesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Exporter which uses the binary glTF 2.0 (.glb) file format.
+ *
+ * Each mesh becomes a glTF mesh with an interleaved position/uv vertex buffer, plus normals and tangents if the
+ * mesh has them, and one triangle list per material.
+ * Instances of the same shared mesh are written once and referenced from one node per instance.
+ * LOD chains become a node per level, grouped with the MSFT_lod extension on the full-detail node,
+ * and detail instances belonging to the full-detail level become its children.
+ * Binary data is streamed to a temporary file while exporting and copied in behind the JSON in done().
+ */
+public class GlbExporter implements Exporter {
+
+    private static final int MAGIC = 0x46546C67;        // "glTF"
+    private static final int CHUNK_JSON = 0x4E4F534A;   // "JSON"
+    private static final int CHUNK_BIN = 0x004E4942;    // "BIN\0"
+
+    // glTF enums
+    private static final int FLOAT = 5126, UNSIGNED_INT = 5125;
+    private static final int ARRAY_BUFFER = 34962, ELEMENT_ARRAY_BUFFER = 34963;
+
+    // Bytes per vertex: position xyz then uv, followed by normal xyz and tangent xyzw for meshes with normals
+    private static final int VERTEX_STRIDE = 20;
+    private static final int NORMAL_VERTEX_STRIDE = 48;
+
+    private static final int STAGING_SIZE = 1 << 20;
+
+    // Stuff for file writing
+    private Path glbPath, binPath;
+    private FileChannel binFile;
+    private ByteBuffer staging;
+    private long binLength;
+
+    // Time spent flushing the staging buffer while metrics are on, so encoding can leave it out
+    private long flushNanos;
+
+    // Contents of the JSON arrays, built up as meshes are appended
+    private StringBuilder nodes, meshes, accessors, bufferViews;
+    private int nodeCount, meshCount, accessorCount, bufferViewCount;
+
+    // Nodes which aren't scene roots, such as lower levels of detail
+    private final BitSet childNodes = new BitSet();
+    private boolean usesLods;
+
+    // glTF material index for each mesh material ID, in order of first use
+    private final Map<Integer, Integer> materials = new LinkedHashMap<>();
+
+    // glTF mesh index of shared meshes which have already been written
+    private final Map<Mesh, Integer> sharedMeshes = new IdentityHashMap<>();
+
+    // Scratch for splitting vertices: glTF has one index per vertex, so each distinct vertex/uv pair used by a
+    // face corner becomes its own vertex. With normals the pair is normal/uv, as each normal has a single vertex.
+    private final LongIntMap corners = new LongIntMap(1024);
+    private int[] cornerVerts = new int[1024], cornerUVs = new int[1024], cornerNormals = new int[1024];
+    private int[] indices = new int[4096];
+
+    // Scratch for triangulating a face: its split vertices, and its corners projected to 2D
+    private int[] faceVertices = new int[16];
+    private float[] projected = new float[32];
+    private final Triangulator triangulator = new Triangulator();
+
+    /**
+     * Get ready to export. Call only once!
+     *
+     * @param filename file name to export to excluding extension
+     */
+    @Override
+    public boolean init(String filename) {
+        try {
+            glbPath = Paths.get(filename + ".glb");
+            binPath = Paths.get(filename + ".glb.tmp");
+            binFile = FileChannel.open(binPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            staging = ByteBuffer.allocateDirect(STAGING_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            nodes = new StringBuilder();
+            meshes = new StringBuilder();
+            accessors = new StringBuilder();
+            bufferViews = new StringBuilder();
+        } catch (Exception e) {
+            System.out.println("Failed to initialize output stream!");
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write the JSON and binary chunks out to the .glb file and remove the temporary file.
+     *
+     * @return true on success, false on failures
+     */
+    @Override
+    public boolean done() {
+        try {
+            flush();
+            binFile.close();
+
+            byte[] json = buildJson().getBytes(StandardCharsets.UTF_8);
+            int jsonLength = pad(json.length);
+            long total = 12 + 8 + jsonLength + (binLength > 0 ? 8 + binLength : 0);
+            if (total > 0xFFFFFFFFL) {
+                System.err.println("Export too large for a single glb file: " + total + " bytes");
+                return false;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(12 + 8 + jsonLength + 8).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(2).putInt((int)total);
+            header.putInt(jsonLength).putInt(CHUNK_JSON).put(json);
+            while (header.position() < 20 + jsonLength) {
+                header.put((byte)' ');
+            }
+            if (binLength > 0) {
+                header.putInt((int)binLength).putInt(CHUNK_BIN);
+            }
+            header.flip();
+
+            long start = Metrics.start();
+            try (FileChannel out = FileChannel.open(glbPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 FileChannel bin = FileChannel.open(binPath, StandardOpenOption.READ)) {
+                while (header.hasRemaining()) {
+                    out.write(header);
+                }
+                for (long pos = 0; pos < binLength; ) {
+                    pos += bin.transferTo(pos, binLength - pos, out);
+                }
+            }
+            Metrics.add(Metrics.Counter.GLB_BYTES, total);
+            Metrics.end(Metrics.Stage.WRITE, start);
+        } catch (IOException e) {
+            System.out.println("Failed to close output stream!");
+            System.err.println("IO exception: " + e.getMessage());
+            return false;
+        } finally {
+            // The binary chunk can be huge, so it never outlives the export, whether or not it succeeded
+            deleteBin();
+        }
+        return true;
+    }
+
+    private void deleteBin() {
+        if (binPath == null) {
+            return;
+        }
+        try {
+            if (binFile != null) {
+                binFile.close();
+            }
+            Files.deleteIfExists(binPath);
+        } catch (IOException e) {
+            System.err.println("Failed to delete " + binPath + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public List<Path> files() {
+        return glbPath == null ? Collections.emptyList() : List.of(glbPath);
+    }
+
+    /**
+     * Export a mesh
+     *
+     * @param m mesh to read and export
+     * @return true on success, false on failure
+     */
+    @Override
+    public synchronized boolean appendMesh(Mesh m) {
+        if (binFile == null) {
+            System.err.println("Failed to export mesh" + m + "!");
+            return false;
+        }
+        try {
+            int mesh = writeMesh(m);
+            if (mesh >= 0) {
+                addNode(m.getName(), mesh, null, null);
+            }
+        } catch (IOException e) {
+            System.err.println("IO exception: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Export an instance as a node referencing its shared mesh, writing the mesh on first use
+     *
+     * @param instance instance to export
+     * @return true on success, false on failure
+     */
+    @Override
+    public synchronized boolean appendInstance(MeshInstance instance) {
+        if (binFile == null) {
+            System.err.println("Failed to export instance" + instance + "!");
+            return false;
+        }
+        try {
+            addInstanceNode(instance);
+        } catch (IOException e) {
+            System.err.println("IO exception: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Export a LOD chain as an MSFT_lod group: the full-detail node lists the nodes of the lower levels,
+     * which are left out of the scene so viewers without the extension show only full detail.
+     *
+     * @param lods full-detail mesh followed by decreasing levels of detail
+     * @return true on success, false on failure
+     */
+    @Override
+    public boolean appendLods(Mesh[] lods) {
+        return appendLods(lods, new MeshInstance[0]);
+    }
+
+    /**
+     * Export a LOD chain as an MSFT_lod group, with the detail instances as children of the full-detail node
+     * so they are swapped out together with it.
+     *
+     * @param lods full-detail mesh followed by decreasing levels of detail
+     * @param details instances which are part of the full-detail level only
+     * @return true on success, false on failure
+     */
+    @Override
+    public synchronized boolean appendLods(Mesh[] lods, MeshInstance[] details) {
+        if (binFile == null) {
+            System.err.println("Failed to export mesh" + lods[0] + "!");
+            return false;
+        }
+        try {
+            StringBuilder members = new StringBuilder();
+            int children = 0;
+            for (MeshInstance instance : details) {
+                int node = addInstanceNode(instance);
+                if (node >= 0) {
+                    members.append(children++ == 0 ? "\"children\":[" : ",").append(node);
+                    childNodes.set(node);
+                }
+            }
+            if (children > 0) {
+                members.append(']');
+            }
+
+            int levels = 0;
+            for (int i = 1; i < lods.length; i++) {
+                int mesh = writeMesh(lods[i]);
+                if (mesh >= 0) {
+                    int node = addNode(lods[i].getName(), mesh, null, null);
+                    childNodes.set(node);
+                    members.append(levels == 0 ? (children > 0 ? "," : "") + "\"extensions\":{\"MSFT_lod\":{\"ids\":[" : ",")
+                            .append(node);
+                    levels++;
+                }
+            }
+            if (levels > 0) {
+                members.append("]}}");
+                usesLods = true;
+            }
+            int mesh = writeMesh(lods[0]);
+            if (mesh >= 0 || members.length() > 0) {
+                addNode(lods[0].getName(), mesh, null, members.length() > 0 ? members.toString() : null);
+            }
+        } catch (IOException e) {
+            System.err.println("IO exception: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write buffers, accessors and the mesh description for a mesh
+     * @return glTF mesh index, or -1 if the mesh has no faces
+     */
+    private int writeMesh(Mesh m) throws IOException {
+        if (m.faceCount() == 0) {
+            return -1;
+        }
+        long start = Metrics.start(), flushedBefore = flushNanos;
+
+        // Split vertices by uv and normal and triangulate faces, fanned when convex and ear-clipped otherwise,
+        // one run of indices per material
+        boolean normals = m.hasNormals();
+        float[] v = m.verts.data;
+        corners.clear();
+        int vertexCount = 0, indexCount = 0;
+        List<int[]> runs = new ArrayList<>();  // material, first index, index count
+        for (FaceList faces : m.faces.values()) {
+            int runStart = indexCount;
+            for (int f = 0; f < faces.count; f++) {
+                int n = faces.size(f), first = faces.offsets[f];
+                if (n < 3) continue;
+                if (indices.length < indexCount + (n - 2) * 3) {
+                    indices = Arrays.copyOf(indices, Math.max(indexCount + (n - 2) * 3, indices.length * 2));
+                }
+                if (faceVertices.length < n) {
+                    faceVertices = new int[Math.max(n, faceVertices.length * 2)];
+                    projected = new float[faceVertices.length * 2];
+                }
+                for (int i = 0, c = first; i < n; i++, c++) {
+                    int vertID = faces.vertIDs[c], uvID = faces.uvIDs[c], normID = normals ? faces.normIDs[c] : 0;
+                    long key = ((long)(normals ? normID : vertID) << 32) | (uvID & 0xFFFFFFFFL);
+                    int vertex = corners.putIfAbsent(key, vertexCount);
+                    if (vertex == vertexCount) {
+                        if (cornerVerts.length == vertexCount) {
+                            cornerVerts = Arrays.copyOf(cornerVerts, vertexCount * 2);
+                            cornerUVs = Arrays.copyOf(cornerUVs, vertexCount * 2);
+                            cornerNormals = Arrays.copyOf(cornerNormals, vertexCount * 2);
+                        }
+                        cornerVerts[vertexCount] = vertID;
+                        cornerUVs[vertexCount] = uvID;
+                        cornerNormals[vertexCount] = normID;
+                        vertexCount++;
+                    }
+                    faceVertices[i] = vertex;
+                }
+                if (n > 3) {
+                    float area = Triangulator.project(v, faces, first, n, projected);
+                    if (area != 0.0f && !Triangulator.convex(projected, n, area)) {
+                        int count = triangulator.triangulate(projected, n, null, 0);
+                        if (count > 0) {
+                            // Triangles come out counter-clockwise, the face is clockwise if its area is negative
+                            int[] triangles = triangulator.triangles();
+                            for (int t = 0; t < count * 3; t += 3) {
+                                indices[indexCount++] = faceVertices[triangles[t]];
+                                indices[indexCount++] = faceVertices[triangles[t + (area > 0 ? 1 : 2)]];
+                                indices[indexCount++] = faceVertices[triangles[t + (area > 0 ? 2 : 1)]];
+                            }
+                            continue;
+                        }
+                    }
+                }
+                for (int i = 2; i < n; i++) {
+                    indices[indexCount++] = faceVertices[0];
+                    indices[indexCount++] = faceVertices[i - 1];
+                    indices[indexCount++] = faceVertices[i];
+                }
+            }
+            if (indexCount > runStart) {
+                runs.add(new int[] {faces.material, runStart, indexCount - runStart});
+            }
+        }
+        if (indexCount == 0) {
+            return -1;
+        }
+
+        // Interleaved vertex buffer, uvs flipped to glTF's top-left origin, which also flips tangent handedness
+        int stride = normals ? NORMAL_VERTEX_STRIDE : VERTEX_STRIDE;
+        float[] vt = m.uvs.data, vn = m.normals, tn = m.tangents;
+        float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+        float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        long vertexOffset = binLength;
+        for (int i = 0; i < vertexCount; i++) {
+            reserve(stride);
+            int p = cornerVerts[i] * 3, t = cornerUVs[i] * 2;
+            for (int c = 0; c < 3; c++) {
+                float x = v[p + c];
+                staging.putFloat(x);
+                min[c] = Math.min(min[c], x);
+                max[c] = Math.max(max[c], x);
+            }
+            staging.putFloat(vt[t]).putFloat(1.0f - vt[t + 1]);
+            if (normals) {
+                int n = cornerNormals[i] * 3, g = cornerNormals[i] * 4;
+                staging.putFloat(vn[n]).putFloat(vn[n + 1]).putFloat(vn[n + 2]);
+                staging.putFloat(tn[g]).putFloat(tn[g + 1]).putFloat(tn[g + 2]).putFloat(-tn[g + 3]);
+            }
+        }
+        binLength += (long)vertexCount * stride;
+
+        long indexOffset = binLength;
+        for (int i = 0; i < indexCount; i++) {
+            reserve(4);
+            staging.putInt(indices[i]);
+        }
+        binLength += indexCount * 4L;
+
+        int vertexView = addBufferView(vertexOffset, (long)vertexCount * stride, stride, ARRAY_BUFFER);
+        int indexView = addBufferView(indexOffset, indexCount * 4L, 0, ELEMENT_ARRAY_BUFFER);
+        int position = addAccessor(vertexView, 0, FLOAT, vertexCount, "VEC3", min, max);
+        int texcoord = addAccessor(vertexView, 12, FLOAT, vertexCount, "VEC2", null, null);
+        int normal = normals ? addAccessor(vertexView, 20, FLOAT, vertexCount, "VEC3", null, null) : -1;
+        int tangent = normals ? addAccessor(vertexView, 32, FLOAT, vertexCount, "VEC4", null, null) : -1;
+
+        StringBuilder json = separator(meshes, meshCount);
+        json.append("{\"name\":").append(quote(m.getName())).append(",\"primitives\":[");
+        boolean firstPrimitive = true;
+        for (int[] run : runs) {
+            int index = addAccessor(indexView, run[1] * 4L, UNSIGNED_INT, run[2], "SCALAR", null, null);
+            Integer material = materials.computeIfAbsent(run[0], id -> materials.size());
+            json.append(firstPrimitive ? "" : ",")
+                    .append("{\"attributes\":{\"POSITION\":").append(position)
+                    .append(",\"TEXCOORD_0\":").append(texcoord);
+            if (normals) {
+                json.append(",\"NORMAL\":").append(normal).append(",\"TANGENT\":").append(tangent);
+            }
+            json.append("},\"indices\":").append(index)
+                    .append(",\"material\":").append(material).append('}');
+            firstPrimitive = false;
+        }
+        json.append("]}");
+        // Flushes along the way are timed as writes, leave them out
+        Metrics.end(Metrics.Stage.ENCODE, start == 0 ? 0 : start + flushNanos - flushedBefore);
+        return meshCount++;
+    }
+
+    /**
+     * Add a node for an instance, writing its shared mesh on first use
+     * @return node index, or -1 if the mesh has no faces
+     */
+    private int addInstanceNode(MeshInstance instance) throws IOException {
+        Integer mesh = sharedMeshes.get(instance.getMesh());
+        if (mesh == null) {
+            mesh = writeMesh(instance.getMesh());
+            sharedMeshes.put(instance.getMesh(), mesh);
+        }
+        return mesh >= 0 ? addNode(instance.getName(), mesh, instance.getTransformation(), null) : -1;
+    }
+
+    /**
+     * Add a node
+     * @param mesh glTF mesh index, or -1 for a node without a mesh
+     * @param t transformation, or null for identity
+     * @param members further JSON members such as children and extensions, or null
+     * @return node index
+     */
+    private int addNode(String name, int mesh, Transformation t, String members) {
+        StringBuilder json = separator(nodes, nodeCount);
+        json.append("{\"name\":").append(quote(name));
+        if (mesh >= 0) {
+            json.append(",\"mesh\":").append(mesh);
+        }
+        if (t != null) {
+            // glTF matrices are column-major, ours are row-major
+            json.append(",\"matrix\":[");
+            for (int col = 0; col < 4; col++) {
+                for (int row = 0; row < 4; row++) {
+                    json.append(col + row == 0 ? "" : ",").append(t.elements[row * 4 + col]);
+                }
+            }
+            json.append(']');
+        }
+        if (members != null) {
+            json.append(',').append(members);
+        }
+        json.append('}');
+        return nodeCount++;
+    }
+
+    private int addBufferView(long offset, long length, int stride, int target) {
+        StringBuilder json = separator(bufferViews, bufferViewCount);
+        json.append("{\"buffer\":0,\"byteOffset\":").append(offset).append(",\"byteLength\":").append(length);
+        if (stride > 0) {
+            json.append(",\"byteStride\":").append(stride);
+        }
+        json.append(",\"target\":").append(target).append('}');
+        return bufferViewCount++;
+    }
+
+    private int addAccessor(int view, long offset, int componentType, int count, String type,
+                            float[] min, float[] max) {
+        StringBuilder json = separator(accessors, accessorCount);
+        json.append("{\"bufferView\":").append(view).append(",\"byteOffset\":").append(offset)
+                .append(",\"componentType\":").append(componentType).append(",\"count\":").append(count)
+                .append(",\"type\":\"").append(type).append('"');
+        if (min != null) {
+            json.append(",\"min\":[").append(min[0]).append(',').append(min[1]).append(',').append(min[2])
+                    .append("],\"max\":[").append(max[0]).append(',').append(max[1]).append(',').append(max[2])
+                    .append(']');
+        }
+        json.append('}');
+        return accessorCount++;
+    }
+
+    private String buildJson() {
+        StringBuilder json = new StringBuilder(nodes.length() + meshes.length() + accessors.length()
+                + bufferViews.length() + 1024);
+        json.append("{\"asset\":{\"version\":\"2.0\",\"generator\":\"Gigopolis City Generator\"}");
+        if (usesLods) {
+            json.append(",\"extensionsUsed\":[\"MSFT_lod\"]");
+        }
+        json.append(",\"scene\":0,\"scenes\":[{");
+        if (nodeCount > childNodes.cardinality()) {
+            json.append("\"nodes\":[");
+            boolean first = true;
+            for (int i = 0; i < nodeCount; i++) {
+                if (childNodes.get(i)) continue;
+                json.append(first ? "" : ",").append(i);
+                first = false;
+            }
+            json.append(']');
+        }
+        json.append("}]");
+        appendArray(json, "nodes", nodes);
+        appendArray(json, "meshes", meshes);
+        if (!materials.isEmpty()) {
+            json.append(",\"materials\":[");
+            boolean first = true;
+            for (int id : materials.keySet()) {
+                json.append(first ? "" : ",").append("{\"name\":\"mat").append(id).append("\"}");
+                first = false;
+            }
+            json.append(']');
+        }
+        appendArray(json, "accessors", accessors);
+        appendArray(json, "bufferViews", bufferViews);
+        if (binLength > 0) {
+            json.append(",\"buffers\":[{\"byteLength\":").append(binLength).append("}]");
+        }
+        return json.append('}').toString();
+    }
+
+    // glTF doesn't allow empty arrays, so leave them out
+    private static void appendArray(StringBuilder json, String name, StringBuilder contents) {
+        if (contents.length() > 0) {
+            json.append(",\"").append(name).append("\":[").append(contents).append(']');
+        }
+    }
+
+    private static StringBuilder separator(StringBuilder array, int count) {
+        return count > 0 ? array.append(',') : array;
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int)c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static int pad(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private void reserve(int bytes) throws IOException {
+        if (staging.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        long start = Metrics.start();
+        staging.flip();
+        while (staging.hasRemaining()) {
+            binFile.write(staging);
+        }
+        staging.clear();
+        Metrics.end(Metrics.Stage.WRITE, start);
+        if (start != 0) {
+            flushNanos += System.nanoTime() - start;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package citymesh;
+
+import java.util.Arrays;
+
+/**
+ * Builds chains of reduced-detail versions of a mesh by vertex clustering.
+ *
+ * Vertices are snapped together per cell of a grid anchored at the world origin, and faces which collapse
+ * are dropped. The cell size starts from the mesh's extent and is grown until each level is at or below its
+ * target face count, so neighbouring meshes generally end up on different grids. What keeps them from
+ * opening cracks is that vertices on open boundaries (edges used by a single face, such as the bottom of a
+ * building's walls) are never moved, so edges where meshes meet stay where they were.
+ *
+ * Builders hold no state between calls, so one builder can be used from several threads.
+ */
+public class LodBuilder {
+
+    // Tries per level before settling for whatever face count was reached
+    private static final int MAX_STEPS = 24;
+
+    private final float[] ratios;
+
+    /**
+     * @param ratios target face count of each level as a fraction of the full-detail face count, decreasing
+     */
+    public LodBuilder(float... ratios) {
+        this.ratios = ratios.clone();
+    }
+
+    public int levels() { return ratios.length; }
+
+    /**
+     * Build the LOD chain for a mesh
+     * @param m full-detail mesh
+     * @return the mesh itself followed by one mesh per level, named with _LOD1, _LOD2, ... suffixes
+     */
+    public Mesh[] build(Mesh m) {
+        Mesh[] lods = new Mesh[ratios.length + 1];
+        lods[0] = m;
+        if (ratios.length == 0) {
+            return lods;
+        }
+
+        boolean[] locked = boundaryVertices(m);
+        float cell = Math.max(extent(m) / 1024.0f, Float.MIN_NORMAL);
+        for (int level = 1; level <= ratios.length; level++) {
+            String name = levelName(m.getName(), level);
+            int target = (int)(m.faceCount() * ratios[level - 1]);
+            Mesh lod = cluster(m, locked, cell, name);
+            for (int step = 0; step < MAX_STEPS && lod.faceCount() > target; step++) {
+                cell *= 1.5f;
+                lod = cluster(m, locked, cell, name);
+            }
+            lods[level] = lod;
+        }
+        return lods;
+    }
+
+    /**
+     * Name of a level of detail of a mesh, e.g. Building_12_LOD1
+     */
+    public static String levelName(String name, int level) {
+        return name + "_LOD" + level;
+    }
+
+    /**
+     * Collapse vertices sharing a grid cell into one, dropping faces left with fewer than three corners.
+     * Locked vertices keep their position and pull unlocked vertices in their cell onto them;
+     * other clusters move to the average of their vertices.
+     */
+    private static Mesh cluster(Mesh m, boolean[] locked, float cell, String name) {
+        int n = m.vertexCount();
+        float[] v = m.verts.data;
+        Mesh lod = new Mesh(name);
+        lod.uvs.addAll(m.uvs);
+
+        LongIntMap cells = new LongIntMap(n);
+        int[] remap = new int[n];
+        float[] sums = new float[n * 3];
+        int[] counts = new int[n];
+        boolean[] pinned = new boolean[n];
+
+        // Locked vertices first, so they claim their cells before any unlocked vertex does
+        for (int pass = 0; pass < 2; pass++) {
+            for (int id = 0; id < n; id++) {
+                if (locked[id] != (pass == 0)) continue;
+                float x = v[id * 3], y = v[id * 3 + 1], z = v[id * 3 + 2];
+                int next = lod.verts.size();
+                long key = cellKey(x, y, z, cell);
+                if (locked[id]) {
+                    cells.putIfAbsent(key, next);
+                    remap[id] = lod.verts.add(x, y, z);
+                    pinned[next] = true;
+                    continue;
+                }
+                int cluster = cells.putIfAbsent(key, next);
+                if (cluster == next) {
+                    lod.verts.add(x, y, z);
+                }
+                remap[id] = cluster;
+                sums[cluster * 3] += x;
+                sums[cluster * 3 + 1] += y;
+                sums[cluster * 3 + 2] += z;
+                counts[cluster]++;
+            }
+        }
+        // Clusters with a locked vertex stay put, others move to their average
+        float[] out = lod.verts.data;
+        for (int c = 0; c < lod.vertexCount(); c++) {
+            if (!pinned[c] && counts[c] > 0) {
+                out[c * 3] = sums[c * 3] / counts[c];
+                out[c * 3 + 1] = sums[c * 3 + 1] / counts[c];
+                out[c * 3 + 2] = sums[c * 3 + 2] / counts[c];
+            }
+        }
+        lod.verts.invalidate();
+
+        int[] vertIDs = new int[16], uvIDs = new int[16];
+        for (FaceList faces : m.faces.values()) {
+            for (int f = 0; f < faces.count; f++) {
+                int size = faces.size(f);
+                if (vertIDs.length < size) {
+                    vertIDs = new int[size];
+                    uvIDs = new int[size];
+                }
+                int kept = 0;
+                for (int c = faces.offsets[f]; c < faces.offsets[f + 1]; c++) {
+                    int id = remap[faces.vertIDs[c]];
+                    if (kept == 0 || vertIDs[kept - 1] != id) {
+                        vertIDs[kept] = id;
+                        uvIDs[kept] = faces.uvIDs[c];
+                        kept++;
+                    }
+                }
+                if (kept > 1 && vertIDs[kept - 1] == vertIDs[0]) {
+                    kept--;
+                }
+                if (kept >= 3) {
+                    lod.addFace(faces.material, vertIDs, uvIDs, kept);
+                }
+            }
+        }
+        return lod;
+    }
+
+    /**
+     * Find vertices on edges used by only one face
+     */
+    static boolean[] boundaryVertices(Mesh m) {
+        LongIntMap edges = new LongIntMap(m.vertexCount() * 2);
+        int[] uses = new int[Math.max(m.vertexCount() * 2, 16)];
+        int[] from = new int[uses.length], to = new int[uses.length];
+        int edgeCount = 0;
+        for (FaceList faces : m.faces.values()) {
+            for (int f = 0; f < faces.count; f++) {
+                int start = faces.offsets[f], end = faces.offsets[f + 1];
+                for (int c = start; c < end; c++) {
+                    int a = faces.vertIDs[c], b = faces.vertIDs[c + 1 < end ? c + 1 : start];
+                    if (a == b) continue;
+                    long key = a < b ? ((long)a << 32) | b : ((long)b << 32) | a;
+                    int edge = edges.putIfAbsent(key, edgeCount);
+                    if (edge == edgeCount) {
+                        if (edgeCount == uses.length) {
+                            uses = Arrays.copyOf(uses, edgeCount * 2);
+                            from = Arrays.copyOf(from, edgeCount * 2);
+                            to = Arrays.copyOf(to, edgeCount * 2);
+                        }
+                        from[edgeCount] = a;
+                        to[edgeCount] = b;
+                        edgeCount++;
+                    }
+                    uses[edge]++;
+                }
+            }
+        }
+        boolean[] locked = new boolean[m.vertexCount()];
+        for (int e = 0; e < edgeCount; e++) {
+            if (uses[e] == 1) {
+                locked[from[e]] = true;
+                locked[to[e]] = true;
+            }
+        }
+        return locked;
+    }
+
+    private static long cellKey(float x, float y, float z, float cell) {
+        return SpatialHash.key((int)Math.floor(x / cell), (int)Math.floor(y / cell), (int)Math.floor(z / cell));
+    }
+
+    // Largest side of the mesh's bounding box
+    private static float extent(Mesh m) {
+        float[] v = m.verts.data;
+        float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = 0; i < m.vertexCount() * 3; i++) {
+            min[i % 3] = Math.min(min[i % 3], v[i]);
+            max[i % 3] = Math.max(max[i % 3], v[i]);
+        }
+        return Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+    }
+}
@@ -0,0 +1,76 @@
+package citymesh;
+
+import java.util.Arrays;
+
+/**
+ * Primitive open-addressing hash map from long keys to non-negative int values
+ */
+class LongIntMap {
+
+    private long[] keys;
+    // Value + 1 for each slot, 0 means empty
+    private int[] values;
+    private int size;
+
+    LongIntMap(int capacity) {
+        int len = Math.max(16, Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) << 1);
+        keys = new long[len];
+        values = new int[len];
+    }
+
+    int size() { return size; }
+
+    /**
+     * @return value for the key, or -1 if absent
+     */
+    int get(long key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (values[slot] == 0) return -1;
+            if (keys[slot] == key) return values[slot] - 1;
+        }
+    }
+
+    /**
+     * Get the value for a key, adding it with the given value if absent
+     * @return existing value, or the given one if it was added
+     */
+    int putIfAbsent(long key, int value) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        for (; values[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) return values[slot] - 1;
+        }
+        keys[slot] = key;
+        values[slot] = value + 1;
+        if (++size * 2 > keys.length) grow();
+        return value;
+    }
+
+    void clear() {
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] == 0) continue;
+            int slot = hash(oldKeys[i]) & mask;
+            while (values[slot] != 0) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int)key;
+    }
+}
@@ -7,36 +7,29 @@ public class Mesh {
     // Name of mesh / object
     private String name;
 
-    // Maps coord to ID
-    // Mapping seems backwards, but this results in O(1) ID lookup and vertex checks, making adding faces fast.
-    // Translation and other operations will be O(n) though and memory-intensive as the map must be cloned.
-    Map<Vector3, Integer> verts;
-    Map<Vector2, Integer> uvs;
+    // Vertex positions and uv coordinates packed into flat float arrays, indexed by ID.
+    // Each keeps a primitive hash index for deduplication, so adding faces is O(1) per vertex without boxing,
+    // and translation or transformation is a single pass over the arrays.
+    AttributeArray verts;
+    AttributeArray uvs;
 
-    // Maps IDs to vertices
-    //List<Vector3> vertsByID;
-    //List<Vector2> uvsByID;
+    // Faces bucketed by material ID, sorted by material
+    SortedMap<Integer, FaceList> faces;
+    private int faceCount;
 
-    class Face {
-        int[] vertIDs;
-        int[] uvIDs;
-        int matID;
-    }
-    SortedSet<Face> faces;
+    // Bucket of the last face added, as consecutive faces usually share a material
+    private FaceList lastFaces;
+
+    // Normals (x, y, z) and tangents (x, y, z, handedness) packed by normal ID, or null until computed by
+    // NormalBuilder. Corners reference them through their face list's normIDs. Each normal belongs to a single
+    // vertex, so a normal ID and uv ID together identify all attributes of a corner. Adding faces clears them.
+    float[] normals, tangents;
+    private int normalCount;
 
     public Mesh(String name) {
-        verts = new HashMap<>();
-        uvs = new HashMap<>();
-
-        // Faces are in a set sorted by material first
-        faces = new TreeSet<>((a, b) ->
-            {
-                if (a.matID != b.matID) {
-                    return Integer.compare(a.matID, b.matID);
-                }
-                return Arrays.compare(a.vertIDs, b.vertIDs);
-            }
-        );
+        verts = new AttributeArray(3);
+        uvs = new AttributeArray(2);
+        faces = new TreeMap<>();
         this.name = name;
     }
 
@@ -50,22 +43,78 @@ public class Mesh {
     }
 
     public String getName() { return name; }
+    public void setName(String name) { this.name = name; }
     public int vertexCount() { return verts.size(); }
-    public int faceCount() { return faces.size(); }
+    public int uvCount() { return uvs.size(); }
+    public int faceCount() { return faceCount; }
+    public int normalCount() { return normalCount; }
+    public boolean hasNormals() { return normals != null; }
 
     public String toString() {
         return String.format("Mesh(\"%s\", V: %d, F: %d)", name, vertexCount(), faceCount());
     }
 
+    /**
+     * Get vertex position by ID
+     * @param id vertex ID
+     * @return a new vector holding the position
+     */
+    public Vector3 getVert(int id) {
+        return new Vector3(verts.get(id, 0), verts.get(id, 1), verts.get(id, 2));
+    }
+
+    /**
+     * Get uv coordinate by ID
+     * @param id uv ID
+     * @return a new vector holding the uv coordinate
+     */
+    public Vector2 getUV(int id) {
+        return new Vector2(uvs.get(id, 0), uvs.get(id, 1));
+    }
+
+    /**
+     * Get normal by ID
+     * @param id normal ID
+     * @return a new vector holding the normal
+     */
+    public Vector3 getNormal(int id) {
+        return new Vector3(normals[id * 3], normals[id * 3 + 1], normals[id * 3 + 2]);
+    }
+
+    /**
+     * Replace the mesh's normals. The caller sets the normal IDs of every face list.
+     * @param normals x, y, z of each normal
+     * @param tangents x, y, z and handedness of each normal's tangent
+     * @param count number of normals
+     */
+    void setNormals(float[] normals, float[] tangents, int count) {
+        this.normals = normals;
+        this.tangents = tangents;
+        normalCount = count;
+    }
+
+    /**
+     * Drop normals and tangents, as any change to the faces invalidates them
+     */
+    public void clearNormals() {
+        if (normals == null) {
+            return;
+        }
+        normals = tangents = null;
+        normalCount = 0;
+        for (FaceList f : faces.values()) {
+            f.normIDs = null;
+        }
+    }
+
     /**
      * Add vertex to vertex set
      * @param vert coordinates of vertex to add
      * @return ID of new vertex
      */
-     int addVert(Vector3 vert) {
-        verts.put(vert, verts.size());
-        return verts.size() - 1;
-     }
+    int addVert(Vector3 vert) {
+        return verts.add(vert.getX(), vert.getY(), vert.getZ());
+    }
 
     /**
      * Add uv to uv set
@@ -73,8 +122,7 @@ public class Mesh {
      * @return ID of new uv coordinate
      */
     int addUV(Vector2 uv) {
-        uvs.put(uv, uvs.size());
-        return uvs.size() - 1;
+        return uvs.add(uv.getU(), uv.getV(), 0);
     }
 
     /**
@@ -83,10 +131,15 @@ public class Mesh {
      * @return vertex ID
      */
     public int getVertID(Vector3 vert) {
-        if (!verts.containsKey(vert)) {
-            return addVert(vert);
-        }
-        return verts.get(vert);
+        return getVertID(vert.getX(), vert.getY(), vert.getZ());
+    }
+
+    /**
+     * Get vertex ID from raw coordinates, adding it if it doesn't exist
+     * @return vertex ID
+     */
+    public int getVertID(float x, float y, float z) {
+        return verts.getOrAdd(x, y, z);
     }
 
     /**
@@ -97,14 +150,18 @@ public class Mesh {
      * @return vertex ID
      */
     public int getVertID(Vector3 vert, float tolerance) {
-        Optional<Vector3> result =
-            verts.keySet().stream().filter(
-                (a) -> a.distance(vert) < tolerance
-            ).findAny();
-        if (result.isEmpty()) {
-            return addVert(vert);
+        return getVertID(vert.getX(), vert.getY(), vert.getZ(), tolerance);
+    }
+
+    /**
+     * Get vertex ID from raw coordinates, merging with the nearest vertex closer than the tolerance
+     * @return vertex ID
+     */
+    public int getVertID(float x, float y, float z, float tolerance) {
+        if (tolerance <= 0.0f) {
+            return getVertID(x, y, z);
         }
-        return verts.get(result.get());
+        return verts.getOrAddNear(x, y, z, tolerance);
     }
 
     /**
@@ -113,10 +170,15 @@ public class Mesh {
      * @return uv coord id
      */
     public int getUVID(Vector2 uv) {
-        if (!uvs.containsKey(uv)) {
-            return addUV(uv);
-        }
-        return uvs.get(uv);
+        return getUVID(uv.getU(), uv.getV());
+    }
+
+    /**
+     * Get UV ID from raw coordinates, adding it if it doesn't exist
+     * @return uv coord id
+     */
+    public int getUVID(float u, float v) {
+        return uvs.getOrAdd(u, v, 0);
     }
 
     /**
@@ -126,14 +188,18 @@ public class Mesh {
      * @return uv coord id
      */
     public int getUVID(Vector2 uv, float tolerance) {
-        Optional<Vector2> result =
-                uvs.keySet().stream().filter(
-                        (a) -> a.distance(uv) < tolerance
-                ).findAny();
-        if (result.isEmpty()) {
-            return addUV(uv);
+        return getUVID(uv.getU(), uv.getV(), tolerance);
+    }
+
+    /**
+     * Get UV ID from raw coordinates, merging with the nearest uv closer than the tolerance
+     * @return uv coord id
+     */
+    public int getUVID(float u, float v, float tolerance) {
+        if (tolerance <= 0.0f) {
+            return getUVID(u, v);
         }
-        return uvs.get(result.get());
+        return uvs.getOrAddNear(u, v, 0, tolerance);
     }
 
     /**
@@ -149,23 +215,116 @@ public class Mesh {
         if (verts.length != uvs.length) {
             return -1;
         }
-        Face face = new Face();
-        face.vertIDs = new int[verts.length];
-        face.uvIDs = new int[uvs.length];
-        face.matID = material;
-        if (tolerance <= 0.0f) {
-            for (int i = 0; i < verts.length; i++) {
-                face.vertIDs[i] = getVertID(verts[i]);
-                face.uvIDs[i] = getUVID(uvs[i]);
-            }
-        } else {
-            for (int i = 0; i < verts.length; i++) {
-                face.vertIDs[i] = getVertID(verts[i], tolerance);
-                face.uvIDs[i] = getUVID(uvs[i]);
+        clearNormals();
+        FaceList list = faceList(material);
+        for (int i = 0; i < verts.length; i++) {
+            list.addCorner(getVertID(verts[i].getX(), verts[i].getY(), verts[i].getZ(), tolerance),
+                    getUVID(uvs[i].getU(), uvs[i].getV()));
+        }
+        list.endFace();
+        return ++faceCount;
+    }
+
+    /**
+     * Add a face from existing vertex and uv IDs
+     * @param material integer material ID to use
+     * @param vertIDs vertex ID of each corner
+     * @param uvIDs uv ID of each corner
+     * @param corners number of corners to take from the arrays
+     * @return face ID
+     */
+    int addFace(int material, int[] vertIDs, int[] uvIDs, int corners) {
+        clearNormals();
+        FaceList list = faceList(material);
+        for (int i = 0; i < corners; i++) {
+            list.addCorner(vertIDs[i], uvIDs[i]);
+        }
+        list.endFace();
+        return ++faceCount;
+    }
+
+    /**
+     * Add a complete face list, such as one decoded by MeshCodec.
+     * The mesh must not have faces of the list's material yet.
+     */
+    void putFaces(FaceList list) {
+        faces.put(list.material, list);
+        faceCount += list.count;
+    }
+
+    /**
+     * Replace all faces, such as after culling. The lists must be of distinct materials.
+     */
+    void setFaces(List<FaceList> lists) {
+        faces.clear();
+        lastFaces = null;
+        faceCount = 0;
+        for (FaceList list : lists) {
+            putFaces(list);
+        }
+    }
+
+    /**
+     * Drop vertices, uvs and normals which no face uses, numbering the rest in order of first use.
+     * The faces are left as they are apart from the renumbering.
+     */
+    public void compact() {
+        int[] vertMap = new int[vertexCount()], uvMap = new int[uvCount()];
+        int[] normMap = normals == null ? null : new int[normalCount];
+        Arrays.fill(vertMap, -1);
+        Arrays.fill(uvMap, -1);
+        if (normMap != null) {
+            Arrays.fill(normMap, -1);
+        }
+        float[] v = new float[vertexCount() * 3], vt = new float[uvCount() * 2];
+        float[] vn = normMap == null ? null : new float[normalCount * 3], tn = vn == null ? null : new float[normalCount * 4];
+        int vertCount = 0, uvCount = 0, normCount = 0;
+        for (FaceList f : faces.values()) {
+            for (int c = 0; c < f.corners; c++) {
+                int id = f.vertIDs[c];
+                if (vertMap[id] < 0) {
+                    System.arraycopy(verts.data, id * 3, v, vertCount * 3, 3);
+                    vertMap[id] = vertCount++;
+                }
+                f.vertIDs[c] = vertMap[id];
+                id = f.uvIDs[c];
+                if (uvMap[id] < 0) {
+                    System.arraycopy(uvs.data, id * 2, vt, uvCount * 2, 2);
+                    uvMap[id] = uvCount++;
+                }
+                f.uvIDs[c] = uvMap[id];
+                if (vn != null) {
+                    id = f.normIDs[c];
+                    if (normMap[id] < 0) {
+                        System.arraycopy(normals, id * 3, vn, normCount * 3, 3);
+                        System.arraycopy(tangents, id * 4, tn, normCount * 4, 4);
+                        normMap[id] = normCount++;
+                    }
+                    f.normIDs[c] = normMap[id];
+                }
             }
         }
-        faces.add(face);
-        return faces.size();
+        verts.data = v;
+        verts.size = vertCount;
+        verts.invalidate();
+        uvs.data = vt;
+        uvs.size = uvCount;
+        uvs.invalidate();
+        if (vn != null) {
+            setNormals(vn, tn, normCount);
+        }
+    }
+
+    /**
+     * Get the face list for a material, creating it if needed
+     */
+    FaceList faceList(int material) {
+        FaceList list = lastFaces;
+        if (list == null || list.material != material) {
+            list = faces.computeIfAbsent(material, FaceList::new);
+            lastFaces = list;
+        }
+        return list;
     }
 
     /**
@@ -182,16 +341,19 @@ public class Mesh {
 
     /**
      * Translates all vertices in this mesh.
-     * Expensive, so call sparingly.
      *
      * @param amount
      */
     public void translate(Vector3 amount) {
-        Map<Vector3, Integer> newverts = new HashMap<>();
-        for (Map.Entry<Vector3, Integer> vtx : verts.entrySet()) {
-            newverts.put(vtx.getKey().add(amount), vtx.getValue());
+        float dx = amount.getX(), dy = amount.getY(), dz = amount.getZ();
+        float[] data = verts.data;
+        int end = verts.size() * 3;
+        for (int i = 0; i < end; i += 3) {
+            data[i] += dx;
+            data[i + 1] += dy;
+            data[i + 2] += dz;
         }
-        verts = newverts;
+        verts.invalidate();
     }
 
     /**
@@ -199,40 +361,102 @@ public class Mesh {
      * @param t transformation to use
      */
     public void transform(Transformation t) {
-        Map<Vector3, Integer> newverts = new HashMap<>();
-        for (Map.Entry<Vector3, Integer> vtx : verts.entrySet()) {
-            newverts.put(t.transform(vtx.getKey()), vtx.getValue());
+        long start = Metrics.start();
+        t.transformPoints(verts.data, 0, verts.size());
+        verts.invalidate();
+        if (normals != null) {
+            t.transformNormals(normals, 0, normals, 0, normalCount);
+            t.transformTangents(tangents, 0, tangents, 0, normalCount);
         }
-        verts = newverts;
+        Metrics.end(Metrics.Stage.TRANSFORM, start);
     }
 
     /**
-     * Append another mesh to this one
+     * Append another mesh to this one.
+     * With a tolerance of zero the other mesh's buffers are copied in bulk and its vertices are not merged
+     * with existing ones. Otherwise each vertex of the other mesh is welded once, and faces are remapped.
+     * Normals are kept when copying in bulk if both meshes have them, or this one has no faces yet;
+     * welding drops them.
+     *
      * @param other another mesh to add
      * @param tolerance distance to merge vertices
      */
     public void append(Mesh other, float tolerance) {
-        for (Face f : other.faces) {
-            Vector3[] verts = new Vector3[f.vertIDs.length];
-            Vector2[] uvs = new Vector2[f.uvIDs.length];
-
-            for (Map.Entry<Vector3, Integer> vtx : other.verts.entrySet()) {
-                for (int i = 0; i < verts.length; i++) {
-                    if (vtx.getValue() == f.vertIDs[i]) {
-                        verts[i] = vtx.getKey();
-                    }
-                }
+        if (tolerance <= 0.0f) {
+            int vertOffset = verts.addAll(other.verts);
+            int uvOffset = uvs.addAll(other.uvs);
+            int normOffset = appendNormals(other, null);
+            for (FaceList f : other.faces.values()) {
+                faceList(f.material).addAll(f, vertOffset, uvOffset, normOffset);
             }
+            faceCount += other.faceCount;
+            return;
+        }
+        clearNormals();
 
-            for (Map.Entry<Vector2, Integer> uv : other.uvs.entrySet()) {
-                for (int i = 0; i < verts.length; i++) {
-                    if (uv.getValue() == f.uvIDs[i]) {
-                        uvs[i] = uv.getKey();
-                    }
-                }
-            }
+        // Weld each vertex of the other mesh once rather than once per face corner
+        float[] v = other.verts.data;
+        int[] vertMap = new int[other.vertexCount()];
+        for (int id = 0; id < vertMap.length; id++) {
+            vertMap[id] = getVertID(v[id * 3], v[id * 3 + 1], v[id * 3 + 2], tolerance);
+        }
+        float[] vt = other.uvs.data;
+        int[] uvMap = new int[other.uvCount()];
+        for (int id = 0; id < uvMap.length; id++) {
+            uvMap[id] = getUVID(vt[id * 2], vt[id * 2 + 1]);
+        }
+        for (FaceList f : other.faces.values()) {
+            faceList(f.material).addAll(f, vertMap, uvMap);
+        }
+        faceCount += other.faceCount;
+    }
+
+    /**
+     * Append another mesh placed by a transformation. Its buffers are copied in bulk, transforming
+     * vertices on the way, and its vertices are not merged with existing ones. Normals are kept and
+     * transformed as for append(other, 0).
+     *
+     * @param other another mesh to add, left unchanged
+     * @param t transformation to apply to the other mesh's vertices
+     */
+    public void append(Mesh other, Transformation t) {
+        int vertOffset = verts.addAll(other.verts, t);
+        int uvOffset = uvs.addAll(other.uvs);
+        int normOffset = appendNormals(other, t);
+        for (FaceList f : other.faces.values()) {
+            faceList(f.material).addAll(f, vertOffset, uvOffset, normOffset);
+        }
+        faceCount += other.faceCount;
+    }
 
-            addFace(verts, uvs, f.matID, tolerance);
+    /**
+     * Copy another mesh's normals after this mesh's if both have them, or this one has no faces yet.
+     * Otherwise drop this mesh's normals.
+     * @param t transformation to apply to the normals, or null
+     * @return offset to add to the other mesh's normal IDs, or -1 if normals were dropped
+     */
+    private int appendNormals(Mesh other, Transformation t) {
+        if (other.normals == null || (normals == null && faceCount > 0)) {
+            clearNormals();
+            return -1;
+        }
+        int offset = normalCount, count = other.normalCount;
+        if (normals == null) {
+            normals = new float[count * 3];
+            tangents = new float[count * 4];
+        } else if ((offset + count) * 3 > normals.length) {
+            int capacity = Math.max(offset + count, offset * 2);
+            normals = Arrays.copyOf(normals, capacity * 3);
+            tangents = Arrays.copyOf(tangents, capacity * 4);
+        }
+        if (t == null) {
+            System.arraycopy(other.normals, 0, normals, offset * 3, count * 3);
+            System.arraycopy(other.tangents, 0, tangents, offset * 4, count * 4);
+        } else {
+            t.transformNormals(other.normals, 0, normals, offset * 3, count);
+            t.transformTangents(other.tangents, 0, tangents, offset * 4, count);
         }
+        normalCount += count;
+        return offset;
     }
 }
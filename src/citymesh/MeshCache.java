@@ -0,0 +1,185 @@
+package citymesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+/**
+ * Content-addressed on-disk cache of finished meshes.
+ *
+ * Each entry is a group of meshes, such as a building and its levels of detail, stored under a 64-bit key
+ * in its own file using MeshCodec, and read back in one go. Keys should hash everything the
+ * meshes depend on, so entries never need to be invalidated. The total size is bounded by evicting the
+ * least recently used entries; use is tracked by file modification time, so it carries over between runs.
+ *
+ * Safe to use from several threads. Entries are written to a temporary file and moved into place,
+ * so readers never see partial entries.
+ */
+public class MeshCache {
+
+    private static final int MAGIC = 0x48434D43;   // "CMCH"
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".mesh";
+
+    private final Path dir;
+    private final long maxBytes;
+
+    // Size of each entry, least recently used first
+    private final LinkedHashMap<Long, Long> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes;
+
+    /**
+     * Open a cache directory, creating it if needed, and index the entries already in it
+     * @param dir directory holding the cache files
+     * @param maxBytes size above which least recently used entries are evicted
+     */
+    public MeshCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        Map<Path, FileTime> times = new HashMap<>();
+        for (Path p : files) {
+            times.put(p, Files.getLastModifiedTime(p));
+        }
+        files.sort(Comparator.comparing(times::get));
+        for (Path p : files) {
+            String name = p.getFileName().toString();
+            try {
+                long key = Long.parseUnsignedLong(name.substring(0, name.length() - SUFFIX.length()), 16);
+                long size = Files.size(p);
+                entries.put(key, size);
+                totalBytes += size;
+            } catch (NumberFormatException e) {
+                // Not one of ours
+            }
+        }
+        evict(null);
+    }
+
+    public synchronized int entryCount() { return entries.size(); }
+    public synchronized long sizeBytes() { return totalBytes; }
+
+    /**
+     * Read an entry back
+     * @param key key the meshes were stored under
+     * @return the meshes, or null if they aren't cached
+     */
+    public Mesh[] get(long key) {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                return null;
+            }
+        }
+        Path path = path(key);
+        try {
+            // Read into the heap rather than mapping, as decoding copies everything anyway, and a live mapping
+            // would keep the file from being evicted or replaced on Windows until it is garbage collected
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.remaining() < 20 || buf.getInt() != MAGIC || buf.getInt() != VERSION || buf.getLong() != key) {
+                throw new IllegalArgumentException("Not a cache entry for this key");
+            }
+            Mesh[] meshes = new Mesh[buf.getInt()];
+            for (int i = 0; i < meshes.length; i++) {
+                meshes[i] = MeshCodec.decode(buf);
+            }
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            return meshes;
+        } catch (NoSuchFileException e) {
+            // Evicted by another thread since the index was checked
+            remove(key);
+            return null;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Dropping unreadable cache entry " + path + ": " + e.getMessage());
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Store an entry, evicting least recently used entries if the cache grows too large
+     * @param key key to store the meshes under
+     * @param meshes meshes to store, not modified
+     * @return true on success, false on failure
+     */
+    public boolean put(long key, Mesh[] meshes) {
+        long size = 20;
+        for (Mesh m : meshes) {
+            size += MeshCodec.encodedSize(m);
+        }
+        if (size > Integer.MAX_VALUE) {
+            return false;
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC).putInt(VERSION).putLong(key).putInt(meshes.length);
+        for (Mesh m : meshes) {
+            MeshCodec.encode(m, buf);
+        }
+        buf.flip();
+
+        Path path = path(key);
+        Path tmp = dir.resolve(path.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            try (FileChannel file = FileChannel.open(tmp,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buf.hasRemaining()) {
+                    file.write(buf);
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to write cache entry " + path + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+        synchronized (this) {
+            Long old = entries.put(key, size);
+            totalBytes += size - (old != null ? old : 0);
+            evict(key);
+        }
+        return true;
+    }
+
+    // Remove least recently used entries until the cache fits, keeping the given one
+    private synchronized void evict(Long keep) {
+        Iterator<Map.Entry<Long, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<Long, Long> e = it.next();
+            if (e.getKey().equals(keep)) continue;
+            try {
+                Files.deleteIfExists(path(e.getKey()));
+            } catch (IOException ex) {
+                System.err.println("Failed to evict cache entry: " + ex.getMessage());
+                continue;
+            }
+            totalBytes -= e.getValue();
+            it.remove();
+        }
+    }
+
+    private synchronized void remove(long key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+            try {
+                Files.deleteIfExists(path(key));
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private Path path(long key) {
+        return dir.resolve(String.format("%016x", key) + SUFFIX);
+    }
+}
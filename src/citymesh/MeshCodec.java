@@ -0,0 +1,256 @@
+package citymesh;
+
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact binary encoding of a mesh, used for caching and the binary file format.
+ *
+ * A mesh is written as its name, counts, the packed vertex and uv arrays and then each material's face
+ * list as flat index arrays, all little-endian and 4-byte aligned, so decoding is a handful of bulk copies
+ * and views can be laid directly over the encoded bytes:
+ * <pre>
+ *     int nameLength, UTF-8 name padded to 4 bytes
+ *     int vertexCount, uvCount, normalCount, listCount
+ *     float[vertexCount * 3] positions, float[uvCount * 2] uvs,
+ *     float[normalCount * 3] normals, float[normalCount * 4] tangents
+ *     per list: int material, faceCount, cornerCount,
+ *               int[faceCount] face sizes, int[cornerCount] vertex IDs, int[cornerCount] uv IDs,
+ *               int[cornerCount] normal IDs if normalCount is not zero
+ * </pre>
+ * Quantized encoding replaces each position and uv array with the minimum and step of each component followed
+ * by unsigned 16-bit steps from the minimum, padded to 4 bytes. That halves attribute size and keeps positions
+ * within 1/65535 of the mesh's extent. Normals and tangents, whose components are all within [-1, 1], become
+ * signed 16-bit fractions of 32767.
+ */
+public final class MeshCodec {
+
+    private MeshCodec() {}
+
+    /**
+     * @return number of bytes encode() writes for the mesh
+     */
+    public static long encodedSize(Mesh m) {
+        return encodedSize(m, false);
+    }
+
+    /**
+     * @param quantize true for quantized attributes
+     * @return number of bytes encode() writes for the mesh
+     */
+    public static long encodedSize(Mesh m, boolean quantize) {
+        long size = 4 + pad(m.getName().getBytes(StandardCharsets.UTF_8).length) + 16;
+        int normals = m.normalCount();
+        if (quantize) {
+            size += 24 + pad(m.vertexCount() * 6) + 16 + pad(m.uvCount() * 4) + pad(normals * 14);
+        } else {
+            size += (m.vertexCount() * 3L + m.uvCount() * 2L + normals * 7L) * 4;
+        }
+        for (FaceList faces : m.faces.values()) {
+            size += 12 + (faces.count + faces.corners * (normals > 0 ? 3L : 2L)) * 4;
+        }
+        return size;
+    }
+
+    /**
+     * Write a mesh at the buffer's position, which is advanced past it
+     * @param out buffer with at least encodedSize(m) bytes remaining
+     */
+    public static void encode(Mesh m, ByteBuffer out) {
+        encode(m, out, false);
+    }
+
+    /**
+     * Write a mesh at the buffer's position, which is advanced past it
+     * @param out buffer with at least encodedSize(m, quantize) bytes remaining
+     * @param quantize true to quantize positions and uvs to 16 bits per component
+     */
+    public static void encode(Mesh m, ByteBuffer out, boolean quantize) {
+        ByteBuffer buf = out.slice().order(ByteOrder.LITTLE_ENDIAN);
+        byte[] name = m.getName().getBytes(StandardCharsets.UTF_8);
+        buf.putInt(name.length).put(name);
+        buf.position(pad(buf.position()));
+        int normals = m.normalCount();
+        buf.putInt(m.vertexCount()).putInt(m.uvCount()).putInt(normals).putInt(m.faces.size());
+
+        if (quantize) {
+            quantize(m.verts.data, m.vertexCount(), 3, buf);
+            quantize(m.uvs.data, m.uvCount(), 2, buf);
+            if (normals > 0) {
+                quantizeUnit(m.normals, normals * 3, buf);
+                quantizeUnit(m.tangents, normals * 4, buf);
+                buf.position(pad(buf.position()));
+            }
+        } else {
+            buf.asFloatBuffer().put(m.verts.data, 0, m.vertexCount() * 3);
+            buf.position(buf.position() + m.vertexCount() * 12);
+            buf.asFloatBuffer().put(m.uvs.data, 0, m.uvCount() * 2);
+            buf.position(buf.position() + m.uvCount() * 8);
+            if (normals > 0) {
+                buf.asFloatBuffer().put(m.normals, 0, normals * 3);
+                buf.position(buf.position() + normals * 12);
+                buf.asFloatBuffer().put(m.tangents, 0, normals * 4);
+                buf.position(buf.position() + normals * 16);
+            }
+        }
+
+        for (FaceList faces : m.faces.values()) {
+            buf.putInt(faces.material).putInt(faces.count).putInt(faces.corners);
+            for (int f = 0; f < faces.count; f++) {
+                buf.putInt(faces.size(f));
+            }
+            buf.asIntBuffer().put(faces.vertIDs, 0, faces.corners);
+            buf.position(buf.position() + faces.corners * 4);
+            buf.asIntBuffer().put(faces.uvIDs, 0, faces.corners);
+            buf.position(buf.position() + faces.corners * 4);
+            if (normals > 0) {
+                buf.asIntBuffer().put(faces.normIDs, 0, faces.corners);
+                buf.position(buf.position() + faces.corners * 4);
+            }
+        }
+        out.position(out.position() + buf.position());
+    }
+
+    /**
+     * Read a mesh from the buffer's position, which is advanced past it
+     * @return the decoded mesh
+     * @throws IllegalArgumentException if the data is malformed
+     */
+    public static Mesh decode(ByteBuffer in) {
+        return decode(in, false);
+    }
+
+    /**
+     * Read a mesh from the buffer's position, which is advanced past it
+     * @param quantized true if the mesh was encoded with quantized attributes
+     * @return the decoded mesh
+     * @throws IllegalArgumentException if the data is malformed
+     */
+    public static Mesh decode(ByteBuffer in, boolean quantized) {
+        return view(in, quantized).toMesh();
+    }
+
+    /**
+     * View a mesh at the buffer's position without copying it; the buffer's position is advanced past it.
+     * The view shares the buffer's content, so it must not change while the view is in use.
+     *
+     * @param quantized true if the mesh was encoded with quantized attributes
+     * @return a view of the encoded mesh
+     * @throws IllegalArgumentException if the data is malformed
+     */
+    public static MeshView view(ByteBuffer in, boolean quantized) {
+        ByteBuffer buf = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            byte[] name = new byte[checkCount(buf, buf.getInt(), 1)];
+            buf.get(name);
+            buf.position(pad(buf.position()));
+            int vertexCount = checkCount(buf, buf.getInt(), quantized ? 6 : 12);
+            int uvCount = checkCount(buf, buf.getInt(), quantized ? 4 : 8);
+            int normalCount = checkCount(buf, buf.getInt(), quantized ? 14 : 28);
+            int lists = checkCount(buf, buf.getInt(), 12);
+
+            FloatBuffer positions = null, uvs = null, normals = null, tangents = null;
+            ShortBuffer quantizedPositions = null, quantizedUVs = null, quantizedNormals = null, quantizedTangents = null;
+            float[] positionRange = null, uvRange = null;
+            if (quantized) {
+                positionRange = new float[6];
+                buf.asFloatBuffer().get(positionRange);
+                buf.position(buf.position() + 24);
+                quantizedPositions = take(buf, vertexCount * 6).asShortBuffer();
+                buf.position(pad(buf.position()));
+                uvRange = new float[4];
+                buf.asFloatBuffer().get(uvRange);
+                buf.position(buf.position() + 16);
+                quantizedUVs = take(buf, uvCount * 4).asShortBuffer();
+                buf.position(pad(buf.position()));
+                quantizedNormals = take(buf, normalCount * 6).asShortBuffer();
+                quantizedTangents = take(buf, normalCount * 8).asShortBuffer();
+                buf.position(pad(buf.position()));
+            } else {
+                positions = take(buf, vertexCount * 12).asFloatBuffer();
+                uvs = take(buf, uvCount * 8).asFloatBuffer();
+                normals = take(buf, normalCount * 12).asFloatBuffer();
+                tangents = take(buf, normalCount * 16).asFloatBuffer();
+            }
+
+            int[] materials = new int[lists], counts = new int[lists], corners = new int[lists];
+            IntBuffer[] sizes = new IntBuffer[lists], vertIDs = new IntBuffer[lists], uvIDs = new IntBuffer[lists];
+            IntBuffer[] normIDs = normalCount > 0 ? new IntBuffer[lists] : null;
+            for (int l = 0; l < lists; l++) {
+                materials[l] = buf.getInt();
+                counts[l] = checkCount(buf, buf.getInt(), 4);
+                corners[l] = checkCount(buf, buf.getInt(), 8);
+                sizes[l] = take(buf, counts[l] * 4).asIntBuffer();
+                vertIDs[l] = take(buf, corners[l] * 4).asIntBuffer();
+                uvIDs[l] = take(buf, corners[l] * 4).asIntBuffer();
+                if (normIDs != null) {
+                    normIDs[l] = take(buf, corners[l] * 4).asIntBuffer();
+                }
+            }
+            in.position(in.position() + buf.position());
+            return new MeshView(new String(name, StandardCharsets.UTF_8), vertexCount, uvCount, normalCount,
+                    positions, uvs, quantizedPositions, quantizedUVs, positionRange, uvRange,
+                    normals, tangents, quantizedNormals, quantizedTangents,
+                    materials, counts, corners, sizes, vertIDs, uvIDs, normIDs);
+        } catch (RuntimeException e) {
+            // Buffer underflows and negative sizes from truncated or corrupt data
+            throw e instanceof IllegalArgumentException ? e : new IllegalArgumentException("Malformed mesh data", e);
+        }
+    }
+
+    // Slice the next bytes off a buffer, advancing past them
+    private static ByteBuffer take(ByteBuffer buf, int bytes) {
+        if (bytes > buf.remaining()) {
+            throw new IllegalArgumentException("Mesh data truncated");
+        }
+        ByteBuffer slice = buf.slice(buf.position(), bytes).order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(buf.position() + bytes);
+        return slice;
+    }
+
+    // Write the minimum and step of each component, then each value as unsigned 16-bit steps from the minimum
+    private static void quantize(float[] data, int count, int stride, ByteBuffer buf) {
+        float[] min = new float[stride], max = new float[stride], step = new float[stride];
+        if (count > 0) {
+            Arrays.fill(min, Float.MAX_VALUE);
+            Arrays.fill(max, -Float.MAX_VALUE);
+        }
+        for (int i = 0; i < count * stride; i++) {
+            min[i % stride] = Math.min(min[i % stride], data[i]);
+            max[i % stride] = Math.max(max[i % stride], data[i]);
+        }
+        for (int c = 0; c < stride; c++) {
+            step[c] = (max[c] - min[c]) / 65535.0f;
+            buf.putFloat(min[c]);
+        }
+        for (int c = 0; c < stride; c++) {
+            buf.putFloat(step[c]);
+        }
+        for (int i = 0; i < count * stride; i++) {
+            int c = i % stride;
+            int q = step[c] > 0 ? Math.round((data[i] - min[c]) / step[c]) : 0;
+            buf.putShort((short)Math.max(0, Math.min(q, 65535)));
+        }
+        buf.position(pad(buf.position()));
+    }
+
+    // Write values within [-1, 1] as signed 16-bit fractions of 32767, without padding
+    private static void quantizeUnit(float[] data, int count, ByteBuffer buf) {
+        for (int i = 0; i < count; i++) {
+            buf.putShort((short)Math.round(Math.max(-1.0f, Math.min(data[i], 1.0f)) * 32767.0f));
+        }
+    }
+
+    // Guards against allocating huge arrays for corrupt counts
+    private static int checkCount(ByteBuffer buf, int count, int bytesEach) {
+        if (count < 0 || count > buf.remaining() / bytesEach) {
+            throw new IllegalArgumentException("Count out of range: " + count);
+        }
+        return count;
+    }
+
+    private static int pad(int length) {
+        return (length + 3) & ~3;
+    }
+}
@@ -0,0 +1,41 @@
+package citymesh;
+
+/**
+ * A named placement of a shared mesh.
+ * The mesh is referenced rather than copied, so repeated modules cost memory only once.
+ */
+public class MeshInstance {
+
+    private final String name;
+    private final Mesh mesh;
+    private final Transformation transformation;
+
+    /**
+     * @param name name of the placed object
+     * @param mesh shared mesh, must not be modified while instances of it are being exported
+     * @param transformation placement of the mesh
+     */
+    public MeshInstance(String name, Mesh mesh, Transformation transformation) {
+        this.name = name;
+        this.mesh = mesh;
+        this.transformation = transformation;
+    }
+
+    public String getName() { return name; }
+    public Mesh getMesh() { return mesh; }
+    public Transformation getTransformation() { return transformation; }
+
+    /**
+     * Expand this instance into a standalone transformed copy of its mesh
+     * @return new mesh
+     */
+    public Mesh toMesh() {
+        Mesh m = new Mesh(name, mesh);
+        m.transform(transformation);
+        return m;
+    }
+
+    public String toString() {
+        return String.format("MeshInstance(\"%s\", %s)", name, mesh);
+    }
+}
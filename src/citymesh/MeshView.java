@@ -0,0 +1,230 @@
+package citymesh;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Read-only view of a mesh encoded by MeshCodec, backed directly by the encoded bytes.
+ *
+ * Nothing is copied when a view is made: attributes and each material's index arrays are exposed as
+ * buffers over the encoded data, which may be a memory-mapped file. toMesh() copies everything into
+ * a regular Mesh when one is needed. Views stay valid as long as the underlying buffer does.
+ */
+public final class MeshView {
+
+    private final String name;
+    private final int vertexCount, uvCount, normalCount;
+
+    // Raw attributes, or quantized ones with the minimum and step of each component
+    private final FloatBuffer positions, uvs;
+    private final ShortBuffer quantizedPositions, quantizedUVs;
+    private final float[] positionRange, uvRange;
+
+    // Raw normals and tangents, or quantized ones as signed fractions of 32767
+    private final FloatBuffer normals, tangents;
+    private final ShortBuffer quantizedNormals, quantizedTangents;
+
+    private final int[] materials, faceCounts, cornerCounts;
+    private final IntBuffer[] faceSizes, vertIDs, uvIDs, normIDs;
+
+    MeshView(String name, int vertexCount, int uvCount, int normalCount,
+             FloatBuffer positions, FloatBuffer uvs,
+             ShortBuffer quantizedPositions, ShortBuffer quantizedUVs, float[] positionRange, float[] uvRange,
+             FloatBuffer normals, FloatBuffer tangents, ShortBuffer quantizedNormals, ShortBuffer quantizedTangents,
+             int[] materials, int[] faceCounts, int[] cornerCounts,
+             IntBuffer[] faceSizes, IntBuffer[] vertIDs, IntBuffer[] uvIDs, IntBuffer[] normIDs) {
+        this.name = name;
+        this.vertexCount = vertexCount;
+        this.uvCount = uvCount;
+        this.normalCount = normalCount;
+        this.normals = normals;
+        this.tangents = tangents;
+        this.quantizedNormals = quantizedNormals;
+        this.quantizedTangents = quantizedTangents;
+        this.normIDs = normIDs;
+        this.positions = positions;
+        this.uvs = uvs;
+        this.quantizedPositions = quantizedPositions;
+        this.quantizedUVs = quantizedUVs;
+        this.positionRange = positionRange;
+        this.uvRange = uvRange;
+        this.materials = materials;
+        this.faceCounts = faceCounts;
+        this.cornerCounts = cornerCounts;
+        this.faceSizes = faceSizes;
+        this.vertIDs = vertIDs;
+        this.uvIDs = uvIDs;
+    }
+
+    public String getName() { return name; }
+    public int vertexCount() { return vertexCount; }
+    public int uvCount() { return uvCount; }
+    public int normalCount() { return normalCount; }
+    public boolean hasNormals() { return normIDs != null; }
+    public boolean isQuantized() { return positions == null; }
+
+    /** @return number of materials, each with its own face list */
+    public int listCount() { return materials.length; }
+    public int material(int list) { return materials[list]; }
+    public int faceCount(int list) { return faceCounts[list]; }
+    public int cornerCount(int list) { return cornerCounts[list]; }
+
+    public int faceCount() {
+        int faces = 0;
+        for (int count : faceCounts) {
+            faces += count;
+        }
+        return faces;
+    }
+
+    /** @return x, y, z of each vertex without copying, or null if quantized */
+    public FloatBuffer positions() { return positions == null ? null : positions.duplicate(); }
+
+    /** @return u, v of each uv without copying, or null if quantized */
+    public FloatBuffer uvs() { return uvs == null ? null : uvs.duplicate(); }
+
+    /** @return x, y, z of each normal without copying, or null if quantized */
+    public FloatBuffer normals() { return normals == null ? null : normals.duplicate(); }
+
+    /** @return x, y, z and handedness of each normal's tangent without copying, or null if quantized */
+    public FloatBuffer tangents() { return tangents == null ? null : tangents.duplicate(); }
+
+    /** @return number of corners of each face in a list */
+    public IntBuffer faceSizes(int list) { return faceSizes[list].duplicate(); }
+
+    /** @return vertex ID of each corner in a list, faces one after another */
+    public IntBuffer vertIDs(int list) { return vertIDs[list].duplicate(); }
+
+    /** @return uv ID of each corner in a list, faces one after another */
+    public IntBuffer uvIDs(int list) { return uvIDs[list].duplicate(); }
+
+    /** @return normal ID of each corner in a list, faces one after another, or null without normals */
+    public IntBuffer normIDs(int list) { return normIDs == null ? null : normIDs[list].duplicate(); }
+
+    /**
+     * Copy vertex positions out, dequantizing them if needed
+     * @param dst array of at least vertexCount() * 3 floats, or null to allocate one
+     * @return the array holding x, y, z of each vertex
+     */
+    public float[] positions(float[] dst) {
+        return copy(positions, quantizedPositions, positionRange, 3, vertexCount, dst);
+    }
+
+    /**
+     * Copy uvs out, dequantizing them if needed
+     * @param dst array of at least uvCount() * 2 floats, or null to allocate one
+     * @return the array holding u, v of each uv
+     */
+    public float[] uvs(float[] dst) {
+        return copy(uvs, quantizedUVs, uvRange, 2, uvCount, dst);
+    }
+
+    /**
+     * Copy normals out, dequantizing them if needed
+     * @param dst array of at least normalCount() * 3 floats, or null to allocate one
+     * @return the array holding x, y, z of each normal
+     */
+    public float[] normals(float[] dst) {
+        return copyUnit(normals, quantizedNormals, normalCount * 3, dst);
+    }
+
+    /**
+     * Copy tangents out, dequantizing them if needed
+     * @param dst array of at least normalCount() * 4 floats, or null to allocate one
+     * @return the array holding x, y, z and handedness of each tangent
+     */
+    public float[] tangents(float[] dst) {
+        return copyUnit(tangents, quantizedTangents, normalCount * 4, dst);
+    }
+
+    /**
+     * Copy this view into a new mesh
+     * @return the mesh
+     * @throws IllegalArgumentException if the encoded faces are inconsistent
+     */
+    public Mesh toMesh() {
+        Mesh m = new Mesh(name);
+        m.verts.ensureCapacity(vertexCount);
+        positions(m.verts.data);
+        m.verts.size = vertexCount;
+        m.verts.invalidate();
+        m.uvs.ensureCapacity(uvCount);
+        uvs(m.uvs.data);
+        m.uvs.size = uvCount;
+        m.uvs.invalidate();
+        if (hasNormals()) {
+            m.setNormals(normals(null), tangents(null), normalCount);
+        }
+
+        for (int l = 0; l < materials.length; l++) {
+            if (m.faces.containsKey(materials[l])) {
+                throw new IllegalArgumentException("Material " + materials[l] + " listed twice");
+            }
+            int count = faceCounts[l], corners = cornerCounts[l];
+            int[] offsets = new int[count + 1];
+            IntBuffer sizes = faceSizes(l);
+            for (int f = 0; f < count; f++) {
+                offsets[f + 1] = offsets[f] + sizes.get();
+            }
+            if (offsets[count] != corners) {
+                throw new IllegalArgumentException("Face sizes don't add up to the corner count");
+            }
+            int[] v = new int[corners], uv = new int[corners];
+            vertIDs(l).get(v);
+            uvIDs(l).get(uv);
+            for (int c = 0; c < corners; c++) {
+                if (v[c] < 0 || v[c] >= vertexCount || uv[c] < 0 || uv[c] >= uvCount) {
+                    throw new IllegalArgumentException("Face index out of range");
+                }
+            }
+            int[] n = null;
+            if (hasNormals()) {
+                n = new int[corners];
+                normIDs(l).get(n);
+                for (int c = 0; c < corners; c++) {
+                    if (n[c] < 0 || n[c] >= normalCount) {
+                        throw new IllegalArgumentException("Normal index out of range");
+                    }
+                }
+            }
+            m.putFaces(new FaceList(materials[l], v, uv, n, offsets, count));
+        }
+        return m;
+    }
+
+    private static float[] copy(FloatBuffer raw, ShortBuffer quantized, float[] range, int stride, int count,
+                                float[] dst) {
+        if (dst == null) {
+            dst = new float[count * stride];
+        }
+        if (raw != null) {
+            raw.duplicate().get(dst, 0, count * stride);
+            return dst;
+        }
+        // Each component is min + q * step, with q an unsigned 16-bit value
+        for (int i = 0, end = count * stride; i < end; i++) {
+            int c = i % stride;
+            dst[i] = range[c] + (quantized.get(i) & 0xFFFF) * range[stride + c];
+        }
+        return dst;
+    }
+
+    private static float[] copyUnit(FloatBuffer raw, ShortBuffer quantized, int count, float[] dst) {
+        if (dst == null) {
+            dst = new float[count];
+        }
+        if (raw != null) {
+            raw.duplicate().get(dst, 0, count);
+            return dst;
+        }
+        for (int i = 0; i < count; i++) {
+            dst[i] = quantized.get(i) / 32767.0f;
+        }
+        return dst;
+    }
+
+    public String toString() {
+        return String.format("MeshView(\"%s\", V: %d, F: %d)", name, vertexCount, faceCount());
+    }
+}
@@ -0,0 +1,252 @@
+package citymesh;
+
+import jdk.jfr.*;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and stage timings for generation and export.
+ *
+ * Disabled by default, or enabled from the start with -Dcitymesh.metrics=true. While disabled every call
+ * returns after reading a single flag. While enabled, counts go to striped adders and each timed stage is
+ * also committed as a JDK Flight Recorder event (citymesh.Stage), and counter totals are recorded
+ * periodically as citymesh.Counters, so a JFR recording shows them next to GC and thread activity.
+ *
+ * Typical use:
+ * <pre>
+ *     long start = Metrics.start();
+ *     ...
+ *     Metrics.end(Metrics.Stage.ENCODE, start);
+ * </pre>
+ */
+public final class Metrics {
+
+    public enum Stage { GENERATE, LOD, NORMALS, CULL, OPTIMIZE, BATCH, EXPORT, TRANSFORM, ENCODE, WRITE, IMPORT }
+
+    public enum Counter {
+        VERTICES, FACES,
+        VERTEX_LOOKUPS, VERTEX_HITS, UV_LOOKUPS, UV_HITS,
+        // Occupied slots skipped in the exact-match vertex and uv hash tables
+        HASH_COLLISIONS,
+        OBJ_BYTES, GLB_BYTES, CITYMESH_BYTES,
+        CACHE_HITS, CACHE_MISSES,
+        // Hidden faces removed, and partly hidden faces cut down to their visible pieces
+        CULLED_FACES, CLIPPED_FACES,
+        // Triangles reordered for the vertex cache, their distinct vertices, which each miss at least once,
+        // and their cache misses in the order before and after
+        VCACHE_TRIANGLES, VCACHE_VERTICES, VCACHE_MISSES_BEFORE, VCACHE_MISSES_AFTER
+    }
+
+    public enum Queue { PIPELINE, OBJ_CHUNKS, TILES, TEE }
+
+    private static volatile boolean enabled;
+
+    private static final LongAdder[] stageCounts = adders(Stage.values().length);
+    private static final LongAdder[] stageNanos = adders(Stage.values().length);
+    private static final LongAdder[] counters = adders(Counter.values().length);
+    private static final LongAccumulator[] queueDepths = new LongAccumulator[Queue.values().length];
+
+    private static boolean periodicRegistered;
+
+    static {
+        for (int i = 0; i < queueDepths.length; i++) {
+            queueDepths[i] = new LongAccumulator(Math::max, 0);
+        }
+        setEnabled(Boolean.getBoolean("citymesh.metrics"));
+    }
+
+    private Metrics() {}
+
+    public static boolean isEnabled() { return enabled; }
+
+    public static synchronized void setEnabled(boolean on) {
+        if (on && !periodicRegistered) {
+            FlightRecorder.addPeriodicEvent(CountersEvent.class, Metrics::emitCounters);
+            periodicRegistered = true;
+        }
+        enabled = on;
+    }
+
+    /**
+     * Clear all counters, timings and queue depths
+     */
+    public static void reset() {
+        for (LongAdder a : stageCounts) a.reset();
+        for (LongAdder a : stageNanos) a.reset();
+        for (LongAdder a : counters) a.reset();
+        for (LongAccumulator a : queueDepths) a.reset();
+    }
+
+    /**
+     * Start timing a stage
+     * @return start time to pass to end(), or 0 when disabled
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Finish timing a stage
+     * @param stage stage being timed
+     * @param start value returned by start()
+     */
+    public static void end(Stage stage, long start) {
+        if (!enabled || start == 0) {
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        stageCounts[stage.ordinal()].increment();
+        stageNanos[stage.ordinal()].add(elapsed);
+        StageEvent event = new StageEvent();
+        if (event.shouldCommit()) {
+            event.stage = stage.name();
+            event.elapsed = elapsed;
+            event.commit();
+        }
+    }
+
+    public static void add(Counter counter, long amount) {
+        if (enabled) {
+            counters[counter.ordinal()].add(amount);
+        }
+    }
+
+    /**
+     * Record the current depth of a queue, keeping the maximum seen
+     */
+    public static void queueDepth(Queue queue, long depth) {
+        if (enabled) {
+            queueDepths[queue.ordinal()].accumulate(depth);
+        }
+    }
+
+    public static long get(Counter counter) { return counters[counter.ordinal()].sum(); }
+    public static long count(Stage stage) { return stageCounts[stage.ordinal()].sum(); }
+    public static long nanos(Stage stage) { return stageNanos[stage.ordinal()].sum(); }
+    public static long maxDepth(Queue queue) { return queueDepths[queue.ordinal()].get(); }
+
+    /**
+     * @return a human readable table of everything recorded so far
+     */
+    public static String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%-10s %10s %12s %12s%n", "stage", "count", "total ms", "mean us"));
+        for (Stage s : Stage.values()) {
+            long count = count(s);
+            if (count == 0) continue;
+            sb.append(String.format(Locale.ROOT, "%-10s %10d %12.1f %12.1f%n", lower(s),
+                    count, nanos(s) / 1e6, nanos(s) / 1e3 / count));
+        }
+        sb.append(String.format(Locale.ROOT, "vertices %d, faces %d%n", get(Counter.VERTICES), get(Counter.FACES)));
+        sb.append(String.format(Locale.ROOT, "vertex lookups %d (%s hits), uv lookups %d (%s hits), hash collisions %d%n",
+                get(Counter.VERTEX_LOOKUPS), rate(Counter.VERTEX_HITS, Counter.VERTEX_LOOKUPS),
+                get(Counter.UV_LOOKUPS), rate(Counter.UV_HITS, Counter.UV_LOOKUPS), get(Counter.HASH_COLLISIONS)));
+        sb.append(String.format(Locale.ROOT, "bytes written: obj %d, glb %d, citymesh %d%n",
+                get(Counter.OBJ_BYTES), get(Counter.GLB_BYTES), get(Counter.CITYMESH_BYTES)));
+        if (get(Counter.CULLED_FACES) + get(Counter.CLIPPED_FACES) > 0) {
+            sb.append(String.format(Locale.ROOT, "hidden faces culled %d, clipped %d%n",
+                    get(Counter.CULLED_FACES), get(Counter.CLIPPED_FACES)));
+        }
+        long triangles = get(Counter.VCACHE_TRIANGLES);
+        if (triangles > 0) {
+            sb.append(String.format(Locale.ROOT,
+                    "vertex cache: triangles %d, acmr %.3f before, %.3f after, %.3f at best%n",
+                    triangles, (double)get(Counter.VCACHE_MISSES_BEFORE) / triangles,
+                    (double)get(Counter.VCACHE_MISSES_AFTER) / triangles,
+                    (double)get(Counter.VCACHE_VERTICES) / triangles));
+        }
+        if (get(Counter.CACHE_HITS) + get(Counter.CACHE_MISSES) > 0) {
+            sb.append(String.format(Locale.ROOT, "cache hits %d, misses %d%n",
+                    get(Counter.CACHE_HITS), get(Counter.CACHE_MISSES)));
+        }
+        sb.append("max queue depth:");
+        for (Queue q : Queue.values()) {
+            sb.append(q.ordinal() == 0 ? " " : ", ").append(lower(q)).append(' ').append(maxDepth(q));
+        }
+        return sb.append(System.lineSeparator()).toString();
+    }
+
+    private static String rate(Counter hits, Counter total) {
+        long t = get(total);
+        return t == 0 ? "-" : String.format(Locale.ROOT, "%.1f%%", 100.0 * get(hits) / t);
+    }
+
+    private static String lower(Enum<?> e) {
+        return e.name().toLowerCase(Locale.ROOT).replace('_', ' ');
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static void emitCounters() {
+        if (!enabled) {
+            return;
+        }
+        CountersEvent event = new CountersEvent();
+        event.vertices = get(Counter.VERTICES);
+        event.faces = get(Counter.FACES);
+        event.vertexLookups = get(Counter.VERTEX_LOOKUPS);
+        event.vertexHits = get(Counter.VERTEX_HITS);
+        event.uvLookups = get(Counter.UV_LOOKUPS);
+        event.uvHits = get(Counter.UV_HITS);
+        event.hashCollisions = get(Counter.HASH_COLLISIONS);
+        event.objBytes = get(Counter.OBJ_BYTES);
+        event.glbBytes = get(Counter.GLB_BYTES);
+        event.citymeshBytes = get(Counter.CITYMESH_BYTES);
+        event.cacheHits = get(Counter.CACHE_HITS);
+        event.cacheMisses = get(Counter.CACHE_MISSES);
+        event.culledFaces = get(Counter.CULLED_FACES);
+        event.clippedFaces = get(Counter.CLIPPED_FACES);
+        event.vcacheTriangles = get(Counter.VCACHE_TRIANGLES);
+        event.vcacheVertices = get(Counter.VCACHE_VERTICES);
+        event.vcacheMissesBefore = get(Counter.VCACHE_MISSES_BEFORE);
+        event.vcacheMissesAfter = get(Counter.VCACHE_MISSES_AFTER);
+        event.commit();
+    }
+
+    @Name("citymesh.Stage")
+    @Label("Stage")
+    @Category("City Generator")
+    @StackTrace(false)
+    static class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+
+    @Name("citymesh.Counters")
+    @Label("Counters")
+    @Category("City Generator")
+    @Period("1 s")
+    @StackTrace(false)
+    static class CountersEvent extends Event {
+        @Label("Vertices") long vertices;
+        @Label("Faces") long faces;
+        @Label("Vertex Lookups") long vertexLookups;
+        @Label("Vertex Hits") long vertexHits;
+        @Label("UV Lookups") long uvLookups;
+        @Label("UV Hits") long uvHits;
+        @Label("Hash Collisions") long hashCollisions;
+        @Label("OBJ Bytes") @DataAmount long objBytes;
+        @Label("GLB Bytes") @DataAmount long glbBytes;
+        @Label("Citymesh Bytes") @DataAmount long citymeshBytes;
+        @Label("Cache Hits") long cacheHits;
+        @Label("Cache Misses") long cacheMisses;
+        @Label("Culled Faces") long culledFaces;
+        @Label("Clipped Faces") long clippedFaces;
+        @Label("Vertex Cache Triangles") long vcacheTriangles;
+        @Label("Vertex Cache Vertices") long vcacheVertices;
+        @Label("Vertex Cache Misses Before") long vcacheMissesBefore;
+        @Label("Vertex Cache Misses After") long vcacheMissesAfter;
+    }
+}
@@ -0,0 +1,298 @@
+package citymesh;
+
+import java.util.stream.IntStream;
+
+/**
+ * Computes vertex normals and tangents for a mesh.
+ *
+ * In FLAT mode every corner takes the normal of its face. In SMOOTH mode each corner averages the normals of
+ * the faces around its vertex, weighted by the angle each face makes at the vertex, skipping faces which meet
+ * its own face at more than the crease angle, so hard edges such as a building's corners stay sharp.
+ * Corners of a vertex that end up with the same normal share one normal ID, so a flat wall has one normal per
+ * vertex rather than one per corner. Tangents follow the uv layout of the faces sharing each normal and are
+ * orthogonalized against it, with a handedness sign for the bitangent.
+ *
+ * Work is split into ranges of faces and then of vertices, run in parallel on the common pool for large
+ * meshes, with all intermediate data in flat primitive arrays. Builders hold no state between calls, so one
+ * builder can be used from several threads.
+ */
+public class NormalBuilder {
+
+    public enum Mode { FLAT, SMOOTH }
+
+    // Faces or vertices per parallel task
+    private static final int GRAIN = 8192;
+
+    // Corner normals closer than this in cosine share a normal ID
+    private static final float SAME_NORMAL = 0.99999f;
+
+    private final Mode mode;
+    private final float creaseAngle;
+    private final float cosCrease;
+
+    public NormalBuilder(Mode mode) {
+        this(mode, 180.0f);
+    }
+
+    /**
+     * @param mode flat or smooth normals
+     * @param creaseAngle in SMOOTH mode, faces meeting at more than this many degrees are not smoothed together
+     */
+    public NormalBuilder(Mode mode, float creaseAngle) {
+        this.mode = mode;
+        this.creaseAngle = creaseAngle;
+        this.cosCrease = (float)Math.cos(Math.toRadians(Math.min(Math.max(creaseAngle, 0.0f), 180.0f)));
+    }
+
+    public Mode getMode() { return mode; }
+    public float getCreaseAngle() { return creaseAngle; }
+
+    /**
+     * Compute normals and tangents for a mesh, replacing any it has
+     * @param m mesh to update
+     */
+    public void build(Mesh m) {
+        long start = Metrics.start();
+        FaceList[] lists = m.faces.values().toArray(new FaceList[0]);
+        int[] faceBase = new int[lists.length + 1], cornerBase = new int[lists.length + 1];
+        for (int l = 0; l < lists.length; l++) {
+            faceBase[l + 1] = faceBase[l] + lists[l].count;
+            cornerBase[l + 1] = cornerBase[l] + lists[l].corners;
+        }
+        int faceCount = faceBase[lists.length], cornerCount = cornerBase[lists.length];
+        int vertexCount = m.vertexCount();
+        float[] v = m.verts.data, uv = m.uvs.data;
+
+        // Per face normal and uv-space tangent and bitangent, and per corner its face, vertex and angle
+        float[] faceNormals = new float[faceCount * 3];
+        float[] faceTangents = new float[faceCount * 3], faceBitangents = new float[faceCount * 3];
+        int[] cornerFaces = new int[cornerCount], cornerVerts = new int[cornerCount];
+        float[] cornerAngles = mode == Mode.SMOOTH ? new float[cornerCount] : null;
+        forRanges(faceCount, (from, to) -> {
+            int l = 0;
+            while (faceBase[l + 1] <= from) l++;
+            for (int face = from; face < to; face++) {
+                while (faceBase[l + 1] <= face) l++;
+                FaceList list = lists[l];
+                int f = face - faceBase[l];
+                int first = list.offsets[f], n = list.offsets[f + 1] - first;
+                int global = cornerBase[l] + first;
+                for (int i = 0; i < n; i++) {
+                    cornerFaces[global + i] = face;
+                    cornerVerts[global + i] = list.vertIDs[first + i];
+                }
+                faceFrame(v, uv, list.vertIDs, list.uvIDs, first, n, faceNormals, faceTangents, faceBitangents,
+                        face * 3);
+                if (cornerAngles != null) {
+                    cornerAngles(v, list.vertIDs, first, n, cornerAngles, global);
+                }
+            }
+        });
+
+        // Corners around each vertex, in compressed rows
+        int[] rowStart = new int[vertexCount + 1];
+        for (int c = 0; c < cornerCount; c++) {
+            rowStart[cornerVerts[c] + 1]++;
+        }
+        for (int i = 0; i < vertexCount; i++) {
+            rowStart[i + 1] += rowStart[i];
+        }
+        int[] row = new int[cornerCount], fill = new int[vertexCount];
+        for (int c = 0; c < cornerCount; c++) {
+            int vert = cornerVerts[c];
+            row[rowStart[vert] + fill[vert]++] = c;
+        }
+
+        // Normal of each corner, grouping equal ones of a vertex
+        float[] cornerNormals = new float[cornerCount * 3];
+        int[] cornerGroups = new int[cornerCount], groupCounts = new int[vertexCount];
+        forRanges(vertexCount, (from, to) -> {
+            for (int vert = from; vert < to; vert++) {
+                int begin = rowStart[vert], end = rowStart[vert + 1], groups = 0;
+                for (int i = begin; i < end; i++) {
+                    int c = row[i];
+                    cornerNormal(c, begin, end, row, cornerFaces, faceNormals, cornerAngles, cornerNormals);
+                    int group = -1;
+                    for (int j = begin; j < i && group < 0; j++) {
+                        if (dot(cornerNormals, c * 3, cornerNormals, row[j] * 3) >= SAME_NORMAL) {
+                            group = cornerGroups[row[j]];
+                        }
+                    }
+                    cornerGroups[c] = group < 0 ? groups++ : group;
+                }
+                groupCounts[vert] = groups;
+            }
+        });
+
+        int[] normalBase = new int[vertexCount + 1];
+        for (int i = 0; i < vertexCount; i++) {
+            normalBase[i + 1] = normalBase[i] + groupCounts[i];
+        }
+        int normalCount = normalBase[vertexCount];
+
+        // Number the groups, and sum the uv frames of the faces in each for its tangent
+        float[] normals = new float[normalCount * 3], tangents = new float[normalCount * 4];
+        float[] bitangents = new float[normalCount * 3];
+        int[] normIDs = new int[cornerCount];
+        forRanges(vertexCount, (from, to) -> {
+            for (int vert = from; vert < to; vert++) {
+                for (int i = rowStart[vert]; i < rowStart[vert + 1]; i++) {
+                    int c = row[i], id = normalBase[vert] + cornerGroups[c], face = cornerFaces[c];
+                    normIDs[c] = id;
+                    System.arraycopy(cornerNormals, c * 3, normals, id * 3, 3);
+                    for (int k = 0; k < 3; k++) {
+                        tangents[id * 4 + k] += faceTangents[face * 3 + k];
+                        bitangents[id * 3 + k] += faceBitangents[face * 3 + k];
+                    }
+                }
+                for (int id = normalBase[vert]; id < normalBase[vert + 1]; id++) {
+                    orthogonalize(normals, tangents, bitangents, id);
+                }
+            }
+        });
+
+        m.setNormals(normals, tangents, normalCount);
+        for (int l = 0; l < lists.length; l++) {
+            FaceList list = lists[l];
+            list.normIDs = new int[list.vertIDs.length];
+            System.arraycopy(normIDs, cornerBase[l], list.normIDs, 0, list.corners);
+        }
+        Metrics.end(Metrics.Stage.NORMALS, start);
+    }
+
+    /**
+     * Newell's normal of a face, which also holds for non-planar and concave polygons, and its tangent and
+     * bitangent summed over a fan of triangles, weighted by their area in uv space
+     */
+    private static void faceFrame(float[] v, float[] uv, int[] vertIDs, int[] uvIDs, int first, int n,
+                                  float[] normals, float[] tangents, float[] bitangents, int out) {
+        float nx = 0, ny = 0, nz = 0;
+        for (int i = 0; i < n; i++) {
+            int a = vertIDs[first + i] * 3, b = vertIDs[first + (i + 1) % n] * 3;
+            nx += (v[a + 1] - v[b + 1]) * (v[a + 2] + v[b + 2]);
+            ny += (v[a + 2] - v[b + 2]) * (v[a] + v[b]);
+            nz += (v[a] - v[b]) * (v[a + 1] + v[b + 1]);
+        }
+        float len = (float)Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (len > 0.0f) {
+            normals[out] = nx / len;
+            normals[out + 1] = ny / len;
+            normals[out + 2] = nz / len;
+        }
+
+        int p0 = vertIDs[first] * 3, t0 = uvIDs[first] * 2;
+        for (int i = 1; i + 1 < n; i++) {
+            int p1 = vertIDs[first + i] * 3, p2 = vertIDs[first + i + 1] * 3;
+            int t1 = uvIDs[first + i] * 2, t2 = uvIDs[first + i + 1] * 2;
+            float du1 = uv[t1] - uv[t0], dv1 = uv[t1 + 1] - uv[t0 + 1];
+            float du2 = uv[t2] - uv[t0], dv2 = uv[t2 + 1] - uv[t0 + 1];
+            float r = du1 * dv2 - du2 * dv1;
+            if (r == 0.0f) continue;
+            float sign = r < 0.0f ? -1.0f : 1.0f;
+            for (int k = 0; k < 3; k++) {
+                float e1 = v[p1 + k] - v[p0 + k], e2 = v[p2 + k] - v[p0 + k];
+                tangents[out + k] += (e1 * dv2 - e2 * dv1) * sign;
+                bitangents[out + k] += (e2 * du1 - e1 * du2) * sign;
+            }
+        }
+    }
+
+    /**
+     * Angle of a face at each of its corners
+     */
+    private static void cornerAngles(float[] v, int[] vertIDs, int first, int n, float[] angles, int out) {
+        for (int i = 0; i < n; i++) {
+            int p = vertIDs[first + i] * 3;
+            int a = vertIDs[first + (i + n - 1) % n] * 3, b = vertIDs[first + (i + 1) % n] * 3;
+            float ax = v[a] - v[p], ay = v[a + 1] - v[p + 1], az = v[a + 2] - v[p + 2];
+            float bx = v[b] - v[p], by = v[b + 1] - v[p + 1], bz = v[b + 2] - v[p + 2];
+            float cx = ay * bz - az * by, cy = az * bx - ax * bz, cz = ax * by - ay * bx;
+            double cross = Math.sqrt(cx * cx + cy * cy + cz * cz);
+            angles[out + i] = (float)Math.atan2(cross, ax * bx + ay * by + az * bz);
+        }
+    }
+
+    /**
+     * Normal of one corner from the faces around its vertex, falling back to its face's normal, or to up for
+     * degenerate faces
+     */
+    private void cornerNormal(int c, int begin, int end, int[] row, int[] cornerFaces, float[] faceNormals,
+                              float[] cornerAngles, float[] out) {
+        int face = cornerFaces[c] * 3, o = c * 3;
+        float x = 0, y = 0, z = 0;
+        if (mode == Mode.SMOOTH) {
+            for (int j = begin; j < end; j++) {
+                int other = row[j], f = cornerFaces[other] * 3;
+                if (dot(faceNormals, face, faceNormals, f) >= cosCrease) {
+                    float w = cornerAngles[other];
+                    x += faceNormals[f] * w;
+                    y += faceNormals[f + 1] * w;
+                    z += faceNormals[f + 2] * w;
+                }
+            }
+        }
+        float len = (float)Math.sqrt(x * x + y * y + z * z);
+        if (len == 0.0f) {
+            x = faceNormals[face];
+            y = faceNormals[face + 1];
+            z = faceNormals[face + 2];
+            len = (float)Math.sqrt(x * x + y * y + z * z);
+        }
+        if (len == 0.0f) {
+            out[o + 2] = 1.0f;
+            return;
+        }
+        out[o] = x / len;
+        out[o + 1] = y / len;
+        out[o + 2] = z / len;
+    }
+
+    /**
+     * Gram-Schmidt the summed tangent of a normal against it, picking any perpendicular if the faces had no
+     * usable uvs, and set handedness from the summed bitangent
+     */
+    private static void orthogonalize(float[] normals, float[] tangents, float[] bitangents, int id) {
+        int n = id * 3, t = id * 4;
+        float nx = normals[n], ny = normals[n + 1], nz = normals[n + 2];
+        float tx = tangents[t], ty = tangents[t + 1], tz = tangents[t + 2];
+        float d = nx * tx + ny * ty + nz * tz;
+        tx -= nx * d;
+        ty -= ny * d;
+        tz -= nz * d;
+        float len = (float)Math.sqrt(tx * tx + ty * ty + tz * tz);
+        if (len < 1e-6f) {
+            // Cross of the normal with up, or with x for normals close to up
+            boolean up = Math.abs(nz) < 0.999f;
+            tx = up ? -ny : 0.0f;
+            ty = up ? nx : -nz;
+            tz = up ? 0.0f : ny;
+            len = (float)Math.sqrt(tx * tx + ty * ty + tz * tz);
+        }
+        tangents[t] = tx / len;
+        tangents[t + 1] = ty / len;
+        tangents[t + 2] = tz / len;
+        float bx = ny * tz - nz * ty, by = nz * tx - nx * tz, bz = nx * ty - ny * tx;
+        float handedness = bx * bitangents[n] + by * bitangents[n + 1] + bz * bitangents[n + 2];
+        tangents[t + 3] = handedness < 0.0f ? -1.0f : 1.0f;
+    }
+
+    private static float dot(float[] a, int i, float[] b, int j) {
+        return a[i] * b[j] + a[i + 1] * b[j + 1] + a[i + 2] * b[j + 2];
+    }
+
+    private interface RangeTask {
+        void run(int from, int to);
+    }
+
+    /**
+     * Run a task over [0, count) in ranges of GRAIN, in parallel if there's more than one
+     */
+    private static void forRanges(int count, RangeTask task) {
+        int tasks = (count + GRAIN - 1) / GRAIN;
+        if (tasks <= 1) {
+            task.run(0, count);
+            return;
+        }
+        IntStream.range(0, tasks).parallel().forEach(i -> task.run(i * GRAIN, Math.min(count, (i + 1) * GRAIN)));
+    }
+}
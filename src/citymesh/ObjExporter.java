@@ -1,16 +1,80 @@
 package citymesh;
 
 import java.io.*;
-import java.util.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Exporter which uses the obj file format
+ * Exporter which uses the obj file format.
+ *
+ * In parallel mode each appended mesh is encoded into its own chunk on a worker pool, and chunks are
+ * written to the file in the order they were appended. Faces use indices relative to their own object,
+ * so chunks don't depend on each other. Meshes must not be modified after being appended.
  */
 public class ObjExporter implements Exporter {
 
+    // Encoded text is written to the file whenever this much has built up
+    private static final int FLUSH_SIZE = 1 << 20;
+
+    // Number of decimals written for coordinates
+    private final int precision;
+
+    // Number of decimals written for normals, which are unit length
+    private static final int NORMAL_PRECISION = 4;
+
+    // Parallel mode settings, no encoder threads means encoding on the calling thread
+    private final int threads;
+    private final int maxInFlight;
+
     // Stuff for file writing
-    private FileOutputStream objFile, mtlFile;
-    private PrintStream objWriter, mtlWriter;
+    private Path objPath, mtlPath;
+    private FileChannel objFile, mtlFile;
+    private AsciiBuffer objWriter;
+
+    // Parallel mode: encoders fill chunks, a single committer writes them out in submission order
+    private ExecutorService encoders, committer;
+    private Semaphore inFlight;
+    private final Queue<AsciiBuffer> freeChunks = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    // Transformed vertex positions of the instance being written, per encoding thread
+    private final ThreadLocal<float[]> scratch = ThreadLocal.withInitial(() -> new float[0]);
+    private final ThreadLocal<float[]> normalScratch = ThreadLocal.withInitial(() -> new float[0]);
+
+    public ObjExporter() {
+        this(6);
+    }
+
+    /**
+     * @param precision number of decimals to write for vertex and uv coordinates
+     */
+    public ObjExporter(int precision) {
+        this(precision, 0, 0);
+    }
+
+    /**
+     * Create an exporter which encodes meshes in parallel
+     *
+     * @param precision number of decimals to write for vertex and uv coordinates
+     * @param threads number of encoding threads
+     * @param maxInFlight maximum number of appended meshes not yet written; appending blocks beyond this
+     * @throws IllegalArgumentException if precision is negative
+     */
+    public ObjExporter(int precision, int threads, int maxInFlight) {
+        if (precision < 0) {
+            throw new IllegalArgumentException("Negative precision " + precision);
+        }
+        this.precision = precision;
+        this.threads = threads;
+        this.maxInFlight = Math.max(maxInFlight, 1);
+    }
 
     /**
      * Get ready to export. Prints file header in file to export. Call only once!
@@ -20,14 +84,21 @@ public class ObjExporter implements Exporter {
     @Override
     public boolean init(String filename) {
         try {
-            objFile = new FileOutputStream(filename + ".obj");
-            mtlFile = new FileOutputStream(filename + ".mtl");
-            objWriter = new PrintStream(objFile);
-            mtlWriter = new PrintStream(mtlFile);
+            objPath = Paths.get(filename + ".obj");
+            mtlPath = Paths.get(filename + ".mtl");
+            objFile = open(objPath);
+            mtlFile = open(mtlPath);
+            objWriter = new AsciiBuffer(FLUSH_SIZE + (FLUSH_SIZE >> 2));
 
             // Print a header message
-            objWriter.println("# Generated with Gigopolis City Generator");
-            objWriter.println("# https://github.com/caljwalker/city-gen");
+            objWriter.append("# Generated with Gigopolis City Generator").newline();
+            objWriter.append("# https://github.com/caljwalker/city-gen").newline();
+
+            if (threads > 0) {
+                encoders = Executors.newFixedThreadPool(threads, Threads.daemon("ObjExporter"));
+                committer = Executors.newSingleThreadExecutor(Threads.daemon("ObjExporter"));
+                inFlight = new Semaphore(maxInFlight);
+            }
 
         } catch (Exception e) {
             System.out.println("Failed to initialize output stream!");
@@ -38,23 +109,44 @@ public class ObjExporter implements Exporter {
     }
 
     /**
-     * Close output streams.
+     * Close output streams. In parallel mode, waits for pending meshes to be written first.
      *
      * @return true on success, false on failures
      */
     @Override
     public boolean done() {
+        if (committer != null) {
+            committer.shutdown();
+            encoders.shutdown();
+            try {
+                committer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, e);
+            }
+            committer = encoders = null;
+        }
+        Exception e = failure.get();
+        if (e != null) {
+            System.err.println("Failed to export meshes!");
+            e.printStackTrace();
+        }
         try {
+            write();
             objFile.close();
             mtlFile.close();
             objWriter = null;
-            mtlWriter = null;
-        } catch (IOException e) {
+        } catch (IOException ex) {
             System.out.println("Failed to close output stream!");
-            System.err.println("IO exception: " + e.getMessage());
+            System.err.println("IO exception: " + ex.getMessage());
             return false;
         }
-        return true;
+        return e == null;
+    }
+
+    @Override
+    public List<Path> files() {
+        return objPath == null ? Collections.emptyList() : List.of(objPath, mtlPath);
     }
 
     /**
@@ -65,57 +157,182 @@ public class ObjExporter implements Exporter {
      */
     @Override
     public synchronized boolean appendMesh(Mesh m) {
-        if (objFile == null || mtlFile == null || objWriter == null || mtlWriter == null) {
+        if (objFile == null || mtlFile == null || objWriter == null) {
             System.err.println("Failed to export mesh" + m + "!");
             return false;
         }
-        objWriter.println("o " + m.getName());
-        writeMesh(m, objWriter, mtlWriter);
-        return true;
+        if (encoders != null) {
+            return submit(m.getName(), m, null);
+        }
+        objWriter.append("o ").append(m.getName()).newline();
+        writeMesh(m, null, objWriter);
+        return flushIfFull();
     }
 
     /**
-     * Writes mesh data using specified print streams
-     * @param m mesh to export
-     * @param obj object writer
-     * @param mtl material writer
+     * Export an instance, transforming the shared mesh's vertices as they are written
+     *
+     * @param instance instance to export
+     * @return true on success, false on failure
      */
-    private void writeMesh(Mesh m, PrintStream obj, PrintStream mtl) {
-        // Sort verts by ID, then print them
-        Vector3[] sortedVerts = new Vector3[m.vertexCount()];
-        for (Map.Entry<Vector3, Integer> vtx : m.verts.entrySet()) {
-            sortedVerts[vtx.getValue()] = vtx.getKey();
+    @Override
+    public synchronized boolean appendInstance(MeshInstance instance) {
+        if (objFile == null || mtlFile == null || objWriter == null) {
+            System.err.println("Failed to export instance" + instance + "!");
+            return false;
         }
-        for (Vector3 vtx : sortedVerts) {
-            obj.printf("v %f %f %f%n", vtx.getX(), vtx.getY(), vtx.getZ());
+        if (encoders != null) {
+            return submit(instance.getName(), instance.getMesh(), instance.getTransformation());
         }
+        objWriter.append("o ").append(instance.getName()).newline();
+        writeMesh(instance.getMesh(), instance.getTransformation(), objWriter);
+        return flushIfFull();
+    }
 
-        // Sort UVs by ID, then print them
-        Vector2[] sortedUVs = new Vector2[m.uvs.size()];
-        for (Map.Entry<Vector2, Integer> uv : m.uvs.entrySet()) {
-            sortedUVs[uv.getValue()] = uv.getKey();
+    /**
+     * Queue an object for encoding on the worker pool and writing in order.
+     * Called with the lock held, so encode and commit tasks are queued in the same order.
+     *
+     * @return false if the exporter has already failed or was interrupted
+     */
+    private boolean submit(String name, Mesh m, Transformation t) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, e);
+            return false;
         }
-        for (Vector2 uv : sortedUVs) {
-            obj.printf("vt %f %f%n", uv.getU(), uv.getV());
+        Metrics.queueDepth(Metrics.Queue.OBJ_CHUNKS, maxInFlight - inFlight.availablePermits());
+        Future<AsciiBuffer> chunk = encoders.submit(() -> {
+            AsciiBuffer buf = freeChunks.poll();
+            if (buf == null) {
+                buf = new AsciiBuffer(1 << 16);
+            }
+            buf.append("o ").append(name).newline();
+            writeMesh(m, t, buf);
+            return buf;
+        });
+        committer.execute(() -> commit(chunk));
+        return failure.get() == null;
+    }
+
+    /**
+     * Write an encoded chunk out. Runs on the committer thread only.
+     */
+    private void commit(Future<AsciiBuffer> chunk) {
+        try {
+            AsciiBuffer buf = chunk.get();
+            if (failure.get() == null) {
+                objWriter.append(buf);
+                flushIfFull();
+            }
+            buf.clear();
+            freeChunks.offer(buf);
+        } catch (ExecutionException e) {
+            failure.compareAndSet(null, e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, e);
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Write out encoded text once enough has built up
+     * @return true on success, false on failure
+     */
+    private boolean flushIfFull() {
+        if (objWriter.size() < FLUSH_SIZE) {
+            return true;
+        }
+        try {
+            write();
+        } catch (IOException e) {
+            System.err.println("IO exception: " + e.getMessage());
+            failure.compareAndSet(null, e);
+            return false;
         }
+        return true;
+    }
 
-        // Output faces
-        int lastmat = -1;  // Material of last face we saw
-        for (Mesh.Face f : m.faces) {
-            // If material changed, put in change material directive
-            if (f.matID != lastmat) {
-                lastmat = f.matID;
-                obj.println("usemtl mat" + f.matID);
+    private void write() throws IOException {
+        long start = Metrics.start();
+        Metrics.add(Metrics.Counter.OBJ_BYTES, objWriter.size());
+        objWriter.writeTo(objFile);
+        Metrics.end(Metrics.Stage.WRITE, start);
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Encodes mesh data into a buffer
+     * @param m mesh to export
+     * @param t transformation to apply to vertices, or null
+     * @param obj object text buffer
+     */
+    private void writeMesh(Mesh m, Transformation t, AsciiBuffer obj) {
+        long start = Metrics.start();
+        // Verts and UVs are stored by ID, so print them in order
+        float[] v = m.verts.data;
+        if (t != null) {
+            // Transform into a reusable scratch array, leaving the shared mesh untouched
+            float[] transformed = scratch.get();
+            if (transformed.length < m.vertexCount() * 3) {
+                transformed = new float[m.vertexCount() * 3];
+                scratch.set(transformed);
             }
-            // Calculate the vert ids
-            obj.print("f");
-            for (int i = 0; i < f.vertIDs.length; i++) {
-                // Recalculate vert IDs as offsets
-                int vtxid = f.vertIDs[i] - m.verts.size();
-                int uvid = f.uvIDs[i] - m.uvs.size();
-                obj.printf(" %d/%d", vtxid, uvid);
+            t.transformPoints(v, 0, transformed, 0, m.vertexCount());
+            v = transformed;
+        }
+        for (int i = 0, end = m.vertexCount() * 3; i < end; i += 3) {
+            obj.append("v ").appendFixed(v[i], precision)
+                    .append(' ').appendFixed(v[i + 1], precision)
+                    .append(' ').appendFixed(v[i + 2], precision).newline();
+        }
+        float[] vt = m.uvs.data;
+        for (int i = 0, end = m.uvCount() * 2; i < end; i += 2) {
+            obj.append("vt ").appendFixed(vt[i], precision)
+                    .append(' ').appendFixed(vt[i + 1], precision).newline();
+        }
+        float[] vn = m.normals;
+        if (vn != null && t != null) {
+            float[] transformed = normalScratch.get();
+            if (transformed.length < m.normalCount() * 3) {
+                transformed = new float[m.normalCount() * 3];
+                normalScratch.set(transformed);
+            }
+            t.transformNormals(vn, 0, transformed, 0, m.normalCount());
+            vn = transformed;
+        }
+        for (int i = 0, end = m.normalCount() * 3; i < end; i += 3) {
+            obj.append("vn ").appendFixed(vn[i], NORMAL_PRECISION)
+                    .append(' ').appendFixed(vn[i + 1], NORMAL_PRECISION)
+                    .append(' ').appendFixed(vn[i + 2], NORMAL_PRECISION).newline();
+        }
+
+        // Output faces, one material at a time
+        int vertCount = m.vertexCount(), uvCount = m.uvCount(), normalCount = m.normalCount();
+        for (FaceList faces : m.faces.values()) {
+            if (faces.count == 0) continue;
+            obj.append("usemtl mat").append(faces.material).newline();
+            int[] vertIDs = faces.vertIDs, uvIDs = faces.uvIDs, normIDs = faces.normIDs, offsets = faces.offsets;
+            for (int f = 0; f < faces.count; f++) {
+                obj.append('f');
+                for (int c = offsets[f]; c < offsets[f + 1]; c++) {
+                    // Recalculate vert IDs as offsets
+                    obj.append(' ').append(vertIDs[c] - vertCount).append('/').append(uvIDs[c] - uvCount);
+                    if (normIDs != null) {
+                        obj.append('/').append(normIDs[c] - normalCount);
+                    }
+                }
+                obj.newline();
             }
-            obj.println();
         }
+        Metrics.end(Metrics.Stage.ENCODE, start);
     }
 }
@@ -0,0 +1,721 @@
+package citymesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reader for obj files, such as artist-made modules to place on buildings, producing one mesh per object.
+ *
+ * The file is memory-mapped and split at line boundaries into chunks of about a megabyte, which are copied
+ * out and parsed in parallel with a hand-written number parser. Each chunk keeps indices as written, along
+ * with how many vertices it had seen at each face, so relative (negative) indices are resolved once the
+ * vertex count before each chunk is known. Objects are then built in parallel, copying vertex ranges in
+ * bulk when an object's faces use a compact range, as written by ObjExporter, and gathering only the
+ * vertices used otherwise.
+ *
+ * Objects start at o and g lines; faces before any are named after the file. Materials get the IDs
+ * ObjExporter writes (mat3 is material 3) unless another name already has that ID, other names get the next
+ * free ID in the order they are first seen, those in mtllib files first. Normals, smoothing groups, lines
+ * and points are skipped, and faces without uvs get a uv of (0, 0). Vertices aren't merged.
+ */
+public class ObjImporter {
+
+    // Files are split into chunks of about this many bytes
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final int threads;
+
+    // ID of each material name seen so far, kept between files so IDs stay consistent
+    private final Map<String, Integer> materials = new LinkedHashMap<>();
+    private final Set<Integer> materialIDs = new HashSet<>();
+    private int nextMaterial;
+
+    public ObjImporter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads number of parsing threads, 1 to parse on the calling thread
+     */
+    public ObjImporter(int threads) {
+        this.threads = Math.max(threads, 1);
+    }
+
+    /**
+     * @return material ID of each material name seen so far
+     */
+    public synchronized Map<String, Integer> getMaterials() {
+        return new LinkedHashMap<>(materials);
+    }
+
+    /**
+     * Read every object in an obj file
+     *
+     * @param path obj file to read; mtllib files are looked up next to it
+     * @return one mesh per object with faces, in file order
+     * @throws IOException if the file can't be read or is malformed
+     */
+    public synchronized List<Mesh> read(Path path) throws IOException {
+        long start = Metrics.start();
+        ByteBuffer data;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (file.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + path);
+            }
+            data = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+        }
+
+        int[] bounds = split(data);
+        Chunk[] chunks = new Chunk[bounds.length - 1];
+        ExecutorService pool = threads > 1 && chunks.length > 1
+                ? Executors.newFixedThreadPool(threads, Threads.daemon("ObjImporter")) : null;
+        try {
+            run(pool, chunks.length, i -> {
+                chunks[i] = new Chunk(data, bounds[i], bounds[i + 1]);
+                chunks[i].parse();
+            });
+            for (Chunk chunk : chunks) {
+                if (chunk.error != null) {
+                    throw new IOException("Malformed obj " + path + " at byte " + chunk.errorAt + ": " + chunk.error);
+                }
+            }
+            for (Chunk chunk : chunks) {
+                for (String library : chunk.libraries) {
+                    readMaterials(path.resolveSibling(library));
+                }
+            }
+
+            // Vertex and uv counts before each chunk, for resolving indices
+            int[] vertBase = new int[chunks.length + 1], uvBase = new int[chunks.length + 1];
+            for (int i = 0; i < chunks.length; i++) {
+                vertBase[i + 1] = Math.addExact(vertBase[i], chunks[i].vertCount);
+                uvBase[i + 1] = Math.addExact(uvBase[i], chunks[i].uvCount);
+            }
+            String fileName = path.getFileName().toString();
+            List<Part> parts = collect(chunks, fileName.endsWith(".obj")
+                    ? fileName.substring(0, fileName.length() - 4) : fileName);
+
+            Mesh[] meshes = new Mesh[parts.size()];
+            run(pool, meshes.length, i -> {
+                try {
+                    meshes[i] = parts.get(i).build(chunks, vertBase, uvBase);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Malformed obj " + path + " in " + parts.get(i).name + ": " + e.getMessage());
+                }
+            });
+            Metrics.end(Metrics.Stage.IMPORT, start);
+            return Arrays.asList(meshes);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Split points at line starts, about CHUNK_SIZE apart
+     */
+    private static int[] split(ByteBuffer data) {
+        int size = data.limit();
+        int n = Math.max(1, (int)((size + (long)CHUNK_SIZE - 1) / CHUNK_SIZE));
+        int[] bounds = new int[n + 1];
+        bounds[n] = size;
+        for (int i = 1; i < n; i++) {
+            int p = Math.max((int)((long)size * i / n), bounds[i - 1]);
+            while (p < size && data.get(p) != '\n') {
+                p++;
+            }
+            bounds[i] = Math.min(p + 1, size);
+        }
+        return bounds;
+    }
+
+    private interface Task {
+        void run(int i) throws Exception;
+    }
+
+    /**
+     * Run a task for 0 to count - 1, on the pool if there is one, and wait for all of them
+     */
+    private static void run(ExecutorService pool, int count, Task task) throws IOException {
+        try {
+            if (pool == null) {
+                for (int i = 0; i < count; i++) {
+                    task.run(i);
+                }
+                return;
+            }
+            List<Future<?>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int index = i;
+                futures.add(pool.submit(() -> {
+                    task.run(index);
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading obj", e);
+        } catch (Exception e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static IOException rethrow(Throwable t) {
+        if (t instanceof IOException) {
+            return (IOException)t;
+        }
+        if (t instanceof Error) {
+            throw (Error)t;
+        }
+        return new IOException(t.getMessage(), t);
+    }
+
+    /**
+     * Group the faces of all chunks into objects, in file order
+     */
+    private List<Part> collect(Chunk[] chunks, String defaultName) {
+        List<Part> parts = new ArrayList<>();
+        Part part = new Part(defaultName);
+        int material = 0;
+        for (int c = 0; c < chunks.length; c++) {
+            Chunk chunk = chunks[c];
+            int face = 0;
+            for (Event event : chunk.events) {
+                if (event.face > face) {
+                    part.add(c, face, event.face, material, chunk);
+                    face = event.face;
+                }
+                if (event.kind == Event.MATERIAL) {
+                    material = materialID(event.name);
+                } else if (part.faceCount > 0) {
+                    parts.add(part);
+                    part = new Part(event.name);
+                    part.named = event.kind == Event.OBJECT;
+                } else if (event.kind == Event.OBJECT || !part.named) {
+                    // Nothing in the current object yet, so o Door followed by g Frame is one object, Door
+                    part.name = event.name;
+                    part.named |= event.kind == Event.OBJECT;
+                }
+            }
+            if (chunk.faceCount > face) {
+                part.add(c, face, chunk.faceCount, material, chunk);
+            }
+        }
+        if (part.faceCount > 0) {
+            parts.add(part);
+        }
+        return parts;
+    }
+
+    private int materialID(String name) {
+        Integer id = materials.get(name);
+        if (id == null) {
+            id = nextMaterial;
+            // Names written by ObjExporter keep their IDs, unless another name took it first
+            if (name.length() > 3 && name.length() < 13 && name.startsWith("mat")
+                    && name.chars().skip(3).allMatch(ch -> ch >= '0' && ch <= '9')) {
+                long n = Long.parseLong(name.substring(3));
+                if (n <= Integer.MAX_VALUE - 1 && !materialIDs.contains((int)n)) {
+                    id = (int)n;
+                }
+            }
+            materials.put(name, id);
+            materialIDs.add(id);
+            nextMaterial = Math.max(nextMaterial, id + 1);
+        }
+        return id;
+    }
+
+    /**
+     * Assign IDs to the materials of an mtl file in the order they are defined
+     */
+    private void readMaterials(Path path) {
+        try {
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (line.startsWith("newmtl ") || line.startsWith("newmtl\t")) {
+                    materialID(line.substring(7).trim());
+                }
+            }
+        } catch (NoSuchFileException e) {
+            System.err.println("Material library not found: " + path);
+        } catch (IOException e) {
+            System.err.println("Failed to read material library " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * An o, g or usemtl line, at the number of faces of its chunk read before it
+     */
+    private static final class Event {
+        static final int OBJECT = 0, GROUP = 1, MATERIAL = 2;
+
+        final int face, kind;
+        final String name;
+
+        Event(int face, int kind, String name) {
+            this.face = face;
+            this.kind = kind;
+            this.name = name;
+        }
+    }
+
+    /**
+     * Everything parsed from one chunk of the file. Indices are kept as written: positive absolute,
+     * negative relative and 0 for missing, with the chunk's vertex and uv counts at each face.
+     */
+    private static final class Chunk {
+        // Bytes of the chunk, copied out of the mapping in one go since array access parses faster
+        final byte[] data;
+        final int start;
+
+        float[] verts = new float[3 * 1024], uvs = new float[2 * 1024];
+        int vertCount, uvCount;
+
+        int[] cornerVerts = new int[4 * 1024], cornerUVs = new int[4 * 1024];
+        int cornerCount;
+        // First corner of each face plus one past the last, and counts seen at each face
+        int[] faceStarts = new int[1025], faceVerts = new int[1024], faceUVs = new int[1024];
+        int faceCount;
+
+        final List<Event> events = new ArrayList<>();
+        final List<String> libraries = new ArrayList<>();
+
+        String error;
+        int errorAt;
+
+        // Parsing position and end of the current line
+        private int pos, lineEnd;
+
+        Chunk(ByteBuffer file, int start, int end) {
+            this.data = new byte[end - start];
+            this.start = start;
+            file.get(start, data);
+        }
+
+        void parse() {
+            int end = data.length;
+            try {
+                for (int p = 0; p < end; p = lineEnd + 1) {
+                    lineEnd = p;
+                    while (lineEnd < end && data[lineEnd] != '\n') {
+                        lineEnd++;
+                    }
+                    pos = p;
+                    line();
+                }
+                faceStarts[faceCount] = cornerCount;
+            } catch (IllegalArgumentException e) {
+                error = e.getMessage();
+                errorAt = start + pos;
+            }
+        }
+
+        private void line() {
+            skipSpace();
+            if (pos >= lineEnd) {
+                return;
+            }
+            byte b0 = data[pos], b1 = pos + 1 < lineEnd ? data[pos + 1] : (byte)' ';
+            if (b0 == 'v' && isSpace(b1)) {
+                pos++;
+                if (vertCount * 3 == verts.length) {
+                    verts = Arrays.copyOf(verts, verts.length * 2);
+                }
+                verts[vertCount * 3] = nextFloat();
+                verts[vertCount * 3 + 1] = nextFloat();
+                verts[vertCount * 3 + 2] = nextFloat();
+                vertCount++;
+            } else if (b0 == 'v' && b1 == 't' && isSpace(at(pos + 2))) {
+                pos += 2;
+                if (uvCount * 2 == uvs.length) {
+                    uvs = Arrays.copyOf(uvs, uvs.length * 2);
+                }
+                uvs[uvCount * 2] = nextFloat();
+                skipSpace();
+                uvs[uvCount * 2 + 1] = pos < lineEnd ? nextFloat() : 0;
+                uvCount++;
+            } else if (b0 == 'f' && isSpace(b1)) {
+                pos++;
+                face();
+            } else if ((b0 == 'o' || b0 == 'g') && isSpace(b1)) {
+                pos++;
+                events.add(new Event(faceCount, b0 == 'o' ? Event.OBJECT : Event.GROUP, rest()));
+            } else if (keyword("usemtl")) {
+                events.add(new Event(faceCount, Event.MATERIAL, rest()));
+            } else if (keyword("mtllib")) {
+                for (String library : rest().split("\\s+")) {
+                    if (!library.isEmpty()) {
+                        libraries.add(library);
+                    }
+                }
+            }
+            // Anything else, comments, normals, smoothing groups and so on, is skipped
+        }
+
+        private void face() {
+            int first = cornerCount;
+            for (skipSpace(); pos < lineEnd; skipSpace()) {
+                if (cornerCount == cornerVerts.length) {
+                    cornerVerts = Arrays.copyOf(cornerVerts, cornerCount * 2);
+                    cornerUVs = Arrays.copyOf(cornerUVs, cornerCount * 2);
+                }
+                int v = nextInt(), uv = 0;
+                if (v == 0) {
+                    throw new IllegalArgumentException("Missing vertex index");
+                }
+                if (at(pos) == '/') {
+                    pos++;
+                    if (at(pos) != '/') {
+                        uv = nextInt();
+                    }
+                    if (at(pos) == '/') {
+                        pos++;
+                        nextInt();
+                    }
+                }
+                if (pos < lineEnd && !isSpace(data[pos])) {
+                    throw new IllegalArgumentException("Unexpected character in face");
+                }
+                cornerVerts[cornerCount] = v;
+                cornerUVs[cornerCount] = uv;
+                cornerCount++;
+            }
+            if (cornerCount - first < 3) {
+                // Degenerate, nothing to build from it
+                cornerCount = first;
+                return;
+            }
+            if (faceCount == faceVerts.length) {
+                faceStarts = Arrays.copyOf(faceStarts, faceCount * 2 + 1);
+                faceVerts = Arrays.copyOf(faceVerts, faceCount * 2);
+                faceUVs = Arrays.copyOf(faceUVs, faceCount * 2);
+            }
+            faceStarts[faceCount] = first;
+            faceVerts[faceCount] = vertCount;
+            faceUVs[faceCount] = uvCount;
+            faceCount++;
+        }
+
+        /**
+         * Parse a float, without allocating. Up to 18 significant digits are used.
+         */
+        private float nextFloat() {
+            skipSpace();
+            int p = pos;
+            boolean negative = false;
+            byte b = at(p);
+            if (b == '-' || b == '+') {
+                negative = b == '-';
+                p++;
+            }
+            long mantissa = 0;
+            int digits = 0, exponent = 0;
+            boolean any = false;
+            for (; (b = at(p)) >= '0' && b <= '9'; p++, any = true) {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (mantissa != 0) digits++;
+                } else {
+                    exponent++;
+                }
+            }
+            if (b == '.') {
+                for (p++; (b = at(p)) >= '0' && b <= '9'; p++, any = true) {
+                    if (digits < 18) {
+                        mantissa = mantissa * 10 + (b - '0');
+                        if (mantissa != 0) digits++;
+                        exponent--;
+                    }
+                }
+            }
+            if (any && (b == 'e' || b == 'E')) {
+                int q = p + 1;
+                boolean negativeExponent = false;
+                if (at(q) == '-' || at(q) == '+') {
+                    negativeExponent = at(q) == '-';
+                    q++;
+                }
+                int e = 0;
+                boolean exponentDigits = false;
+                for (; (b = at(q)) >= '0' && b <= '9'; q++, exponentDigits = true) {
+                    e = Math.min(e * 10 + (b - '0'), 100000);
+                }
+                if (exponentDigits) {
+                    exponent += negativeExponent ? -e : e;
+                    p = q;
+                }
+            }
+            if (!any || (p < lineEnd && !isSpace(data[p]))) {
+                // nan, inf and anything unusual go through the JDK
+                return slowFloat();
+            }
+            pos = p;
+            double value = mantissa;
+            if (exponent < 0) {
+                value = -exponent < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-exponent] : value / Math.pow(10, -exponent);
+            } else if (exponent > 0) {
+                value = exponent < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10, exponent);
+            }
+            return (float)(negative ? -value : value);
+        }
+
+        private float slowFloat() {
+            int p = pos;
+            while (p < lineEnd && !isSpace(data[p])) {
+                p++;
+            }
+            String token = string(pos, p);
+            try {
+                // Spellings written by C runtimes, which Float.parseFloat doesn't take
+                String lower = token.toLowerCase(Locale.ROOT);
+                float value = lower.matches("[+-]?nan") ? Float.NaN
+                        : lower.matches("[+-]?inf(inity)?") ? (lower.startsWith("-") ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY)
+                        : Float.parseFloat(token);
+                pos = p;
+                return value;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(token.isEmpty() ? "Missing number" : "Not a number: " + token);
+            }
+        }
+
+        /**
+         * Parse an integer, 0 if there are no digits
+         */
+        private int nextInt() {
+            boolean negative = at(pos) == '-';
+            if (negative || at(pos) == '+') {
+                pos++;
+            }
+            long value = 0;
+            for (byte b; (b = at(pos)) >= '0' && b <= '9'; pos++) {
+                value = value * 10 + (b - '0');
+                if (value > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Index out of range");
+                }
+            }
+            return (int)(negative ? -value : value);
+        }
+
+        private boolean keyword(String word) {
+            for (int i = 0; i < word.length(); i++) {
+                if (at(pos + i) != word.charAt(i)) {
+                    return false;
+                }
+            }
+            if (!isSpace(at(pos + word.length()))) {
+                return false;
+            }
+            pos += word.length();
+            return true;
+        }
+
+        // Rest of the line, trimmed
+        private String rest() {
+            skipSpace();
+            int e = lineEnd;
+            while (e > pos && isSpace(data[e - 1])) {
+                e--;
+            }
+            return string(pos, e);
+        }
+
+        private String string(int from, int to) {
+            return new String(data, from, to - from, StandardCharsets.UTF_8);
+        }
+
+        private void skipSpace() {
+            while (pos < lineEnd && isSpace(data[pos])) {
+                pos++;
+            }
+        }
+
+        // Byte at a position of the current line, or a space past its end
+        private byte at(int p) {
+            return p < lineEnd ? data[p] : (byte)' ';
+        }
+
+        private static boolean isSpace(byte b) {
+            return b == ' ' || b == '\t' || b == '\r';
+        }
+    }
+
+    /**
+     * The faces of one object: runs of consecutive faces of one material within one chunk
+     */
+    private static final class Part {
+        String name;
+        boolean named;
+        int[] runs = new int[16];
+        int runCount, faceCount, cornerCount;
+
+        Part(String name) {
+            this.name = name;
+        }
+
+        void add(int chunk, int from, int to, int material, Chunk c) {
+            if (runCount * 4 == runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+            runs[runCount * 4] = chunk;
+            runs[runCount * 4 + 1] = from;
+            runs[runCount * 4 + 2] = to;
+            runs[runCount * 4 + 3] = material;
+            runCount++;
+            faceCount += to - from;
+            cornerCount += c.faceStarts[to] - c.faceStarts[from];
+        }
+
+        /**
+         * Resolve indices and build the mesh
+         * @throws IllegalArgumentException if an index is out of range
+         */
+        Mesh build(Chunk[] chunks, int[] vertBase, int[] uvBase) {
+            int vertTotal = vertBase[chunks.length], uvTotal = uvBase[chunks.length];
+            int[] verts = new int[cornerCount], uvs = new int[cornerCount];
+            int minVert = Integer.MAX_VALUE, maxVert = -1, minUV = Integer.MAX_VALUE, maxUV = -1;
+            for (int r = 0, k = 0; r < runCount; r++) {
+                int c = runs[r * 4];
+                Chunk chunk = chunks[c];
+                for (int f = runs[r * 4 + 1]; f < runs[r * 4 + 2]; f++) {
+                    int seenVerts = vertBase[c] + chunk.faceVerts[f], seenUVs = uvBase[c] + chunk.faceUVs[f];
+                    for (int i = chunk.faceStarts[f]; i < chunk.faceStarts[f + 1]; i++, k++) {
+                        int v = resolve(chunk.cornerVerts[i], seenVerts, vertTotal);
+                        int uv = chunk.cornerUVs[i] == 0 ? -1 : resolve(chunk.cornerUVs[i], seenUVs, uvTotal);
+                        verts[k] = v;
+                        uvs[k] = uv;
+                        minVert = Math.min(minVert, v);
+                        maxVert = Math.max(maxVert, v);
+                        if (uv >= 0) {
+                            minUV = Math.min(minUV, uv);
+                            maxUV = Math.max(maxUV, uv);
+                        }
+                    }
+                }
+            }
+
+            Mesh m = new Mesh(name);
+            remap(verts, minVert, maxVert, m.verts, chunks, vertBase, true);
+            if (remap(uvs, minUV, maxUV, m.uvs, chunks, uvBase, false)) {
+                int id = m.uvs.add(0, 0, 0);
+                for (int k = 0; k < uvs.length; k++) {
+                    if (uvs[k] < 0) uvs[k] = id;
+                }
+            }
+
+            int[] faceVerts = new int[16], faceUVs = new int[16];
+            for (int r = 0, k = 0; r < runCount; r++) {
+                Chunk chunk = chunks[runs[r * 4]];
+                int material = runs[r * 4 + 3];
+                for (int f = runs[r * 4 + 1]; f < runs[r * 4 + 2]; f++) {
+                    int size = chunk.faceStarts[f + 1] - chunk.faceStarts[f];
+                    if (faceVerts.length < size) {
+                        faceVerts = new int[size];
+                        faceUVs = new int[size];
+                    }
+                    System.arraycopy(verts, k, faceVerts, 0, size);
+                    System.arraycopy(uvs, k, faceUVs, 0, size);
+                    m.addFace(material, faceVerts, faceUVs, size);
+                    k += size;
+                }
+            }
+            return m;
+        }
+
+        /**
+         * Turn global indices into IDs of the mesh's own vertices or uvs, copying those used into it.
+         * A compact range, as when each object lists its own vertices, is copied in one go; otherwise only
+         * the tuples used are gathered.
+         * @return true if some entries have no uv, marked by -1
+         */
+        private static boolean remap(int[] ids, int min, int max, AttributeArray out, Chunk[] chunks, int[] base,
+                                 boolean positions) {
+            boolean missing = false;
+            if (max < 0) {
+                return ids.length > 0;
+            }
+            int range = max - min + 1;
+            if (range <= ids.length * 2L + 64) {
+                out.ensureCapacity(range);
+                int stride = positions ? 3 : 2;
+                for (int c = chunk(base, min), copied = 0; copied < range; c++) {
+                    int from = Math.max(min - base[c], 0);
+                    int count = Math.min((positions ? chunks[c].vertCount : chunks[c].uvCount) - from, range - copied);
+                    System.arraycopy(positions ? chunks[c].verts : chunks[c].uvs, from * stride,
+                            out.data, copied * stride, count * stride);
+                    copied += count;
+                }
+                out.size = range;
+                out.invalidate();
+                for (int k = 0; k < ids.length; k++) {
+                    if (ids[k] < 0) missing = true;
+                    else ids[k] -= min;
+                }
+                return missing;
+            }
+            LongIntMap local = new LongIntMap(Math.min(range, ids.length));
+            for (int k = 0; k < ids.length; k++) {
+                int g = ids[k];
+                if (g < 0) {
+                    missing = true;
+                    continue;
+                }
+                int id = local.putIfAbsent(g, out.size());
+                if (id == out.size()) {
+                    int c = chunk(base, g);
+                    Chunk chunk = chunks[c];
+                    int i = g - base[c];
+                    if (positions) {
+                        out.add(chunk.verts[i * 3], chunk.verts[i * 3 + 1], chunk.verts[i * 3 + 2]);
+                    } else {
+                        out.add(chunk.uvs[i * 2], chunk.uvs[i * 2 + 1], 0);
+                    }
+                }
+                ids[k] = id;
+            }
+            return missing;
+        }
+
+        // Chunk holding a global index
+        private static int chunk(int[] base, int index) {
+            int lo = 0, hi = base.length - 2;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (base[mid] <= index) lo = mid;
+                else hi = mid - 1;
+            }
+            return lo;
+        }
+
+        private static int resolve(int index, int seen, int total) {
+            int resolved = index > 0 ? index - 1 : seen + index;
+            if (resolved < 0 || resolved >= total) {
+                throw new IllegalArgumentException("Index " + index + " out of range");
+            }
+            return resolved;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package citymesh;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the tuples of an AttributeArray, used to find the nearest tuple within a tolerance.
+ * The cell size equals the tolerance, so only the neighbouring cells ever need to be searched.
+ * Tuples added to the array after the last query are indexed lazily on the next one.
+ */
+class SpatialHash {
+
+    private final AttributeArray points;
+    final float cellSize;
+
+    // Open-addressing table from packed cell key to the first tuple ID + 1 in that cell, 0 means empty
+    private long[] keys;
+    private int[] heads;
+    private int cells;
+
+    // Next tuple ID + 1 in the same cell, per tuple
+    private int[] next;
+
+    // Number of tuples indexed so far
+    private int indexed;
+
+    SpatialHash(AttributeArray points, float cellSize) {
+        this.points = points;
+        this.cellSize = cellSize;
+        keys = new long[64];
+        heads = new int[64];
+        next = new int[Math.max(points.size(), 16)];
+    }
+
+    /**
+     * Find the ID of the tuple nearest to the given one, closer than the cell size
+     * @return ID, or -1 if there is none
+     */
+    int findNearest(float x, float y, float z) {
+        update();
+        int cx = cell(x), cy = cell(y), cz = points.stride > 2 ? cell(z) : 0;
+        int dzRange = points.stride > 2 ? 1 : 0;
+        float[] data = points.data;
+        int stride = points.stride;
+        float best = cellSize * cellSize;
+        int bestID = -1;
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dz = -dzRange; dz <= dzRange; dz++) {
+                    for (int e = head(key(cx + dx, cy + dy, cz + dz)); e != 0; e = next[e - 1]) {
+                        int base = (e - 1) * stride;
+                        float ex = data[base] - x, ey = data[base + 1] - y;
+                        float d = ex * ex + ey * ey;
+                        if (stride > 2) {
+                            float ez = data[base + 2] - z;
+                            d += ez * ez;
+                        }
+                        // Ties go to the lowest ID so results don't depend on cell order
+                        if (d < best || (d == best && bestID >= 0 && e - 1 < bestID)) {
+                            best = d;
+                            bestID = e - 1;
+                        }
+                    }
+                }
+            }
+        }
+        return bestID;
+    }
+
+    /**
+     * Index tuples added since the last update
+     */
+    private void update() {
+        int size = points.size();
+        if (indexed == size) return;
+        if (next.length < size) {
+            next = Arrays.copyOf(next, Math.max(size, next.length * 2));
+        }
+        float[] data = points.data;
+        int stride = points.stride;
+        for (; indexed < size; indexed++) {
+            int base = indexed * stride;
+            long key = key(cell(data[base]), cell(data[base + 1]), stride > 2 ? cell(data[base + 2]) : 0);
+            int slot = slot(key);
+            if (heads[slot] == 0) {
+                keys[slot] = key;
+                cells++;
+            }
+            next[indexed] = heads[slot];
+            heads[slot] = indexed + 1;
+            if (cells * 2 > keys.length) grow();
+        }
+    }
+
+    private int cell(float c) {
+        return (int)Math.floor(c / cellSize);
+    }
+
+    private int head(long key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (heads[slot] == 0) return 0;
+            if (keys[slot] == key) return heads[slot];
+        }
+    }
+
+    // Slot holding the key, or the empty slot where it belongs
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (heads[slot] == 0 || keys[slot] == key) return slot;
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldHeads = heads;
+        keys = new long[oldKeys.length * 2];
+        heads = new int[oldHeads.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldHeads[i] != 0) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                heads[slot] = oldHeads[i];
+            }
+        }
+    }
+
+    // Packs 21 bits of each cell coordinate. Distant cells may share a key, which only adds candidates.
+    static long key(int x, int y, int z) {
+        return ((long)(x & 0x1FFFFF) << 42) | ((long)(y & 0x1FFFFF) << 21) | (z & 0x1FFFFF);
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int)key;
+    }
+}
@@ -0,0 +1,186 @@
+package citymesh;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Exporter which passes everything appended to several exporters, such as obj for editing and glb for
+ * an engine, so one run writes every format.
+ *
+ * Each target exporter runs on its own thread behind its own bounded queue, so a slow writer only holds
+ * up the caller once its queue is full, and the others keep going. A target which fails keeps receiving
+ * objects; every failure is collected and reported together by done(). Targets must write to different
+ * files, e.g. one per format. Meshes must not be modified after being appended.
+ */
+public class TeeExporter implements Exporter {
+
+    private final List<Branch> branches = new ArrayList<>();
+    private final int capacity;
+
+    /**
+     * @param targets exporters to write to
+     */
+    public TeeExporter(Exporter... targets) {
+        this(64, targets);
+    }
+
+    /**
+     * @param capacity maximum number of appended objects waiting for each target; appending blocks beyond this
+     * @param targets exporters to write to
+     */
+    public TeeExporter(int capacity, Exporter... targets) {
+        this.capacity = Math.max(capacity, 1);
+        for (Exporter target : targets) {
+            branches.add(new Branch(target));
+        }
+    }
+
+    /**
+     * Initialize every target. Call only once!
+     *
+     * @param filename file name to export to excluding extension, passed to every target
+     * @return true if every target initialized
+     */
+    @Override
+    public boolean init(String filename) {
+        boolean ok = true;
+        for (Branch branch : branches) {
+            if (!branch.exporter.init(filename)) {
+                branch.fail("init(" + filename + ")", null);
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * Wait for every target to write what it was given, finish each one and report all failures
+     *
+     * @return true on success, false if any target failed
+     */
+    @Override
+    public synchronized boolean done() {
+        for (Branch branch : branches) {
+            branch.writer.execute(() -> {
+                try {
+                    if (!branch.exporter.done()) {
+                        branch.fail("done()", null);
+                    }
+                } catch (RuntimeException e) {
+                    branch.fail("done()", e);
+                }
+            });
+            branch.writer.shutdown();
+        }
+        boolean ok = true;
+        for (int i = 0; i < branches.size(); i++) {
+            Branch branch = branches.get(i);
+            try {
+                branch.writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            for (String error : branch.errors) {
+                System.err.println("Failed to export to target " + i + " (" + branch.exporter.getClass().getName() + "): " + error);
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    @Override
+    public List<Path> files() {
+        List<Path> files = new ArrayList<>();
+        for (Branch branch : branches) {
+            files.addAll(branch.exporter.files());
+        }
+        return files;
+    }
+
+    @Override
+    public synchronized boolean appendMesh(Mesh m) {
+        return submit("appendMesh(" + m.getName() + ")", e -> e.appendMesh(m));
+    }
+
+    @Override
+    public synchronized boolean appendInstance(MeshInstance instance) {
+        return submit("appendInstance(" + instance.getName() + ")", e -> e.appendInstance(instance));
+    }
+
+    @Override
+    public synchronized boolean appendLods(Mesh[] lods) {
+        return submit("appendLods(" + lods[0].getName() + ")", e -> e.appendLods(lods));
+    }
+
+    @Override
+    public synchronized boolean appendLods(Mesh[] lods, MeshInstance[] details) {
+        return submit("appendLods(" + lods[0].getName() + ")", e -> e.appendLods(lods, details));
+    }
+
+    /**
+     * An append to be run on each target
+     */
+    private interface Append {
+        boolean to(Exporter e) throws Exception;
+    }
+
+    /**
+     * Queue an append on every target's thread, waiting for room in each target's queue
+     * @return false if any target has failed or the caller was interrupted
+     */
+    private boolean submit(String what, Append append) {
+        boolean ok = true;
+        for (int i = 0; i < branches.size(); i++) {
+            Branch branch = branches.get(i);
+            try {
+                branch.queued.acquire();
+            } catch (InterruptedException e) {
+                // Earlier targets already have the object, so the ones left will be missing it
+                Thread.currentThread().interrupt();
+                for (int j = i; j < branches.size(); j++) {
+                    branches.get(j).errors.add(what + " was skipped, interrupted while waiting for the queue");
+                }
+                return false;
+            }
+            Metrics.queueDepth(Metrics.Queue.TEE, capacity - branch.queued.availablePermits());
+            branch.writer.execute(() -> {
+                try {
+                    if (!append.to(branch.exporter)) {
+                        branch.fail(what, null);
+                    }
+                } catch (Exception e) {
+                    branch.fail(what, e);
+                } finally {
+                    branch.queued.release();
+                }
+            });
+            ok &= branch.errors.isEmpty();
+        }
+        return ok;
+    }
+
+    /**
+     * One target exporter with its writer thread and queue. The exporter is only used on the writer thread
+     * once initialized.
+     */
+    private class Branch {
+        final Exporter exporter;
+        final ExecutorService writer = Executors.newSingleThreadExecutor(Threads.daemon("TeeExporter"));
+        final Semaphore queued = new Semaphore(capacity);
+
+        // Failures in the order they happened
+        final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+        Branch(Exporter exporter) {
+            this.exporter = exporter;
+        }
+
+        void fail(String what, Exception e) {
+            errors.add(e == null ? what + " failed" : what + " threw " + e);
+        }
+    }
+}
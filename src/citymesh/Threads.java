@@ -0,0 +1,24 @@
+package citymesh;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Thread factories for the worker pools of importers and exporters
+ */
+final class Threads {
+
+    private Threads() {
+    }
+
+    /**
+     * Factory for daemon threads, so a pool which is never shut down doesn't keep the JVM running
+     * @param name name of the threads, such as the class owning the pool
+     */
+    static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
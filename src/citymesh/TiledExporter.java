@@ -0,0 +1,434 @@
+package citymesh;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Exporter which splits the output into a grid of tiles on the XY plane.
+ *
+ * Each appended object goes to the tile containing the center of its bounding box. Tiles are created as they
+ * are first used, each with its own exporter writing to its own files, named like out_3_-1.obj for tile
+ * x = 3, y = -1. Writes run on a shared pool of threads, one at a time per tile and in the order they were
+ * appended. done() writes a manifest, out.tiles.json, listing each tile's bounds, vertex and face counts and
+ * the files its exporters report writing with their sizes, so tools can load only the tiles they need.
+ *
+ * At most maxOpenTiles tiles have an exporter, and with it open files and buffers, at once. Opening another
+ * finishes the least recently used tile's exporter; objects which later land in a finished tile go to a new
+ * part of it, written to files named like out_3_-1_part1.obj. With lots appended in row order, as Pipeline
+ * does with a grid of lots, tiles are finished as the rows move past them and parts are rare.
+ * Meshes must not be modified after being appended.
+ */
+public class TiledExporter implements Exporter {
+
+    // Creates the exporter for each tile
+    private final Supplier<Exporter> factory;
+
+    private final float tileWidth, tileHeight;
+
+    // Objects appended but not yet written by their tile, shared by all tiles
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+
+    // Shared by all tiles, each tile's writes are queued and run one at a time
+    private final ExecutorService writers;
+
+    private final int maxOpenTiles;
+
+    private Path basePath;
+    private final Map<Long, Tile> tiles = new HashMap<>();
+
+    // Tiles with an exporter, least recently used first
+    private final LinkedHashMap<Long, Tile> open = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Corners of the bounding box of the object being appended
+    private final float[] corners = new float[8 * 3];
+
+    /**
+     * @param factory creates a new exporter for each tile
+     * @param tileWidth size of tiles along x
+     * @param tileHeight size of tiles along y
+     */
+    public TiledExporter(Supplier<Exporter> factory, float tileWidth, float tileHeight) {
+        this(factory, tileWidth, tileHeight, 256);
+    }
+
+    /**
+     * @param factory creates a new exporter for each tile
+     * @param tileWidth size of tiles along x
+     * @param tileHeight size of tiles along y
+     * @param maxInFlight maximum number of appended objects not yet written; appending blocks beyond this
+     */
+    public TiledExporter(Supplier<Exporter> factory, float tileWidth, float tileHeight, int maxInFlight) {
+        this(factory, tileWidth, tileHeight, maxInFlight, Runtime.getRuntime().availableProcessors(), 64);
+    }
+
+    /**
+     * @param factory creates a new exporter for each tile
+     * @param tileWidth size of tiles along x
+     * @param tileHeight size of tiles along y
+     * @param maxInFlight maximum number of appended objects not yet written; appending blocks beyond this
+     * @param threads number of threads writing tiles
+     * @param maxOpenTiles maximum number of tiles with an exporter at once
+     */
+    public TiledExporter(Supplier<Exporter> factory, float tileWidth, float tileHeight, int maxInFlight,
+                         int threads, int maxOpenTiles) {
+        this.factory = factory;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.maxInFlight = Math.max(maxInFlight, 1);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.writers = Executors.newFixedThreadPool(Math.max(threads, 1), Threads.daemon("TiledExporter"));
+        this.maxOpenTiles = Math.max(maxOpenTiles, 1);
+    }
+
+    /**
+     * Get ready to export. Call only once!
+     *
+     * @param filename file name to export to excluding extension; tiles and the manifest are named after it
+     */
+    @Override
+    public boolean init(String filename) {
+        basePath = Paths.get(filename);
+        return true;
+    }
+
+    /**
+     * Wait for all tiles to be written, finish each open tile's exporter and write the manifest
+     *
+     * @return true on success, false on failures
+     */
+    @Override
+    public synchronized boolean done() {
+        for (Tile tile : open.values()) {
+            tile.close();
+        }
+        open.clear();
+        writers.shutdown();
+        try {
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        boolean ok = true;
+        List<Tile> sorted = new ArrayList<>(tiles.values());
+        sorted.sort(Comparator.<Tile>comparingInt(t -> t.y).thenComparingInt(t -> t.x));
+        for (Tile tile : sorted) {
+            ok &= tile.ok;
+        }
+        try {
+            writeManifest(sorted);
+        } catch (IOException e) {
+            System.out.println("Failed to write tile manifest!");
+            System.err.println("IO exception: " + e.getMessage());
+            return false;
+        }
+        return ok;
+    }
+
+    /**
+     * @return the manifest followed by the files of every tile created so far
+     */
+    @Override
+    public synchronized List<Path> files() {
+        List<Path> files = new ArrayList<>();
+        if (basePath != null) {
+            files.add(Paths.get(basePath + ".tiles.json"));
+        }
+        for (Tile tile : tiles.values()) {
+            files.addAll(tile.files());
+        }
+        return files;
+    }
+
+    /**
+     * Export a mesh to the tile containing it
+     *
+     * @param m mesh to export
+     * @return true on success, false on failure
+     */
+    @Override
+    public synchronized boolean appendMesh(Mesh m) {
+        Tile tile = tileFor(m, null);
+        if (tile == null) {
+            System.err.println("Failed to export mesh" + m + "!");
+            return false;
+        }
+        Exporter e = tile.exporter;
+        return submit(tile, m.vertexCount(), m.faceCount(), () -> e.appendMesh(m));
+    }
+
+    /**
+     * Export an instance to the tile containing it after transformation
+     *
+     * @param instance instance to export
+     * @return true on success, false on failure
+     */
+    @Override
+    public synchronized boolean appendInstance(MeshInstance instance) {
+        Tile tile = tileFor(instance.getMesh(), instance.getTransformation());
+        if (tile == null) {
+            System.err.println("Failed to export instance" + instance + "!");
+            return false;
+        }
+        Mesh m = instance.getMesh();
+        Exporter e = tile.exporter;
+        return submit(tile, m.vertexCount(), m.faceCount(), () -> e.appendInstance(instance));
+    }
+
+    /**
+     * Export a LOD chain to the tile containing its full-detail mesh
+     *
+     * @param lods full-detail mesh followed by decreasing levels of detail
+     * @return true on success, false on failure
+     */
+    @Override
+    public boolean appendLods(Mesh[] lods) {
+        return appendLods(lods, new MeshInstance[0]);
+    }
+
+    /**
+     * Export a LOD chain and its detail instances to the tile containing its full-detail mesh
+     *
+     * @param lods full-detail mesh followed by decreasing levels of detail
+     * @param details instances which are part of the full-detail level only
+     * @return true on success, false on failure
+     */
+    @Override
+    public synchronized boolean appendLods(Mesh[] lods, MeshInstance[] details) {
+        Tile tile = tileFor(lods[0], null);
+        if (tile == null) {
+            System.err.println("Failed to export mesh" + lods[0] + "!");
+            return false;
+        }
+        int vertices = 0, faces = 0;
+        for (Mesh m : lods) {
+            vertices += m.vertexCount();
+            faces += m.faceCount();
+        }
+        for (MeshInstance instance : details) {
+            vertices += instance.getMesh().vertexCount();
+            faces += instance.getMesh().faceCount();
+        }
+        Exporter e = tile.exporter;
+        return submit(tile, vertices, faces, () -> e.appendLods(lods, details));
+    }
+
+    /**
+     * Queue an object to be written after the tile's earlier writes
+     * @return false if the tile has already failed or the caller was interrupted
+     */
+    private boolean submit(Tile tile, int vertices, int faces, Callable<Boolean> append) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            tile.ok = false;
+            return false;
+        }
+        Metrics.queueDepth(Metrics.Queue.TILES, maxInFlight - inFlight.availablePermits());
+        tile.vertices += vertices;
+        tile.faces += faces;
+        tile.execute(() -> {
+            try {
+                tile.ok &= append.call();
+            } catch (Exception e) {
+                e.printStackTrace();
+                tile.ok = false;
+            } finally {
+                inFlight.release();
+            }
+        });
+        return tile.ok;
+    }
+
+    /**
+     * Find the tile for an object from its bounding box, creating it or opening a new part of it if needed,
+     * and grow the tile's bounds
+     * @return the tile, with an exporter, or null if its exporter failed to initialize
+     */
+    private Tile tileFor(Mesh m, Transformation t) {
+        if (basePath == null) {
+            return null;
+        }
+        float[] bounds = bounds(m, t);
+        int x = (int)Math.floor((bounds[0] + bounds[3]) * 0.5f / tileWidth);
+        int y = (int)Math.floor((bounds[1] + bounds[4]) * 0.5f / tileHeight);
+        long key = ((long)x << 32) | (y & 0xFFFFFFFFL);
+        Tile tile = tiles.computeIfAbsent(key, k -> new Tile(x, y, basePath.getFileName() + "_" + x + "_" + y));
+        if (open.get(key) == null) {
+            if (open.size() >= maxOpenTiles) {
+                Iterator<Tile> eldest = open.values().iterator();
+                eldest.next().close();
+                eldest.remove();
+            }
+            String name = tile.parts == 0 ? tile.name : tile.name + "_part" + tile.parts;
+            Exporter exporter = factory.get();
+            if (!exporter.init(basePath.resolveSibling(name).toString())) {
+                tile.ok = false;
+                return null;
+            }
+            tile.exporter = exporter;
+            tile.parts++;
+            open.put(key, tile);
+        }
+        if (m.vertexCount() > 0) {
+            for (int i = 0; i < 3; i++) {
+                tile.min[i] = Math.min(tile.min[i], bounds[i]);
+                tile.max[i] = Math.max(tile.max[i], bounds[i + 3]);
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Axis-aligned bounding box of a mesh, optionally transformed
+     * @return min x, y, z then max x, y, z
+     */
+    private float[] bounds(Mesh m, Transformation t) {
+        float[] v = m.verts.data;
+        float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+                -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = 0, end = m.vertexCount() * 3; i < end; i += 3) {
+            for (int c = 0; c < 3; c++) {
+                bounds[c] = Math.min(bounds[c], v[i + c]);
+                bounds[c + 3] = Math.max(bounds[c + 3], v[i + c]);
+            }
+        }
+        if (m.vertexCount() == 0) {
+            Arrays.fill(bounds, 0);
+        }
+        if (t == null) {
+            return bounds;
+        }
+        // Transform the corners of the box and take the box around those
+        for (int i = 0; i < 8; i++) {
+            corners[i * 3] = bounds[(i & 1) == 0 ? 0 : 3];
+            corners[i * 3 + 1] = bounds[(i & 2) == 0 ? 1 : 4];
+            corners[i * 3 + 2] = bounds[(i & 4) == 0 ? 2 : 5];
+        }
+        t.transformPoints(corners, 0, 8);
+        Arrays.fill(bounds, 0, 3, Float.MAX_VALUE);
+        Arrays.fill(bounds, 3, 6, -Float.MAX_VALUE);
+        for (int i = 0; i < corners.length; i += 3) {
+            for (int c = 0; c < 3; c++) {
+                bounds[c] = Math.min(bounds[c], corners[i + c]);
+                bounds[c + 3] = Math.max(bounds[c + 3], corners[i + c]);
+            }
+        }
+        return bounds;
+    }
+
+    private void writeManifest(List<Tile> sorted) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"tileWidth\":").append(tileWidth).append(",\"tileHeight\":").append(tileHeight);
+        json.append(",\"tiles\":[");
+        for (int i = 0; i < sorted.size(); i++) {
+            Tile tile = sorted.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("{\"x\":").append(tile.x).append(",\"y\":").append(tile.y);
+            json.append(",\"min\":[").append(tile.min[0]).append(',').append(tile.min[1]).append(',').append(tile.min[2]);
+            json.append("],\"max\":[").append(tile.max[0]).append(',').append(tile.max[1]).append(',').append(tile.max[2]);
+            json.append("],\"vertices\":").append(tile.vertices).append(",\"faces\":").append(tile.faces);
+            json.append(",\"files\":[");
+            // Only the files the tile's exporters wrote, e.g. out_0_0.obj and out_0_0.mtl
+            List<Path> files = tile.files();
+            for (int f = 0; f < files.size(); f++) {
+                json.append(f == 0 ? "" : ",");
+                json.append("{\"name\":").append(GlbExporter.quote(files.get(f).getFileName().toString()));
+                json.append(",\"bytes\":").append(Files.size(files.get(f))).append('}');
+            }
+            json.append("]}");
+        }
+        json.append("\n]}\n");
+        Files.write(Paths.get(basePath + ".tiles.json"), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * One tile of the grid. Counts, bounds and the current exporter are only touched with the exporter's lock
+     * held; exporters only by the tile's queued writes, which run one at a time on the shared pool.
+     */
+    private class Tile {
+        final int x, y;
+        final String name;
+
+        // Exporter of the part being written, or null while the tile isn't open
+        Exporter exporter;
+        int parts;
+
+        // Files of the parts already finished
+        final List<Path> finished = Collections.synchronizedList(new ArrayList<>());
+
+        final float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        final float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        long vertices, faces;
+
+        // Cleared by a write on the first failure
+        volatile boolean ok = true;
+
+        // Writes not yet run, and whether a pool thread is running them
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        private boolean draining;
+
+        Tile(int x, int y, String name) {
+            this.x = x;
+            this.y = y;
+            this.name = name;
+        }
+
+        /**
+         * Queue a write, to run after every write queued before it
+         */
+        void execute(Runnable write) {
+            synchronized (queue) {
+                queue.add(write);
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            writers.execute(this::drain);
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable write;
+                synchronized (queue) {
+                    write = queue.poll();
+                    if (write == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                write.run();
+            }
+        }
+
+        /**
+         * Finish the current part once its queued writes are done
+         */
+        void close() {
+            Exporter e = exporter;
+            exporter = null;
+            execute(() -> {
+                ok &= e.done();
+                finished.addAll(e.files());
+            });
+        }
+
+        List<Path> files() {
+            List<Path> files = new ArrayList<>(finished);
+            Exporter e = exporter;
+            if (e != null) {
+                files.addAll(e.files());
+            }
+            return files;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package citymesh;
 
+import java.nio.FloatBuffer;
+
 /**
  * Represents an affine transformation
  */
@@ -8,7 +10,7 @@ public class Transformation {
     // There must be 16 of these
     float[] elements;
 
-    private Transformation(float[] elements) {
+    Transformation(float[] elements) {
         this.elements = elements;
     }
 
@@ -127,6 +129,99 @@ public class Transformation {
         return ret;
     }
 
+    /**
+     * Multiply two transformations into a destination without allocating.
+     * The destination may be either of the operands.
+     *
+     * @param a left operand, applied last
+     * @param b right operand, applied first
+     * @param dest transformation to store a * b in
+     * @return dest
+     */
+    public static Transformation multiply(Transformation a, Transformation b, Transformation dest) {
+        float[] e = b.elements;
+        float b0 = e[0],  b1 = e[1],  b2 = e[2],  b3 = e[3];
+        float b4 = e[4],  b5 = e[5],  b6 = e[6],  b7 = e[7];
+        float b8 = e[8],  b9 = e[9],  b10 = e[10], b11 = e[11];
+        float b12 = e[12], b13 = e[13], b14 = e[14], b15 = e[15];
+        float[] l = a.elements;
+        float[] d = dest.elements;
+        for (int i = 0; i < 16; i += 4) {
+            float a0 = l[i], a1 = l[i + 1], a2 = l[i + 2], a3 = l[i + 3];
+            d[i]     = a0 * b0 + a1 * b4 + a2 * b8  + a3 * b12;
+            d[i + 1] = a0 * b1 + a1 * b5 + a2 * b9  + a3 * b13;
+            d[i + 2] = a0 * b2 + a1 * b6 + a2 * b10 + a3 * b14;
+            d[i + 3] = a0 * b3 + a1 * b7 + a2 * b11 + a3 * b15;
+        }
+        return dest;
+    }
+
+    /**
+     * Reset this transformation to identity, in place
+     * @return this
+     */
+    public Transformation setIdentity() {
+        float[] e = elements;
+        for (int i = 0; i < 16; i++) {
+            e[i] = i % 5 == 0 ? 1 : 0;
+        }
+        return this;
+    }
+
+    /**
+     * Copy another transformation into this one
+     * @return this
+     */
+    public Transformation set(Transformation t) {
+        System.arraycopy(t.elements, 0, elements, 0, 16);
+        return this;
+    }
+
+    /**
+     * Transform this transformation by a translation, in place.
+     * Same result as transform(translation(x, y, z)) without the intermediate objects.
+     * @return this
+     */
+    public Transformation mulTranslation(float x, float y, float z) {
+        float[] e = elements;
+        for (int i = 0; i < 16; i += 4) {
+            e[i + 3] += e[i] * x + e[i + 1] * y + e[i + 2] * z;
+        }
+        return this;
+    }
+
+    /**
+     * Transform this transformation by a rotation about +z, in place.
+     * Same result as transform(rotateZ(amount)) without the intermediate objects.
+     * @param amount amount to rotate in radians
+     * @return this
+     */
+    public Transformation mulRotationZ(float amount) {
+        float c = (float)Math.cos(amount), s = (float)Math.sin(amount);
+        float[] e = elements;
+        for (int i = 0; i < 16; i += 4) {
+            float e0 = e[i], e1 = e[i + 1];
+            e[i]     = e0 * c + e1 * s;
+            e[i + 1] = e1 * c - e0 * s;
+        }
+        return this;
+    }
+
+    /**
+     * Transform this transformation by a scale about the origin, in place.
+     * Same result as transform(scale(xs, ys, zs)) without the intermediate objects.
+     * @return this
+     */
+    public Transformation mulScale(float xs, float ys, float zs) {
+        float[] e = elements;
+        for (int i = 0; i < 16; i += 4) {
+            e[i] *= xs;
+            e[i + 1] *= ys;
+            e[i + 2] *= zs;
+        }
+        return this;
+    }
+
     /**
      * Transform a point using this transformation
      * @param v coordinates to transform
@@ -140,4 +235,125 @@ public class Transformation {
         );
     }
 
+    /**
+     * Transform packed xyz points in place
+     * @param points packed coordinates
+     * @param offset index of the first float of the first point
+     * @param count number of points
+     */
+    public void transformPoints(float[] points, int offset, int count) {
+        transformPoints(points, offset, points, offset, count);
+    }
+
+    /**
+     * Transform packed xyz points from one array into another. The arrays may be the same.
+     * @param src packed source coordinates
+     * @param srcOffset index of the first float of the first source point
+     * @param dst packed destination coordinates
+     * @param dstOffset index of the first float of the first destination point
+     * @param count number of points
+     */
+    public void transformPoints(float[] src, int srcOffset, float[] dst, int dstOffset, int count) {
+        float[] e = elements;
+        float m0 = e[0], m1 = e[1], m2 = e[2],  m3 = e[3];
+        float m4 = e[4], m5 = e[5], m6 = e[6],  m7 = e[7];
+        float m8 = e[8], m9 = e[9], m10 = e[10], m11 = e[11];
+        for (int i = 0; i < count; i++) {
+            int s = srcOffset + i * 3, d = dstOffset + i * 3;
+            float x = src[s], y = src[s + 1], z = src[s + 2];
+            dst[d]     = x * m0 + y * m1 + z * m2  + m3;
+            dst[d + 1] = x * m4 + y * m5 + z * m6  + m7;
+            dst[d + 2] = x * m8 + y * m9 + z * m10 + m11;
+        }
+    }
+
+    /**
+     * Transform packed xyz points in place, from the buffer's position to its limit.
+     * The buffer's position is left unchanged.
+     * @param points packed coordinates
+     */
+    public void transformPoints(FloatBuffer points) {
+        int start = points.position();
+        int count = (points.limit() - start) / 3;
+        if (points.hasArray()) {
+            transformPoints(points.array(), points.arrayOffset() + start, count);
+            return;
+        }
+        float[] e = elements;
+        float m0 = e[0], m1 = e[1], m2 = e[2],  m3 = e[3];
+        float m4 = e[4], m5 = e[5], m6 = e[6],  m7 = e[7];
+        float m8 = e[8], m9 = e[9], m10 = e[10], m11 = e[11];
+        for (int i = 0, p = start; i < count; i++, p += 3) {
+            float x = points.get(p), y = points.get(p + 1), z = points.get(p + 2);
+            points.put(p,     x * m0 + y * m1 + z * m2  + m3);
+            points.put(p + 1, x * m4 + y * m5 + z * m6  + m7);
+            points.put(p + 2, x * m8 + y * m9 + z * m10 + m11);
+        }
+    }
+
+    /**
+     * Transform packed xyz normals from one array into another, by the inverse transpose of the linear part so
+     * they stay perpendicular to the transformed surface under non-uniform scaling, and renormalize them.
+     * The arrays may be the same.
+     * @param src packed source normals
+     * @param srcOffset index of the first float of the first source normal
+     * @param dst packed destination normals
+     * @param dstOffset index of the first float of the first destination normal
+     * @param count number of normals
+     */
+    public void transformNormals(float[] src, int srcOffset, float[] dst, int dstOffset, int count) {
+        float[] e = elements;
+        float m0 = e[0], m1 = e[1], m2 = e[2];
+        float m4 = e[4], m5 = e[5], m6 = e[6];
+        float m8 = e[8], m9 = e[9], m10 = e[10];
+        // Cofactor matrix, which is the inverse transpose scaled by the determinant
+        float c0 = m5 * m10 - m6 * m9, c1 = m6 * m8 - m4 * m10, c2 = m4 * m9 - m5 * m8;
+        float c4 = m2 * m9 - m1 * m10, c5 = m0 * m10 - m2 * m8, c6 = m1 * m8 - m0 * m9;
+        float c8 = m1 * m6 - m2 * m5, c9 = m2 * m4 - m0 * m6, c10 = m0 * m5 - m1 * m4;
+        float sign = m0 * c0 + m1 * c1 + m2 * c2 < 0.0f ? -1.0f : 1.0f;
+        for (int i = 0; i < count; i++) {
+            int s = srcOffset + i * 3, d = dstOffset + i * 3;
+            float x = src[s], y = src[s + 1], z = src[s + 2];
+            float nx = x * c0 + y * c1 + z * c2;
+            float ny = x * c4 + y * c5 + z * c6;
+            float nz = x * c8 + y * c9 + z * c10;
+            float len = (float)Math.sqrt(nx * nx + ny * ny + nz * nz);
+            float scale = len > 0.0f ? sign / len : 0.0f;
+            dst[d]     = nx * scale;
+            dst[d + 1] = ny * scale;
+            dst[d + 2] = nz * scale;
+        }
+    }
+
+    /**
+     * Transform packed tangents (x, y, z, handedness) from one array into another by the linear part and
+     * renormalize them. Handedness flips if the transformation mirrors. The arrays may be the same.
+     * @param src packed source tangents
+     * @param srcOffset index of the first float of the first source tangent
+     * @param dst packed destination tangents
+     * @param dstOffset index of the first float of the first destination tangent
+     * @param count number of tangents
+     */
+    public void transformTangents(float[] src, int srcOffset, float[] dst, int dstOffset, int count) {
+        float[] e = elements;
+        float m0 = e[0], m1 = e[1], m2 = e[2];
+        float m4 = e[4], m5 = e[5], m6 = e[6];
+        float m8 = e[8], m9 = e[9], m10 = e[10];
+        float det = m0 * (m5 * m10 - m6 * m9) + m1 * (m6 * m8 - m4 * m10) + m2 * (m4 * m9 - m5 * m8);
+        float sign = det < 0.0f ? -1.0f : 1.0f;
+        for (int i = 0; i < count; i++) {
+            int s = srcOffset + i * 4, d = dstOffset + i * 4;
+            float x = src[s], y = src[s + 1], z = src[s + 2], w = src[s + 3];
+            float tx = x * m0 + y * m1 + z * m2;
+            float ty = x * m4 + y * m5 + z * m6;
+            float tz = x * m8 + y * m9 + z * m10;
+            float len = (float)Math.sqrt(tx * tx + ty * ty + tz * tz);
+            float scale = len > 0.0f ? 1.0f / len : 0.0f;
+            dst[d]     = tx * scale;
+            dst[d + 1] = ty * scale;
+            dst[d + 2] = tz * scale;
+            dst[d + 3] = w * sign;
+        }
+    }
+
 }
@@ -0,0 +1,601 @@
+package citymesh;
+
+import java.util.Arrays;
+
+/**
+ * Triangulates simple polygons with holes by ear clipping, ported from Mapbox's earcut.
+ *
+ * Polygon vertices live in a doubly linked list. On polygons above 80 points ears are tested only against
+ * vertices whose z-order (Morton) code falls in the ear's bounding box, rather than against every vertex,
+ * which keeps detailed footprints fast. This is not O(n log n): an ear's box can still hold most of the
+ * polygon, and clipping may pass over the ring many times, so the worst case stays O(n^2) as in earcut.
+ * Holes are joined to the outer ring by bridges before clipping. Degenerate input (self-touching rings,
+ * duplicate points) is handled by the same fallbacks as earcut, so some triangles are always produced.
+ *
+ * The linked list is kept in primitive arrays which are reused between calls, so triangulating doesn't
+ * allocate once the arrays have grown to the largest polygon seen. Not thread-safe; use one per thread.
+ */
+public class Triangulator {
+
+    // Polygons with fewer points than this are clipped without the z-order index
+    private static final int HASH_THRESHOLD = 80;
+
+    // Linked list nodes, -1 is null: point index, position, ring links, z-order links
+    private int[] point = new int[64];
+    private double[] x = new double[64], y = new double[64];
+    private int[] prev = new int[64], next = new int[64];
+    private int[] z = new int[64], prevZ = new int[64], nextZ = new int[64];
+    private boolean[] steiner = new boolean[64];
+    private int nodeCount;
+
+    // Output, three point indices per triangle
+    private int[] triangles = new int[192];
+    private int indexCount;
+
+    // Leftmost node of each hole
+    private int[] holeNodes = new int[8];
+
+    // Z-order bounds, inverse size 0 means no index
+    private double minX, minY, invSize;
+
+    /**
+     * Triangulate a polygon
+     *
+     * @param xy packed x, y coordinates of the outer ring followed by each hole, rings in either winding
+     * @param pointCount number of points in xy
+     * @param holeStarts index of the first point of each hole
+     * @param holeCount number of holes
+     * @return number of triangles; their point indices are in triangles()
+     */
+    public int triangulate(float[] xy, int pointCount, int[] holeStarts, int holeCount) {
+        nodeCount = 0;
+        indexCount = 0;
+        invSize = 0;
+        int outerEnd = holeCount > 0 ? holeStarts[0] : pointCount;
+        int outer = linkedList(xy, 0, outerEnd, true);
+        if (outer < 0 || next[outer] == prev[outer]) {
+            return 0;
+        }
+        if (holeCount > 0) {
+            outer = eliminateHoles(xy, pointCount, holeStarts, holeCount, outer);
+        }
+        if (pointCount > HASH_THRESHOLD) {
+            double maxX = minX = xy[0], maxY = minY = xy[1];
+            for (int i = 1; i < outerEnd; i++) {
+                minX = Math.min(minX, xy[i * 2]);
+                minY = Math.min(minY, xy[i * 2 + 1]);
+                maxX = Math.max(maxX, xy[i * 2]);
+                maxY = Math.max(maxY, xy[i * 2 + 1]);
+            }
+            invSize = Math.max(maxX - minX, maxY - minY);
+            invSize = invSize != 0 ? 32767 / invSize : 0;
+        }
+        earcutLinked(outer, 0);
+        return indexCount / 3;
+    }
+
+    /**
+     * Point indices of the triangles from the last call, three per triangle.
+     * The array is reused by the next call.
+     */
+    public int[] triangles() { return triangles; }
+
+    /**
+     * Signed area of a ring, positive when counter-clockwise
+     */
+    public static double signedArea(float[] xy, int start, int end) {
+        double sum = 0;
+        for (int i = start, j = end - 1; i < end; j = i++) {
+            sum += ((double)xy[j * 2] - xy[i * 2]) * ((double)xy[i * 2 + 1] + xy[j * 2 + 1]);
+        }
+        return sum * 0.5;
+    }
+
+    /**
+     * Project a face onto the plane of its dominant axis
+     * @return signed area of the projection, positive if counter-clockwise
+     */
+    static float project(float[] v, FaceList list, int first, int n, float[] xy) {
+        float nx = 0, ny = 0, nz = 0;
+        for (int i = 0; i < n; i++) {
+            int a = list.vertIDs[first + i] * 3, b = list.vertIDs[first + (i + 1) % n] * 3;
+            nx += (v[a + 1] - v[b + 1]) * (v[a + 2] + v[b + 2]);
+            ny += (v[a + 2] - v[b + 2]) * (v[a] + v[b]);
+            nz += (v[a] - v[b]) * (v[a + 1] + v[b + 1]);
+        }
+        int axis = Math.abs(nx) >= Math.abs(ny) && Math.abs(nx) >= Math.abs(nz) ? 0 : Math.abs(ny) >= Math.abs(nz) ? 1 : 2;
+        int u = (axis + 1) % 3, w = (axis + 2) % 3;
+        for (int i = 0; i < n; i++) {
+            int p = list.vertIDs[first + i] * 3;
+            xy[i * 2] = v[p + u];
+            xy[i * 2 + 1] = v[p + w];
+        }
+        return (float)signedArea(xy, 0, n);
+    }
+
+    /**
+     * @return true if no corner of the projected face turns against its winding
+     */
+    static boolean convex(float[] xy, int n, float area) {
+        for (int i = 0; i < n; i++) {
+            int a = i * 2, b = ((i + 1) % n) * 2, c = ((i + 2) % n) * 2;
+            float cross = (xy[b] - xy[a]) * (xy[c + 1] - xy[b + 1]) - (xy[b + 1] - xy[a + 1]) * (xy[c] - xy[b]);
+            if (cross * area < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Create a circular list from a ring, in clockwise order if asked for, otherwise counter-clockwise
+    private int linkedList(float[] xy, int start, int end, boolean clockwise) {
+        int last = -1;
+        if (clockwise == (signedArea(xy, start, end) > 0)) {
+            for (int i = start; i < end; i++) last = insertNode(i, xy[i * 2], xy[i * 2 + 1], last);
+        } else {
+            for (int i = end - 1; i >= start; i--) last = insertNode(i, xy[i * 2], xy[i * 2 + 1], last);
+        }
+        if (last >= 0 && equals(last, next[last])) {
+            removeNode(last);
+            last = next[last];
+        }
+        return last;
+    }
+
+    // Remove duplicate and collinear points
+    private int filterPoints(int start, int end) {
+        if (start < 0) return start;
+        if (end < 0) end = start;
+        int p = start;
+        boolean again;
+        do {
+            again = false;
+            if (!steiner[p] && (equals(p, next[p]) || area(prev[p], p, next[p]) == 0)) {
+                removeNode(p);
+                p = end = prev[p];
+                if (p == next[p]) break;
+                again = true;
+            } else {
+                p = next[p];
+            }
+        } while (again || p != end);
+        return end;
+    }
+
+    // Main ear slicing loop
+    private void earcutLinked(int ear, int pass) {
+        if (ear < 0) return;
+        if (pass == 0 && invSize != 0) indexCurve(ear);
+
+        int stop = ear;
+        while (prev[ear] != next[ear]) {
+            int p = prev[ear], n = next[ear];
+            if (invSize != 0 ? isEarHashed(ear) : isEar(ear)) {
+                addTriangle(point[p], point[ear], point[n]);
+                removeNode(ear);
+                // Skipping the next vertex leads to less sliver triangles
+                ear = next[n];
+                stop = next[n];
+                continue;
+            }
+            ear = n;
+            if (ear == stop) {
+                if (pass == 0) {
+                    // Try again after removing duplicate and collinear points
+                    earcutLinked(filterPoints(ear, -1), 1);
+                } else if (pass == 1) {
+                    // Clip off small local self-intersections
+                    ear = cureLocalIntersections(filterPoints(ear, -1));
+                    earcutLinked(ear, 2);
+                } else {
+                    // Split into two polygons along a valid diagonal and handle each
+                    splitEarcut(ear);
+                }
+                break;
+            }
+        }
+    }
+
+    // Whether a vertex forms a valid ear with its neighbours
+    private boolean isEar(int ear) {
+        int a = prev[ear], b = ear, c = next[ear];
+        if (area(a, b, c) >= 0) return false;  // reflex
+
+        double ax = x[a], bx = x[b], cx = x[c], ay = y[a], by = y[b], cy = y[c];
+        double x0 = Math.min(ax, Math.min(bx, cx)), y0 = Math.min(ay, Math.min(by, cy));
+        double x1 = Math.max(ax, Math.max(bx, cx)), y1 = Math.max(ay, Math.max(by, cy));
+        for (int p = next[c]; p != a; p = next[p]) {
+            if (x[p] >= x0 && x[p] <= x1 && y[p] >= y0 && y[p] <= y1
+                    && pointInTriangle(ax, ay, bx, by, cx, cy, x[p], y[p]) && area(prev[p], p, next[p]) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isEarHashed(int ear) {
+        int a = prev[ear], b = ear, c = next[ear];
+        if (area(a, b, c) >= 0) return false;
+
+        double ax = x[a], bx = x[b], cx = x[c], ay = y[a], by = y[b], cy = y[c];
+        double x0 = Math.min(ax, Math.min(bx, cx)), y0 = Math.min(ay, Math.min(by, cy));
+        double x1 = Math.max(ax, Math.max(bx, cx)), y1 = Math.max(ay, Math.max(by, cy));
+        int minZ = zOrder(x0, y0), maxZ = zOrder(x1, y1);
+
+        // Look in both directions along the z-order curve
+        int p = prevZ[ear], n = nextZ[ear];
+        while (p >= 0 && z[p] >= minZ && n >= 0 && z[n] <= maxZ) {
+            if (blocksEar(p, a, c, x0, y0, x1, y1, ax, ay, bx, by, cx, cy)) return false;
+            p = prevZ[p];
+            if (blocksEar(n, a, c, x0, y0, x1, y1, ax, ay, bx, by, cx, cy)) return false;
+            n = nextZ[n];
+        }
+        while (p >= 0 && z[p] >= minZ) {
+            if (blocksEar(p, a, c, x0, y0, x1, y1, ax, ay, bx, by, cx, cy)) return false;
+            p = prevZ[p];
+        }
+        while (n >= 0 && z[n] <= maxZ) {
+            if (blocksEar(n, a, c, x0, y0, x1, y1, ax, ay, bx, by, cx, cy)) return false;
+            n = nextZ[n];
+        }
+        return true;
+    }
+
+    // Whether a node lies inside the ear a, b, c as a convex vertex
+    private boolean blocksEar(int p, int a, int c, double x0, double y0, double x1, double y1,
+                              double ax, double ay, double bx, double by, double cx, double cy) {
+        return x[p] >= x0 && x[p] <= x1 && y[p] >= y0 && y[p] <= y1 && p != a && p != c
+                && pointInTriangle(ax, ay, bx, by, cx, cy, x[p], y[p]) && area(prev[p], p, next[p]) >= 0;
+    }
+
+    // Go through all polygon nodes and cure small local self-intersections
+    private int cureLocalIntersections(int start) {
+        int p = start;
+        do {
+            int a = prev[p], b = next[next[p]];
+            if (!equals(a, b) && intersects(a, p, next[p], b) && locallyInside(a, b) && locallyInside(b, a)) {
+                addTriangle(point[a], point[p], point[b]);
+                removeNode(p);
+                removeNode(next[p]);
+                p = start = b;
+            }
+            p = next[p];
+        } while (p != start);
+        return filterPoints(p, -1);
+    }
+
+    // Try splitting the polygon into two and triangulate them independently
+    private void splitEarcut(int start) {
+        int a = start;
+        do {
+            for (int b = next[next[a]]; b != prev[a]; b = next[b]) {
+                if (point[a] != point[b] && isValidDiagonal(a, b)) {
+                    int c = splitPolygon(a, b);
+                    a = filterPoints(a, next[a]);
+                    c = filterPoints(c, next[c]);
+                    earcutLinked(a, 0);
+                    earcutLinked(c, 0);
+                    return;
+                }
+            }
+            a = next[a];
+        } while (a != start);
+    }
+
+    // Link every hole into the outer ring, producing a single ring with bridges
+    private int eliminateHoles(float[] xy, int pointCount, int[] holeStarts, int holeCount, int outer) {
+        if (holeNodes.length < holeCount) {
+            holeNodes = new int[holeCount];
+        }
+        int holes = 0;
+        for (int i = 0; i < holeCount; i++) {
+            int start = holeStarts[i], end = i < holeCount - 1 ? holeStarts[i + 1] : pointCount;
+            int list = linkedList(xy, start, end, false);
+            if (list < 0) continue;
+            if (list == next[list]) steiner[list] = true;
+            holeNodes[holes++] = getLeftmost(list);
+        }
+        // Process holes from left to right, insertion sort as there are usually few
+        for (int i = 1; i < holes; i++) {
+            int h = holeNodes[i], j = i - 1;
+            while (j >= 0 && x[holeNodes[j]] > x[h]) {
+                holeNodes[j + 1] = holeNodes[j];
+                j--;
+            }
+            holeNodes[j + 1] = h;
+        }
+        for (int i = 0; i < holes; i++) {
+            outer = eliminateHole(holeNodes[i], outer);
+        }
+        return outer;
+    }
+
+    private int eliminateHole(int hole, int outer) {
+        int bridge = findHoleBridge(hole, outer);
+        if (bridge < 0) {
+            return outer;
+        }
+        int bridgeReverse = splitPolygon(bridge, hole);
+        filterPoints(bridgeReverse, next[bridgeReverse]);
+        return filterPoints(bridge, next[bridge]);
+    }
+
+    // David Eberly's algorithm for finding a bridge between a hole and the outer polygon
+    private int findHoleBridge(int hole, int outer) {
+        int p = outer, m = -1;
+        double hx = x[hole], hy = y[hole], qx = Double.NEGATIVE_INFINITY;
+
+        // Find a segment intersected by a ray from the hole's leftmost point to the left;
+        // segment's endpoint with lesser x will be the potential connection point
+        do {
+            int n = next[p];
+            if (hy <= y[p] && hy >= y[n] && y[n] != y[p]) {
+                double ix = x[p] + (hy - y[p]) * (x[n] - x[p]) / (y[n] - y[p]);
+                if (ix <= hx && ix > qx) {
+                    qx = ix;
+                    m = x[p] < x[n] ? p : n;
+                    if (ix == hx) return m;  // hole touches outer segment, pick leftmost endpoint
+                }
+            }
+            p = n;
+        } while (p != outer);
+        if (m < 0) return -1;
+
+        // Look for points inside the triangle of hole point, segment intersection and endpoint;
+        // if there are none, the endpoint is fine, otherwise take the point with the smallest angle to the ray
+        int stop = m;
+        double mx = x[m], my = y[m], tanMin = Double.POSITIVE_INFINITY;
+        p = m;
+        do {
+            if (hx >= x[p] && x[p] >= mx && hx != x[p]
+                    && pointInTriangle(hy < my ? hx : qx, hy, mx, my, hy < my ? qx : hx, hy, x[p], y[p])) {
+                double tan = Math.abs(hy - y[p]) / (hx - x[p]);
+                if (locallyInside(p, hole) && (tan < tanMin
+                        || (tan == tanMin && (x[p] > x[m] || (x[p] == x[m] && sectorContainsSector(m, p)))))) {
+                    m = p;
+                    tanMin = tan;
+                }
+            }
+            p = next[p];
+        } while (p != stop);
+        return m;
+    }
+
+    // Whether sector in vertex m contains sector in vertex p in the same coordinates
+    private boolean sectorContainsSector(int m, int p) {
+        return area(prev[m], m, prev[p]) < 0 && area(next[p], m, next[m]) < 0;
+    }
+
+    // Interlink polygon nodes in z-order
+    private void indexCurve(int start) {
+        int p = start;
+        do {
+            if (z[p] == 0) z[p] = zOrder(x[p], y[p]);
+            prevZ[p] = prev[p];
+            nextZ[p] = next[p];
+            p = next[p];
+        } while (p != start);
+        nextZ[prevZ[p]] = -1;
+        prevZ[p] = -1;
+        sortLinked(p);
+    }
+
+    // Simon Tatham's linked list merge sort on the z-order links
+    private void sortLinked(int list) {
+        int inSize = 1, numMerges;
+        do {
+            int p = list, tail = -1;
+            list = -1;
+            numMerges = 0;
+            while (p >= 0) {
+                numMerges++;
+                int q = p, pSize = 0;
+                for (int i = 0; i < inSize; i++) {
+                    pSize++;
+                    q = nextZ[q];
+                    if (q < 0) break;
+                }
+                int qSize = inSize;
+                while (pSize > 0 || (qSize > 0 && q >= 0)) {
+                    int e;
+                    if (pSize != 0 && (qSize == 0 || q < 0 || z[p] <= z[q])) {
+                        e = p;
+                        p = nextZ[p];
+                        pSize--;
+                    } else {
+                        e = q;
+                        q = nextZ[q];
+                        qSize--;
+                    }
+                    if (tail >= 0) nextZ[tail] = e;
+                    else list = e;
+                    prevZ[e] = tail;
+                    tail = e;
+                }
+                p = q;
+            }
+            nextZ[tail] = -1;
+            inSize *= 2;
+        } while (numMerges > 1);
+    }
+
+    // Z-order of a point given coords and inverse of the longer side of the data bbox
+    private int zOrder(double px, double py) {
+        int zx = (int)((px - minX) * invSize), zy = (int)((py - minY) * invSize);
+        zx = (zx | (zx << 8)) & 0x00FF00FF;
+        zx = (zx | (zx << 4)) & 0x0F0F0F0F;
+        zx = (zx | (zx << 2)) & 0x33333333;
+        zx = (zx | (zx << 1)) & 0x55555555;
+        zy = (zy | (zy << 8)) & 0x00FF00FF;
+        zy = (zy | (zy << 4)) & 0x0F0F0F0F;
+        zy = (zy | (zy << 2)) & 0x33333333;
+        zy = (zy | (zy << 1)) & 0x55555555;
+        return zx | (zy << 1);
+    }
+
+    private int getLeftmost(int start) {
+        int p = start, leftmost = start;
+        do {
+            if (x[p] < x[leftmost] || (x[p] == x[leftmost] && y[p] < y[leftmost])) leftmost = p;
+            p = next[p];
+        } while (p != start);
+        return leftmost;
+    }
+
+    private static boolean pointInTriangle(double ax, double ay, double bx, double by, double cx, double cy,
+                                           double px, double py) {
+        return (cx - px) * (ay - py) >= (ax - px) * (cy - py)
+                && (ax - px) * (by - py) >= (bx - px) * (ay - py)
+                && (bx - px) * (cy - py) >= (cx - px) * (by - py);
+    }
+
+    // Whether a diagonal between two polygon nodes is valid (lies in polygon interior)
+    private boolean isValidDiagonal(int a, int b) {
+        return point[next[a]] != point[b] && point[prev[a]] != point[b] && !intersectsPolygon(a, b)
+                && (locallyInside(a, b) && locallyInside(b, a) && middleInside(a, b)
+                        && (area(prev[a], a, prev[b]) != 0 || area(a, prev[b], b) != 0)
+                    || equals(a, b) && area(prev[a], a, next[a]) > 0 && area(prev[b], b, next[b]) > 0);
+    }
+
+    private double area(int p, int q, int r) {
+        return (y[q] - y[p]) * (x[r] - x[q]) - (x[q] - x[p]) * (y[r] - y[q]);
+    }
+
+    private boolean equals(int p, int q) {
+        return x[p] == x[q] && y[p] == y[q];
+    }
+
+    // Whether segments p1 q1 and p2 q2 intersect
+    private boolean intersects(int p1, int q1, int p2, int q2) {
+        int o1 = sign(area(p1, q1, p2)), o2 = sign(area(p1, q1, q2));
+        int o3 = sign(area(p2, q2, p1)), o4 = sign(area(p2, q2, q1));
+        if (o1 != o2 && o3 != o4) return true;
+        if (o1 == 0 && onSegment(p1, p2, q1)) return true;  // p1, q1 and p2 are collinear and p2 lies on p1q1
+        if (o2 == 0 && onSegment(p1, q2, q1)) return true;
+        if (o3 == 0 && onSegment(p2, p1, q2)) return true;
+        return o4 == 0 && onSegment(p2, q1, q2);
+    }
+
+    // For collinear points p, q, r, whether q lies on segment pr
+    private boolean onSegment(int p, int q, int r) {
+        return x[q] <= Math.max(x[p], x[r]) && x[q] >= Math.min(x[p], x[r])
+                && y[q] <= Math.max(y[p], y[r]) && y[q] >= Math.min(y[p], y[r]);
+    }
+
+    private static int sign(double v) {
+        return v > 0 ? 1 : v < 0 ? -1 : 0;
+    }
+
+    // Whether a polygon diagonal intersects any polygon segments
+    private boolean intersectsPolygon(int a, int b) {
+        int p = a;
+        do {
+            int n = next[p];
+            if (point[p] != point[a] && point[n] != point[a] && point[p] != point[b] && point[n] != point[b]
+                    && intersects(p, n, a, b)) {
+                return true;
+            }
+            p = n;
+        } while (p != a);
+        return false;
+    }
+
+    // Whether a polygon diagonal is locally inside the polygon
+    private boolean locallyInside(int a, int b) {
+        return area(prev[a], a, next[a]) < 0
+                ? area(a, b, next[a]) >= 0 && area(a, prev[a], b) >= 0
+                : area(a, b, prev[a]) < 0 || area(a, next[a], b) < 0;
+    }
+
+    // Whether the middle point of a polygon diagonal is inside the polygon
+    private boolean middleInside(int a, int b) {
+        int p = a;
+        boolean inside = false;
+        double px = (x[a] + x[b]) / 2, py = (y[a] + y[b]) / 2;
+        do {
+            int n = next[p];
+            if (((y[p] > py) != (y[n] > py)) && y[n] != y[p]
+                    && (px < (x[n] - x[p]) * (py - y[p]) / (y[n] - y[p]) + x[p])) {
+                inside = !inside;
+            }
+            p = n;
+        } while (p != a);
+        return inside;
+    }
+
+    // Link two polygon vertices with a bridge; if the vertices belong to the same ring it splits the polygon
+    // in two, if they belong to different rings it merges them into one
+    private int splitPolygon(int a, int b) {
+        int a2 = newNode(point[a], x[a], y[a]), b2 = newNode(point[b], x[b], y[b]);
+        int an = next[a], bp = prev[b];
+
+        next[a] = b;
+        prev[b] = a;
+
+        next[a2] = an;
+        prev[an] = a2;
+
+        next[b2] = a2;
+        prev[a2] = b2;
+
+        next[bp] = b2;
+        prev[b2] = bp;
+
+        return b2;
+    }
+
+    // Create a node and optionally link it with the previous one in a circular list
+    private int insertNode(int i, double px, double py, int last) {
+        int p = newNode(i, px, py);
+        if (last < 0) {
+            prev[p] = p;
+            next[p] = p;
+        } else {
+            next[p] = next[last];
+            prev[p] = last;
+            prev[next[last]] = p;
+            next[last] = p;
+        }
+        return p;
+    }
+
+    private void removeNode(int p) {
+        prev[next[p]] = prev[p];
+        next[prev[p]] = next[p];
+        if (prevZ[p] >= 0) nextZ[prevZ[p]] = nextZ[p];
+        if (nextZ[p] >= 0) prevZ[nextZ[p]] = prevZ[p];
+    }
+
+    private int newNode(int i, double px, double py) {
+        if (nodeCount == point.length) {
+            int len = nodeCount * 2;
+            point = Arrays.copyOf(point, len);
+            x = Arrays.copyOf(x, len);
+            y = Arrays.copyOf(y, len);
+            prev = Arrays.copyOf(prev, len);
+            next = Arrays.copyOf(next, len);
+            z = Arrays.copyOf(z, len);
+            prevZ = Arrays.copyOf(prevZ, len);
+            nextZ = Arrays.copyOf(nextZ, len);
+            steiner = Arrays.copyOf(steiner, len);
+        }
+        int p = nodeCount++;
+        point[p] = i;
+        x[p] = px;
+        y[p] = py;
+        z[p] = 0;
+        prevZ[p] = -1;
+        nextZ[p] = -1;
+        steiner[p] = false;
+        return p;
+    }
+
+    private void addTriangle(int a, int b, int c) {
+        if (indexCount + 3 > triangles.length) {
+            triangles = Arrays.copyOf(triangles, triangles.length * 2);
+        }
+        triangles[indexCount++] = a;
+        triangles[indexCount++] = b;
+        triangles[indexCount++] = c;
+    }
+}
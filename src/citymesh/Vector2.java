@@ -49,8 +49,8 @@ public class Vector2 {
     }
 
     public float sqDistance(Vector2 other) {
-        return (x * x + other.x * other.x) +
-                (y * y + other.y * other.y);
+        float dx = x - other.x, dy = y - other.y;
+        return dx * dx + dy * dy;
     }
 
     public float distance(Vector2 other) {
@@ -58,9 +58,8 @@ public class Vector3 {
     }
 
     public float sqDistance(Vector3 other) {
-        return (x * x + other.x * other.x) +
-                (y * y + other.y * other.y) +
-                (z * z + other.z * other.z);
+        float dx = x - other.x, dy = y - other.y, dz = z - other.z;
+        return dx * dx + dy * dy + dz * dz;
     }
 
     public float distance(Vector3 other) {
@@ -0,0 +1,285 @@
+package citymesh;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reorders a mesh's faces for the GPU's post-transform vertex cache and its vertices for fetch locality.
+ *
+ * Faces are triangulated, fanned when convex and ear-clipped otherwise, and the triangles of each material
+ * are reordered with Forsyth's linear-speed algorithm: each step emits the triangle whose vertices score
+ * highest, favouring vertices recently used and vertices with few triangles left, so that the cache is
+ * reused and vertices are finished off rather than left behind. A GPU vertex is a distinct combination of
+ * vertex and uv, or of normal and uv on meshes with normals, as the exporters split them. Vertices, uvs and
+ * normals are then renumbered in order of first use, so the vertex buffers are read front to back.
+ *
+ * The average cache miss ratio (misses per triangle, ACMR) of a FIFO cache is measured on the triangles in
+ * the order of their faces before and in the new order after, and reported through Metrics along with the
+ * number of distinct vertices, each of which misses at least once, which bounds how far it can drop.
+ */
+public class VertexCacheOptimizer {
+
+    // Entries in the simulated cache, both for scoring and for measuring
+    static final int CACHE_SIZE = 16;
+
+    // Forsyth's score parameters
+    private static final float LAST_TRIANGLE_SCORE = 0.75f;
+    private static final float CACHE_DECAY_POWER = 1.5f;
+    private static final float VALENCE_BOOST_SCALE = 2.0f;
+    private static final float VALENCE_BOOST_POWER = 0.5f;
+
+    // Scores by cache position, and by triangles left for small counts
+    private static final float[] CACHE_SCORES = new float[CACHE_SIZE];
+    private static final float[] VALENCE_SCORES = new float[32];
+
+    static {
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            CACHE_SCORES[i] = i < 3 ? LAST_TRIANGLE_SCORE
+                    : (float)Math.pow(1.0 - (i - 3) / (double)(CACHE_SIZE - 3), CACHE_DECAY_POWER);
+        }
+        for (int i = 1; i < VALENCE_SCORES.length; i++) {
+            VALENCE_SCORES[i] = valenceScore(i);
+        }
+    }
+
+    /**
+     * Triangulate and reorder the faces of a mesh, then renumber its vertices, uvs and normals in order of
+     * first use. Normals are kept.
+     * @param m mesh to update
+     */
+    public void optimize(Mesh m) {
+        long start = Metrics.start();
+        boolean normals = m.hasNormals();
+        float[] v = m.verts.data;
+        Triangulator triangulator = null;
+        LongIntMap vertices = new LongIntMap(1024);
+        List<FaceList> optimized = new ArrayList<>(m.faces.size());
+        long triangleTotal = 0, vertexTotal = 0, missesBefore = 0, missesAfter = 0;
+        int[] corners = new int[0], tv = new int[0];
+        float[] projected = new float[0];
+
+        for (FaceList list : m.faces.values()) {
+            int capacity = 0;
+            for (int f = 0; f < list.count; f++) {
+                capacity += Math.max(list.size(f) - 2, 0);
+            }
+            if (corners.length < capacity * 3) {
+                corners = new int[capacity * 3];
+                tv = new int[capacity * 3];
+            }
+
+            // Corner of the list at each triangle corner, in the order the faces had
+            int triangles = 0;
+            for (int f = 0; f < list.count; f++) {
+                int first = list.offsets[f], n = list.offsets[f + 1] - first;
+                if (n < 3) continue;
+                if (n > 3) {
+                    if (projected.length < n * 2) {
+                        projected = new float[n * 2];
+                    }
+                    float area = Triangulator.project(v, list, first, n, projected);
+                    if (area != 0.0f && !Triangulator.convex(projected, n, area)) {
+                        if (triangulator == null) {
+                            triangulator = new Triangulator();
+                        }
+                        int count = triangulator.triangulate(projected, n, null, 0);
+                        if (count > 0) {
+                            // Triangles come out counter-clockwise, the face is clockwise if its area is negative
+                            int[] indices = triangulator.triangles();
+                            for (int t = 0; t < count; t++) {
+                                int c = (triangles + t) * 3;
+                                corners[c] = first + indices[t * 3];
+                                corners[c + 1] = first + indices[t * 3 + (area > 0 ? 1 : 2)];
+                                corners[c + 2] = first + indices[t * 3 + (area > 0 ? 2 : 1)];
+                            }
+                            triangles += count;
+                            continue;
+                        }
+                    }
+                }
+                for (int i = 2; i < n; i++, triangles++) {
+                    corners[triangles * 3] = first;
+                    corners[triangles * 3 + 1] = first + i - 1;
+                    corners[triangles * 3 + 2] = first + i;
+                }
+            }
+            if (triangles == 0) continue;
+
+            // GPU vertex of each triangle corner
+            vertices.clear();
+            int vertexCount = 0;
+            for (int i = 0; i < triangles * 3; i++) {
+                int c = corners[i];
+                long key = ((long)(normals ? list.normIDs[c] : list.vertIDs[c]) << 32) | (list.uvIDs[c] & 0xFFFFFFFFL);
+                tv[i] = vertices.putIfAbsent(key, vertexCount);
+                if (tv[i] == vertexCount) {
+                    vertexCount++;
+                }
+            }
+
+            int[] order = order(tv, triangles, vertexCount);
+            missesBefore += misses(tv, null, triangles, vertexCount);
+            missesAfter += misses(tv, order, triangles, vertexCount);
+            triangleTotal += triangles;
+            vertexTotal += vertexCount;
+
+            int[] offsets = new int[triangles + 1];
+            int[] vertIDs = new int[triangles * 3], uvIDs = new int[triangles * 3];
+            int[] normIDs = normals ? new int[triangles * 3] : null;
+            for (int t = 0; t < triangles; t++) {
+                offsets[t + 1] = (t + 1) * 3;
+                for (int k = 0; k < 3; k++) {
+                    int c = corners[order[t] * 3 + k];
+                    vertIDs[t * 3 + k] = list.vertIDs[c];
+                    uvIDs[t * 3 + k] = list.uvIDs[c];
+                    if (normals) {
+                        normIDs[t * 3 + k] = list.normIDs[c];
+                    }
+                }
+            }
+            optimized.add(new FaceList(list.material, vertIDs, uvIDs, normIDs, offsets, triangles));
+        }
+
+        m.setFaces(optimized);
+        m.compact();
+        Metrics.add(Metrics.Counter.VCACHE_TRIANGLES, triangleTotal);
+        Metrics.add(Metrics.Counter.VCACHE_VERTICES, vertexTotal);
+        Metrics.add(Metrics.Counter.VCACHE_MISSES_BEFORE, missesBefore);
+        Metrics.add(Metrics.Counter.VCACHE_MISSES_AFTER, missesAfter);
+        Metrics.end(Metrics.Stage.OPTIMIZE, start);
+    }
+
+    /**
+     * Order triangles by Forsyth's algorithm
+     * @param tv vertex of each triangle corner
+     * @return triangles in drawing order
+     */
+    static int[] order(int[] tv, int triangles, int vertexCount) {
+        // Triangles of each vertex, compacted as they are emitted so only live ones are left in front
+        int[] adjacencyStart = new int[vertexCount + 1], live = new int[vertexCount];
+        for (int i = 0; i < triangles * 3; i++) {
+            live[tv[i]]++;
+        }
+        for (int i = 0; i < vertexCount; i++) {
+            adjacencyStart[i + 1] = adjacencyStart[i] + live[i];
+        }
+        int[] adjacency = new int[triangles * 3], fill = new int[vertexCount];
+        for (int i = 0; i < triangles * 3; i++) {
+            int vert = tv[i];
+            adjacency[adjacencyStart[vert] + fill[vert]++] = i / 3;
+        }
+
+        float[] vertexScore = new float[vertexCount];
+        for (int i = 0; i < vertexCount; i++) {
+            vertexScore[i] = score(-1, live[i]);
+        }
+        float[] triangleScore = new float[triangles];
+        float bestScore = -1;
+        int best = 0;
+        for (int t = 0; t < triangles; t++) {
+            triangleScore[t] = vertexScore[tv[t * 3]] + vertexScore[tv[t * 3 + 1]] + vertexScore[tv[t * 3 + 2]];
+            if (triangleScore[t] > bestScore) {
+                bestScore = triangleScore[t];
+                best = t;
+            }
+        }
+
+        boolean[] emitted = new boolean[triangles];
+        int[] order = new int[triangles];
+        int[] cache = new int[CACHE_SIZE + 3], next = new int[CACHE_SIZE + 3];
+        int cacheCount = 0, cursor = 0;
+        for (int emit = 0; emit < triangles; emit++) {
+            if (best < 0) {
+                // Dead end, nothing in the cache has triangles left: continue from the first one not yet drawn
+                while (emitted[cursor]) cursor++;
+                best = cursor;
+            }
+            order[emit] = best;
+            emitted[best] = true;
+
+            // Drop the triangle from its vertices' lists and put them at the front of the cache
+            int nextCount = 0;
+            for (int k = 0; k < 3; k++) {
+                int vert = tv[best * 3 + k];
+                int from = adjacencyStart[vert], to = from + live[vert];
+                for (int a = from; a < to; a++) {
+                    if (adjacency[a] == best) {
+                        adjacency[a] = adjacency[to - 1];
+                        break;
+                    }
+                }
+                live[vert]--;
+                boolean seen = false;
+                for (int j = 0; j < nextCount; j++) {
+                    seen |= next[j] == vert;
+                }
+                if (!seen) {
+                    next[nextCount++] = vert;
+                }
+            }
+            for (int j = 0; j < cacheCount; j++) {
+                int vert = cache[j];
+                if (vert != tv[best * 3] && vert != tv[best * 3 + 1] && vert != tv[best * 3 + 2]) {
+                    next[nextCount++] = vert;
+                }
+            }
+
+            // Rescore the vertices that moved or fell out, and pick the best triangle around them
+            best = -1;
+            bestScore = -1;
+            for (int j = 0; j < nextCount; j++) {
+                int vert = next[j];
+                float score = score(j < CACHE_SIZE ? j : -1, live[vert]);
+                float delta = score - vertexScore[vert];
+                vertexScore[vert] = score;
+                for (int a = adjacencyStart[vert], end = a + live[vert]; a < end; a++) {
+                    int t = adjacency[a];
+                    triangleScore[t] += delta;
+                    if (triangleScore[t] > bestScore) {
+                        bestScore = triangleScore[t];
+                        best = t;
+                    }
+                }
+            }
+            int[] swap = cache;
+            cache = next;
+            next = swap;
+            cacheCount = Math.min(nextCount, CACHE_SIZE);
+        }
+        return order;
+    }
+
+    /**
+     * Count cache misses of triangles drawn through a FIFO cache of CACHE_SIZE entries
+     * @param order triangles in drawing order, or null for the order they have
+     */
+    static long misses(int[] tv, int[] order, int triangles, int vertexCount) {
+        // Time each vertex entered the cache; it is still there while fewer than CACHE_SIZE others entered since
+        int[] entered = new int[vertexCount];
+        int time = CACHE_SIZE + 1;
+        long misses = 0;
+        for (int i = 0; i < triangles; i++) {
+            int t = order == null ? i : order[i];
+            for (int k = 0; k < 3; k++) {
+                int vert = tv[t * 3 + k];
+                if (time - entered[vert] > CACHE_SIZE) {
+                    entered[vert] = time++;
+                    misses++;
+                }
+            }
+        }
+        return misses;
+    }
+
+    private static float score(int cachePosition, int live) {
+        if (live == 0) {
+            return -1.0f;
+        }
+        float score = cachePosition < 0 ? 0.0f : CACHE_SCORES[cachePosition];
+        return score + (live < VALENCE_SCORES.length ? VALENCE_SCORES[live] : valenceScore(live));
+    }
+
+    private static float valenceScore(int live) {
+        return VALENCE_BOOST_SCALE * (float)Math.pow(live, -VALENCE_BOOST_POWER);
+    }
+}